@@ -192,7 +192,9 @@ public class Image_Deconvolution implements PlugIn
 			final int debugInterval = decon.getDebugInterval();
 			final ComputeBlockThreadFactory< ? > cptf = decon.getComputeBlockThreadFactory();
 			final boolean mul = decon.isMultiplicative();
-			final PsiInitFactory psiInitFactory = decon.getPsiInitFactory();
+			// one group per deconvolved image in the checkpoint container
+			final String checkpointGroup = Image_Fusion.getTitle( decon.getSplittingType(), deconGroup );
+			final PsiInitFactory psiInitFactory = decon.getPsiInitFactory( checkpointGroup );
 
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Grouping, and transforming PSF's " );
 
@@ -227,6 +229,10 @@ public class Image_Deconvolution implements PlugIn
 						return false;
 
 					view.setTitle( Group.gvids( virtualView ) );
+
+					if ( decon.precomputeBlocks() )
+						view.precomputeBlocks( decon.quantizePrecomputedBlocks() );
+
 					deconViews.add( view );
 
 					IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Added " + view );
@@ -257,13 +263,18 @@ public class Image_Deconvolution implements PlugIn
 					return false;
 				mvDecon.setDebug( debug );
 				mvDecon.setDebugInterval( debugInterval );
+				mvDecon.setCheckpoint( decon.getCheckpoint( checkpointGroup ) );
 				mvDecon.runIterations();
 
 				if ( !export( mvDecon.getPSI(), decon, exporter, deconGroup ) )
 				{
 					IOFunctions.println( "ERROR exporting the image using '" + exporter.getClass().getSimpleName() + "'" );
+					decon.closeScratch();
 					return false;
 				}
+
+				// the out-of-core images of this group are not needed anymore
+				decon.clearScratch();
 			}
 			catch ( OutOfMemoryError oome )
 			{
@@ -273,12 +284,14 @@ public class Image_Deconvolution implements PlugIn
 				IOFunctions.println( "Your java instance has access to a total amount of RAM of: " + Runtime.getRuntime().maxMemory() / (1024*1024) );
 
 				service.shutdown();
+				decon.closeScratch();
 
 				return false;
 			}
 		}
 
 		service.shutdown();
+		decon.closeScratch();
 
 		exporter.finish();
 
@@ -28,8 +28,12 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.stream.Collectors;
 
 import com.google.common.collect.Sets;
@@ -65,14 +69,16 @@ import net.preibisch.mvrecon.fiji.plugin.queryXML.GenericLoadParseQueryXML;
 import net.preibisch.mvrecon.fiji.plugin.queryXML.LoadParseQueryXML;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.process.export.Calibrateable;
+import net.preibisch.mvrecon.process.export.ConcurrentImgExport;
 import net.preibisch.mvrecon.process.export.ExportN5Api;
 import net.preibisch.mvrecon.process.export.ImgExport;
 import net.preibisch.mvrecon.process.fusion.FusionTools;
 import net.preibisch.mvrecon.process.fusion.blk.BlkAffineFusion;
+import net.preibisch.mvrecon.process.fusion.blk.BlkNonRigidFusion;
 import net.preibisch.mvrecon.process.fusion.lazy.LazyAffineFusion;
-import net.preibisch.mvrecon.process.fusion.lazy.LazyNonRigidFusion;
 import net.preibisch.mvrecon.process.fusion.transformed.TransformVirtual;
 import net.preibisch.mvrecon.process.fusion.transformed.nonrigid.NonRigidTools;
+import net.preibisch.mvrecon.process.fusion.transformed.nonrigid.grid.ModelGridStore;
 import net.preibisch.mvrecon.process.interestpointregistration.TransformationTools;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 
@@ -84,6 +90,11 @@ import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constell
  */
 public class Image_Fusion implements PlugIn
 {
+	/**
+	 * how many groups (e.g. channels/timepoints) are exported at the same time if the exporter supports it (see {@link ConcurrentImgExport})
+	 */
+	public static int maxConcurrentGroups = 4;
+
 	@Override
 	public void run( String arg )
 	{
@@ -141,6 +152,24 @@ public class Image_Fusion implements PlugIn
 		// one common executerservice
 		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
 
+		// exporters that support it write several groups at the same time (sharing their threads and memory budget),
+		// so the machine stays busy at the tail of each group, e.g. for time-series with many small timepoints
+		final ExecutorService groupExecutor;
+		final Semaphore groupSlots;
+		final ArrayList< Future< Boolean > > groupExports = new ArrayList<>();
+
+		if ( ConcurrentImgExport.class.isInstance( exporter ) && maxConcurrentGroups > 1 && groups.size() > 1 )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Exporting up to " + maxConcurrentGroups + " groups concurrently." );
+			groupExecutor = Executors.newFixedThreadPool( Math.min( maxConcurrentGroups, groups.size() ) );
+			groupSlots = new Semaphore( maxConcurrentGroups );
+		}
+		else
+		{
+			groupExecutor = null;
+			groupSlots = null;
+		}
+
 		for ( final Group< ViewDescription > group : Group.getGroupsSorted( groups ) )
 		{
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Fusing group " + (++i) + "/" + groups.size() + " (group=" + group + ")" );
@@ -209,27 +238,28 @@ public class Image_Fusion implements PlugIn
 
 			if ( fusion.getNonRigidParameters().isActive() )
 			{
-				supplier = BlockSupplier.of(
-						LazyNonRigidFusion.init(
-							conv,
-							spimData.getSequenceDescription().getImgLoader(),
-							registrations,
-							spimData.getViewInterestPoints().getViewInterestPoints(),
-							spimData.getSequenceDescription().getViewDescriptions(),
-							group.getViews(),
-							viewsToUse,
-							fusion.getNonRigidParameters().getLabels(),
-							fusion.getFusionType(),
-							fusion.getNonRigidParameters().showDistanceMap(),
-							Util.getArrayFromValue( fusion.getNonRigidParameters().getControlPointDistance(), 3 ),
-							fusion.getNonRigidParameters().getAlpha(),
-							false,
-							fusion.getInterpolation(),
-							fusion.adjustIntensities() ? spimData.getIntensityAdjustments().getIntensityAdjustments() : null,
-							taskExecutor,
-							fusion.getBoundingBox(),
-							(RealType & NativeType)type,
-							blocksize ) );
+				supplier = BlkNonRigidFusion.init(
+						conv,
+						spimData.getSequenceDescription().getImgLoader(),
+						registrations,
+						spimData.getViewInterestPoints().getViewInterestPoints(),
+						spimData.getSequenceDescription().getViewDescriptions(),
+						group.getViews(),
+						viewsToUse,
+						fusion.getNonRigidParameters().getLabels(),
+						fusion.getFusionType(),
+						fusion.getNonRigidParameters().showDistanceMap(),
+						Util.getArrayFromValue( fusion.getNonRigidParameters().getControlPointDistance(), 3 ),
+						fusion.getNonRigidParameters().getAlpha(),
+						false,
+						fusion.getAnisotropyFactor(),
+						fusion.getInterpolation(),
+						fusion.adjustIntensities() ? spimData.getIntensityAdjustments().getIntensityAdjustments() : null,
+						taskExecutor,
+						fusion.getBoundingBox(),
+						(RealType & NativeType)type,
+						blocksize,
+						ModelGridStore.persistGrids ? new ModelGridStore( spimData.getBasePathURI() ) : null );
 
 				// TODO: replace with LazyAffineFusion and varying blocksizes depending on the task
 				/*
@@ -282,8 +312,40 @@ public class Image_Fusion implements PlugIn
 			}
 
 			final String title = getTitle( fusion.getSplittingType(), group );
-	
-			if ( !exporter.exportImage(
+
+			if ( groupExecutor != null )
+			{
+				// wait until one of the running groups is done
+				groupSlots.acquireUninterruptibly();
+
+				// setting up datasets and metadata is sequential, computing and writing the blocks is not
+				final Callable< Boolean > export = ((ConcurrentImgExport)exporter).prepareExport(
+						supplier,
+						fusion.getBoundingBox(),
+						fusion.getDownsampling(),
+						fusion.getAnisotropyFactor(),
+						title,
+						group );
+
+				if ( export == null )
+				{
+					groupExecutor.shutdown();
+					return false;
+				}
+
+				groupExports.add( groupExecutor.submit( () ->
+				{
+					try
+					{
+						return export.call();
+					}
+					finally
+					{
+						groupSlots.release();
+					}
+				}) );
+			}
+			else if ( !exporter.exportImage(
 					supplier,
 					fusion.getBoundingBox(),
 					fusion.getDownsampling(),
@@ -293,6 +355,30 @@ public class Image_Fusion implements PlugIn
 				return false;
 		}
 
+		if ( groupExecutor != null )
+		{
+			boolean success = true;
+
+			for ( final Future< Boolean > f : groupExports )
+			{
+				try
+				{
+					success &= f.get();
+				}
+				catch ( InterruptedException | ExecutionException e )
+				{
+					IOFunctions.println( "Failed to export group: " + e );
+					e.printStackTrace();
+					success = false;
+				}
+			}
+
+			groupExecutor.shutdown();
+
+			if ( !success )
+				return false;
+		}
+
 		exporter.finish();
 		
 		taskExecutor.shutdown();
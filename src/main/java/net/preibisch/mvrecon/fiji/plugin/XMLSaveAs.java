@@ -23,6 +23,7 @@
 package net.preibisch.mvrecon.fiji.plugin;
 
 import java.net.URI;
+import java.util.ArrayList;
 
 import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.img.n5.N5ImageLoader;
@@ -33,6 +34,7 @@ import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.mvrecon.fiji.plugin.queryXML.LoadParseQueryXML;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoints;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import util.URITools;
 
@@ -96,10 +98,14 @@ public class XMLSaveAs implements PlugIn
 		data.setBasePathURI( newBaseDir );
 
 		// make sure interestpoints are saved to the new location as well
+		final ArrayList< InterestPoints > lists = new ArrayList<>();
+		data.getViewInterestPoints().getViewInterestPoints().values().forEach( vipl -> lists.addAll( vipl.getHashMap().values() ) );
+		InterestPoints.loadConcurrently( lists, true, true );
+
 		for ( final ViewInterestPointLists vipl : data.getViewInterestPoints().getViewInterestPoints().values() )
 			vipl.getHashMap().values().forEach( ipl ->
 			{
-				// first load
+				// first load (already loaded concurrently above)
 				ipl.getInterestPointsCopy();
 				ipl.getCorrespondingInterestPointsCopy();
 
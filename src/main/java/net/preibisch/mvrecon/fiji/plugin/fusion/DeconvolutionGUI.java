@@ -26,6 +26,8 @@ import java.awt.Choice;
 import java.awt.Label;
 import java.awt.TextField;
 import java.io.File;
+import java.io.IOException;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -62,17 +64,21 @@ import net.preibisch.mvrecon.process.cuda.CUDAFourierConvolution;
 import net.preibisch.mvrecon.process.cuda.CUDATools;
 import net.preibisch.mvrecon.process.cuda.NativeLibraryTools;
 import net.preibisch.mvrecon.process.deconvolution.DeconViewPSF.PSFTYPE;
+import net.preibisch.mvrecon.process.deconvolution.DeconvolutionCheckpoint;
 import net.preibisch.mvrecon.process.deconvolution.MultiViewDeconvolution;
 import net.preibisch.mvrecon.process.deconvolution.init.PsiInit.PsiInitType;
 import net.preibisch.mvrecon.process.deconvolution.init.PsiInitAvgApproxFactory;
 import net.preibisch.mvrecon.process.deconvolution.init.PsiInitAvgPreciseFactory;
 import net.preibisch.mvrecon.process.deconvolution.init.PsiInitBlurredFusedFactory;
 import net.preibisch.mvrecon.process.deconvolution.init.PsiInitFactory;
+import net.preibisch.mvrecon.process.deconvolution.init.PsiInitFromCheckpointFactory;
 import net.preibisch.mvrecon.process.deconvolution.init.PsiInitFromFileFactory;
 import net.preibisch.mvrecon.process.deconvolution.iteration.ComputeBlockThreadFactory;
 import net.preibisch.mvrecon.process.deconvolution.iteration.mul.ComputeBlockMulThreadCPUFactory;
 import net.preibisch.mvrecon.process.deconvolution.iteration.sequential.ComputeBlockSeqThreadCPUFactory;
 import net.preibisch.mvrecon.process.deconvolution.iteration.sequential.ComputeBlockSeqThreadCUDAFactory;
+import net.preibisch.mvrecon.process.deconvolution.util.BlockSizeAutotuner;
+import net.preibisch.mvrecon.process.deconvolution.util.N5ScratchImgFactory;
 import net.preibisch.mvrecon.process.downsampling.DownsampleTools;
 import net.preibisch.mvrecon.process.export.DisplayImage;
 import net.preibisch.mvrecon.process.export.ExportN5Api;
@@ -83,6 +89,7 @@ import net.preibisch.mvrecon.process.fusion.FusionTools.ImgDataType;
 import net.preibisch.mvrecon.process.fusion.intensityadjust.IntensityAdjustmentTools;
 import net.preibisch.mvrecon.process.fusion.transformed.TransformVirtual;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import util.URITools;
 
 public class DeconvolutionGUI implements FusionExportInterface
 {
@@ -119,7 +126,13 @@ public class DeconvolutionGUI implements FusionExportInterface
 			"in 768x768x768 blocks",
 			"in 1024x1024x1024 blocks",
 			"specify maximal blocksize manually",
-			"one block (??????x??????x??????) for the entire image" };
+			"one block (??????x??????x??????) for the entire image",
+			"automatically (fast FFT sizes, fitting into memory)" };
+
+	public static String[] precomputeBlocksChoice = new String[]{
+			"Read from input images in every iteration",
+			"Precompute once (32-bit)",
+			"Precompute once (16-bit, quantized)" };
 
 	public static String[] psfTypeChoice = new String[]{
 		"Efficient Bayesian - Optimization II (very fast, imprecise)", 
@@ -131,7 +144,8 @@ public class DeconvolutionGUI implements FusionExportInterface
 			"Blurred, fused image (suggested, higher compute effort)",
 			"Average intensity (higer compute effort)",
 			"Approximated average intensity (fast option)",
-			"From TIFF file (dimensions must match bounding box)" };
+			"From TIFF file (dimensions must match bounding box)",
+			"Resume from checkpoint (N5 container)" };
 
 	public static String[] splittingTypes = new String[]{
 			"Each timepoint & channel",
@@ -169,6 +183,11 @@ public class DeconvolutionGUI implements FusionExportInterface
 	public static int defaultSplittingType = 0;
 	public static int defaultImgExportAlgorithm = 0;
 	public static String defaultPsiStartFile = "";
+	public static boolean defaultOutOfCore = false;
+	public static int defaultPrecomputeBlocks = 0;
+	public static boolean defaultWriteCheckpoints = false;
+	public static String defaultCheckpointContainer = "";
+	public static int defaultCheckpointInterval = 5;
 	public static boolean defaultPreciseAvgMax = true;
 
 
@@ -208,6 +227,13 @@ public class DeconvolutionGUI implements FusionExportInterface
 	protected long[] maxBlock = null;
 	protected String psiStartFile = "";
 	protected boolean preciseAvgMax = true;
+	protected boolean outOfCore = defaultOutOfCore;
+	protected String scratchDirectory = N5ScratchImgFactory.defaultScratchDirectory;
+	protected int scratchCacheSizeMB = N5ScratchImgFactory.defaultCacheSizeMB;
+	protected boolean writeCheckpoints = defaultWriteCheckpoints;
+	protected int precomputeBlocks = defaultPrecomputeBlocks;
+	protected String checkpointContainer = defaultCheckpointContainer;
+	protected int checkpointInterval = defaultCheckpointInterval;
 
 	protected NonRigidParametersGUI nrgui;
 
@@ -299,6 +325,25 @@ public class DeconvolutionGUI implements FusionExportInterface
 	public ImgFactory< FloatType > getBlockFactory() { return blockFactory; }
 	public ImgFactory< FloatType > getPsiFactory() { return psiFactory; }
 	public ImgFactory< FloatType > getCopyFactory() { return copyFactory; }
+	public boolean isOutOfCore() { return outOfCore; }
+
+	/**
+	 * Deletes the out-of-core images of the last group (psi, precomputed inputs and weights), if out-of-core is used.
+	 */
+	public void clearScratch()
+	{
+		if ( N5ScratchImgFactory.class.isInstance( psiFactory ) )
+			((N5ScratchImgFactory)psiFactory).clear();
+	}
+
+	/**
+	 * Deletes the out-of-core scratch container, if out-of-core is used.
+	 */
+	public void closeScratch()
+	{
+		if ( N5ScratchImgFactory.class.isInstance( psiFactory ) )
+			((N5ScratchImgFactory)psiFactory).close();
+	}
 	public ComputeBlockThreadFactory< ? > getComputeBlockThreadFactory() { return computeFactory; }
 	public boolean isMultiplicative() { return mul; } //TODO: maybe this actually multiplicative (cannot remove remove blocks, psf must be the same size)
 	public float getBlendingRange() { return blendingRange; }
@@ -307,7 +352,34 @@ public class DeconvolutionGUI implements FusionExportInterface
 	public boolean groupTiles() { return groupTiles; }
 	public boolean groupIllums() { return groupIllums; }
 	public NonRigidParametersGUI getNonRigidParameters() { return nrgui; }
+	public boolean precomputeBlocks() { return precomputeBlocks > 0; }
+	public boolean quantizePrecomputedBlocks() { return precomputeBlocks == 2; }
+	public boolean writeCheckpoints() { return writeCheckpoints; }
+	public int getCheckpointInterval() { return checkpointInterval; }
+	public URI getCheckpointContainer() { return URITools.toURI( checkpointContainer ); }
+
+	/**
+	 * @param checkpointGroup - the group of the deconvolved image in the checkpoint container
+	 * @return the checkpoint writer for this image, or null if no checkpoints are written
+	 */
+	public DeconvolutionCheckpoint getCheckpoint( final String checkpointGroup )
+	{
+		if ( !writeCheckpoints )
+			return null;
+
+		return new DeconvolutionCheckpoint( getCheckpointContainer(), checkpointGroup, checkpointInterval );
+	}
+
 	public PsiInitFactory getPsiInitFactory()
+	{
+		return getPsiInitFactory( null );
+	}
+
+	/**
+	 * @param checkpointGroup - the group of the deconvolved image in the checkpoint container (if resuming from a checkpoint)
+	 * @return the factory
+	 */
+	public PsiInitFactory getPsiInitFactory( final String checkpointGroup )
 	{
 		final PsiInitType psiInitType = PsiInitType.values()[ psiInit ];
 
@@ -317,6 +389,8 @@ public class DeconvolutionGUI implements FusionExportInterface
 			return new PsiInitAvgPreciseFactory();
 		else if ( psiInitType == PsiInitType.APPROX_AVG )
 			return new PsiInitAvgApproxFactory();
+		else if ( psiInitType == PsiInitType.FROM_CHECKPOINT )
+			return new PsiInitFromCheckpointFactory( getCheckpointContainer(), checkpointGroup );
 		else
 			return new PsiInitFromFileFactory( new File( psiStartFile ), preciseAvgMax );
 	}
@@ -377,6 +451,7 @@ public class DeconvolutionGUI implements FusionExportInterface
 		gd.addNumericField( "OSEM_acceleration", defaultOsemSpeedup, 1 );
 		gd.addNumericField( "Number_of_iterations", defaultNumIterations, 0 );
 		gd.addCheckbox( "Debug_mode", defaultDebugMode );
+		gd.addCheckbox( "Write_checkpoints (to resume after a crash)", defaultWriteCheckpoints );
 		gd.addCheckbox( "Use_Tikhonov_regularization", defaultUseTikhonovRegularization );
 		gd.addNumericField( "Tikhonov_parameter", defaultLambda, 4 );
 
@@ -386,7 +461,9 @@ public class DeconvolutionGUI implements FusionExportInterface
 		if ( !PluginHelper.isHeadless() ) blockChoice = (Choice)gd.getChoices().lastElement();
 		gd.addChoice( "Compute_on", computationOnChoice, computationOnChoice[ defaultComputeOnIndex ] );
 		if ( !PluginHelper.isHeadless() ) computeOnChoice = (Choice)gd.getChoices().lastElement();
+		gd.addChoice( "Input_blocks", precomputeBlocksChoice, precomputeBlocksChoice[ defaultPrecomputeBlocks ] );
 		gd.addCheckbox( "Adjust_blending & grouping parameters", defaultAdjustBlending );
+		gd.addCheckbox( "Out-of-core (deconvolved & precomputed images on scratch disk)", defaultOutOfCore );
 
 		gd.addMessage( "" );
 
@@ -443,11 +520,14 @@ public class DeconvolutionGUI implements FusionExportInterface
 		osemSpeedup = defaultOsemSpeedup = gd.getNextNumber();
 		numIterations = defaultNumIterations = (int)Math.round( gd.getNextNumber() );
 		debugMode = defaultDebugMode = gd.getNextBoolean();
+		writeCheckpoints = defaultWriteCheckpoints = gd.getNextBoolean();
 		useTikhonov = defaultUseTikhonovRegularization = gd.getNextBoolean();
 		lambda = defaultLambda = gd.getNextNumber();
 		blockSizeIndex = defaultBlockSizeIndex = gd.getNextChoiceIndex();
 		computeOnIndex = defaultComputeOnIndex = gd.getNextChoiceIndex();
+		precomputeBlocks = defaultPrecomputeBlocks = gd.getNextChoiceIndex();
 		adjustBlending = defaultAdjustBlending = gd.getNextBoolean();
+		outOfCore = defaultOutOfCore = gd.getNextBoolean();
 		splittingType = defaultSplittingType = gd.getNextChoiceIndex();
 		imgExport = defaultImgExportAlgorithm = gd.getNextChoiceIndex();
 
@@ -470,11 +550,36 @@ public class DeconvolutionGUI implements FusionExportInterface
 		if ( !getDebug() )
 			return false;
 
+		if ( writeCheckpoints || PsiInitType.values()[ psiInit ] == PsiInitType.FROM_CHECKPOINT )
+		{
+			if ( !getCheckpoints() )
+				return false;
+		}
+
 		if ( !getBlocks() )
 			return false;
 
-		psiFactory = new CellImgFactory<>( psiCopyBlockSize );
-		copyFactory = new CellImgFactory<>( psiCopyBlockSize );
+		if ( outOfCore )
+		{
+			if ( !getOutOfCore() )
+				return false;
+
+			try
+			{
+				// psi, input images and weights share one scratch container
+				psiFactory = copyFactory = new N5ScratchImgFactory( scratchDirectory, psiCopyBlockSize, scratchCacheSizeMB );
+			}
+			catch ( IOException e )
+			{
+				IOFunctions.println( "ERROR: Could not create scratch container in '" + scratchDirectory + "': " + e );
+				return false;
+			}
+		}
+		else
+		{
+			psiFactory = new CellImgFactory<>( psiCopyBlockSize );
+			copyFactory = new CellImgFactory<>( psiCopyBlockSize );
+		}
 
 		if ( !getBlendingAndGrouping() )
 			return false;
@@ -496,6 +601,10 @@ public class DeconvolutionGUI implements FusionExportInterface
 		IOFunctions.println( "Num Iterations: " + numIterations );
 		IOFunctions.println( "Debug Mode: " + debugMode );
 		if ( debugMode ) IOFunctions.println( "DebugInterval: " + debugInterval );
+		IOFunctions.println( "Input blocks: " + precomputeBlocksChoice[ precomputeBlocks ] );
+		IOFunctions.println( "Write checkpoints: " + writeCheckpoints );
+		if ( writeCheckpoints || PsiInitType.values()[ psiInit ] == PsiInitType.FROM_CHECKPOINT ) IOFunctions.println( "Checkpoint container: " + checkpointContainer );
+		if ( writeCheckpoints ) IOFunctions.println( "Checkpoint interval: " + checkpointInterval );
 		IOFunctions.println( "use Tikhonov: " + useTikhonov );
 		if ( useTikhonov ) IOFunctions.println( "Tikhonov Lambda: " + lambda );
 		IOFunctions.println( "Compute block size: " + Util.printCoordinates( blockSize ) );
@@ -503,6 +612,8 @@ public class DeconvolutionGUI implements FusionExportInterface
 		IOFunctions.println( "Cache block size: " + cacheBlockSize );
 		IOFunctions.println( "Cache max num blocks: " + cacheMaxNumBlocks );
 		IOFunctions.println( "Deconvolved/Copy block size: " + psiCopyBlockSize );
+		IOFunctions.println( "Out-of-core: " + outOfCore );
+		if ( outOfCore ) IOFunctions.println( "Scratch directory: " + scratchDirectory + ", cache size per image: " + scratchCacheSizeMB + " MB" );
 		IOFunctions.println( "Compute on: " + computationOnChoice[ computeOnIndex ] );
 		IOFunctions.println( "ComputeBlockThread Factory: " + computeFactory.getClass().getSimpleName() + ": " + computeFactory );
 		IOFunctions.println( "Blending range: " + blendingRange );
@@ -579,6 +690,49 @@ public class DeconvolutionGUI implements FusionExportInterface
 		return true;
 	}
 
+	protected boolean getOutOfCore()
+	{
+		final GenericDialogPlus gd = new GenericDialogPlus( "Out-of-core deconvolution" );
+		gd.addDirectoryField( "Scratch_directory", N5ScratchImgFactory.defaultScratchDirectory, 80 );
+		gd.addNumericField( "Memory_cache_per_image (MB)", N5ScratchImgFactory.defaultCacheSizeMB, 0 );
+		gd.addMessage( "Note: the deconvolved image and all input & weight images set to 'precompute' are stored\n"
+				+ "in a temporary N5 container on this (local, fast) disk, only the cache is kept in memory.", GUIHelper.smallStatusFont );
+
+		gd.showDialog();
+
+		if ( gd.wasCanceled() )
+			return false;
+
+		scratchDirectory = N5ScratchImgFactory.defaultScratchDirectory = gd.getNextString();
+		scratchCacheSizeMB = N5ScratchImgFactory.defaultCacheSizeMB = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
+
+		return true;
+	}
+
+	protected boolean getCheckpoints()
+	{
+		final GenericDialogPlus gd = new GenericDialogPlus( "Checkpoints" );
+		gd.addDirectoryField( "Checkpoint_container (N5)", defaultCheckpointContainer, 80 );
+
+		if ( writeCheckpoints )
+			gd.addNumericField( "Save_checkpoint every n'th iteration, n = ", defaultCheckpointInterval, 0 );
+
+		gd.addMessage( "Note: one group per deconvolved image is used, resuming continues with the iteration\n"
+				+ "after the last saved checkpoint (with the same parameters & bounding box).", GUIHelper.smallStatusFont );
+
+		gd.showDialog();
+
+		if ( gd.wasCanceled() )
+			return false;
+
+		checkpointContainer = defaultCheckpointContainer = gd.getNextString();
+
+		if ( writeCheckpoints )
+			checkpointInterval = defaultCheckpointInterval = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
+
+		return true;
+	}
+
 	protected boolean getDebug()
 	{
 		if ( debugMode )
@@ -666,6 +820,29 @@ public class DeconvolutionGUI implements FusionExportInterface
 				this.cacheMaxNumBlocks = defaultCacheMaxNumBlocks = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
 			}
 		}
+		else if ( blockSizeIndex == 6 )
+		{
+			final long[] psiSize = getDownsampledBoundingBox().dimensionsAsLongArray();
+			final long[] psfSize = maxDimPSF.clone();
+
+			// the PSFs are downsampled as well
+			if ( !Double.isNaN( downsampling ) )
+				for ( int d = 0; d < psfSize.length; ++d )
+					psfSize[ d ] = Math.max( 1, Math.round( psfSize[ d ] / downsampling ) ) | 1;
+
+			final BlockSizeAutotuner.Estimate estimate = BlockSizeAutotuner.autotune(
+					psiSize,
+					psfSize,
+					ManageDeconvolutionDialogListeners.maxNumGroups( spimData, views, this, splittingType ),
+					1,
+					(long)( Runtime.getRuntime().maxMemory() * BlockSizeAutotuner.defaultMemoryFraction ),
+					computeOnIndex == 1 );
+
+			if ( estimate == null )
+				return false;
+
+			this.blockSize = estimate.blockSize;
+		}
 		else
 		{
 			this.blockSize = new int[]{ (int)maxBlock[ 0 ], (int)maxBlock[ 1 ], (int)maxBlock[ 2 ] };
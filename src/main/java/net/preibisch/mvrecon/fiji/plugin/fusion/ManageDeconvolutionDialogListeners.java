@@ -128,7 +128,7 @@ public class ManageDeconvolutionDialogListeners
 		{
 			decon.maxBlock = maxBlock();
 			blockChoice.remove( 5 );
-			blockChoice.add( "one block " + Util.printCoordinates( decon.maxBlock ) + " for the entire image" );
+			blockChoice.insert( "one block " + Util.printCoordinates( decon.maxBlock ) + " for the entire image", 5 );
 			blockChoice.select( decon.blockSizeIndex );
 		}
 		boundingBoxOld = decon.boundingBox;
@@ -237,7 +237,7 @@ public class ManageDeconvolutionDialogListeners
 			blockPixels = Util.pow( 768, 3 );
 		else if ( decon.blockSizeIndex == 3 )
 			blockPixels = Util.pow( 1024, 3 );
-		else if ( decon.blockSizeIndex == 4 )
+		else if ( decon.blockSizeIndex == 4 || decon.blockSizeIndex == 6 )
 			return -1; // unknown
 		else
 			blockPixels = decon.maxBlock[ 0 ] * decon.maxBlock[ 1 ] * decon.maxBlock[ 2 ];
@@ -26,8 +26,8 @@ import java.util.HashMap;
 
 import net.preibisch.mvrecon.fiji.plugin.interestpointregistration.pairwise.PairwiseGUI;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.overlap.AllAgainstAllOverlap;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.overlap.BoundingBoxTreeOverlap;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.overlap.OverlapDetection;
-import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.overlap.SimpleBoundingBoxOverlap;
 
 import mpicbg.spim.data.SpimData;
 import mpicbg.spim.data.sequence.ViewId;
@@ -66,6 +66,6 @@ public class BasicRegistrationParameters
 		if ( overlapType == OverlapType.ALL_AGAINST_ALL )
 			return new AllAgainstAllOverlap<>( 3 );
 		else
-			return new SimpleBoundingBoxOverlap<>( spimData );
+			return new BoundingBoxTreeOverlap<>( spimData );
 	}
 }
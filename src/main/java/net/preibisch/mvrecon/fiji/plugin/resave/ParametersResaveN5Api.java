@@ -51,6 +51,7 @@ public class ParametersResaveN5Api
 
 	public static int defaultFormat = 0; // ZARR
 	public static int defaultNumThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() - 1 );
+	public static boolean defaultResume = false;
 
 	public URI xmlURI, n5URI;
 
@@ -61,6 +62,7 @@ public class ParametersResaveN5Api
 	public Compression compression;
 	public StorageFormat format = StorageFormat.ZARR;
 	public int numCellCreatorThreads = 1;
+	public boolean resume = false; // skip blocks that the journal in the N5/ZARR container lists as written
 
 	public static URI createN5URIfromXMLURI( final URI xmlURI )
 	{
@@ -153,6 +155,7 @@ public class ParametersResaveN5Api
 				+ "For optimal performance, the size in XY is as large as each XY plane, as usually entire planes must be read.", GUIHelper.smallStatusFont );
 		gdp.addMessage( "Max dimensions of the images that will be re-saved: " + Arrays.toString( maxDimensions ), GUIHelper.smallStatusFont, Color.red );
 		gdp.addNumericField( "Number_of_threads (CPUs:" + Runtime.getRuntime().availableProcessors() + ")", defaultNumThreads, 0 );
+		gdp.addCheckbox( "Resume_previous_resave (N5/OME-ZARR only, skips blocks already written)", defaultResume );
 
 		if ( askForPaths )
 		{
@@ -180,6 +183,7 @@ public class ParametersResaveN5Api
 
 		n5params.blockSizeFactor = new int[] { blockSizeFactorX, blockSizeFactorY, blockSizeFactorZ };
 		n5params.numCellCreatorThreads = defaultNumThreads = Math.max( 1, (int)Math.round( gdp.getNextNumber() ) );
+		n5params.resume = defaultResume = gdp.getNextBoolean();
 
 		if ( askForPaths )
 		{
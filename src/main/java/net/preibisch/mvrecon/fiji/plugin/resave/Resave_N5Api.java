@@ -62,6 +62,7 @@ import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.imgloaders.AllenOMEZarrLoader;
 import net.preibisch.mvrecon.fiji.spimdata.imgloaders.AllenOMEZarrLoader.OMEZARREntry;
+import net.preibisch.mvrecon.process.export.BlockJournal;
 import net.preibisch.mvrecon.process.export.RetryTracker;
 import net.preibisch.mvrecon.process.n5api.N5ApiTools;
 import net.preibisch.mvrecon.process.n5api.N5ApiTools.MultiResolutionLevelInfo;
@@ -140,7 +141,7 @@ public class Resave_N5Api implements PlugIn
 		final int[][] downsamplings =
 				N5ApiTools.mipMapInfoToDownsamplings( n5Params.proposedMipmaps );
 
-		final List<long[][]> gridS0 =
+		final List<long[][]> allBlocksS0 =
 				vidsToResave.stream().map( viewId ->
 						N5ApiTools.assembleJobs(
 								viewId,
@@ -204,6 +205,38 @@ public class Resave_N5Api implements PlugIn
 						} ).collect(Collectors.toMap( e -> e.getA(), e -> e.getB() ));
 
 		IOFunctions.println( "Created BDV-metadata, took: " + (System.currentTimeMillis() - time ) + " ms." );
+
+		// journal of written blocks for each ViewId and level, stored in the container so a resave that died can be resumed
+		final Map< ViewId, BlockJournal[] > viewIdToJournals = new HashMap<>();
+
+		if ( n5Params.format == StorageFormat.N5 || n5Params.format == StorageFormat.ZARR )
+		{
+			viewIdToMrInfo.forEach( (viewId, mrInfo) ->
+			{
+				final BlockJournal[] journals = new BlockJournal[ mrInfo.length ];
+
+				for ( int level = 0; level < mrInfo.length; ++level )
+					journals[ level ] = BlockJournal.open(
+							n5Writer,
+							mrInfo[ level ].dataset,
+							mrInfo[ level ].dimensions,
+							blockSize,
+							level == 0 ? computeBlockSize : blockSize,
+							n5Params.resume );
+
+				viewIdToJournals.put( viewId, journals );
+			});
+		}
+		else if ( n5Params.resume )
+		{
+			IOFunctions.println( "Resuming is not supported for " + n5Params.format + ", writing all blocks." );
+		}
+
+		final List<long[][]> gridS0 = incompleteBlocks( allBlocksS0, viewIdToJournals, 0 );
+
+		if ( gridS0.size() < allBlocksS0.size() )
+			IOFunctions.println( "Resuming, skipping " + ( allBlocksS0.size() - gridS0.size() ) + " compute blocks (s0) that were already written." );
+
 		IOFunctions.println( "Number of compute blocks (s0): " + gridS0.size() );
 
 		final AtomicInteger progress = new AtomicInteger( 0 );
@@ -237,6 +270,8 @@ public class Resave_N5Api implements PlugIn
 								N5ApiTools.gridToDatasetBdv( 0, n5Params.format ), // a function mapping the gridblock to the dataset name for level 0 and N5
 								gridBlock );
 
+						markComplete( gridBlock, viewIdToJournals, 0 );
+
 						IJ.showProgress( progress.incrementAndGet(), gridS0.size() );
 
 						return gridBlock.clone();
@@ -284,6 +319,8 @@ public class Resave_N5Api implements PlugIn
 			return null;
 		}
 
+		viewIdToJournals.values().forEach( journals -> journals[ 0 ].flush() );
+
 		IJ.showProgress( progress.getAndSet( 0 ), gridS0.size() );
 		IOFunctions.println( "Saved level s0, took: " + (System.currentTimeMillis() - time ) + " ms." );
 
@@ -295,11 +332,13 @@ public class Resave_N5Api implements PlugIn
 			final int s = level;
 			IOFunctions.println( "Downsampling level s" + s + "... " );
 
-			final List<long[][]> allBlocks =
+			final List<long[][]> allBlocks = incompleteBlocks(
 					vidsToResave.stream().map( viewId ->
 							N5ApiTools.assembleJobs(
 									viewId,
-									viewIdToMrInfo.get(viewId)[s] )).flatMap(List::stream).collect( Collectors.toList() );
+									viewIdToMrInfo.get(viewId)[s] )).flatMap(List::stream).collect( Collectors.toList() ),
+					viewIdToJournals,
+					s );
 
 			time = System.currentTimeMillis();
 
@@ -341,6 +380,8 @@ public class Resave_N5Api implements PlugIn
 									gridBlock );
 							}
 
+							markComplete( gridBlock, viewIdToJournals, s );
+
 							IJ.showProgress( progress.incrementAndGet(), allBlocks.size() );
 
 							return gridBlock.clone();
@@ -404,6 +445,8 @@ public class Resave_N5Api implements PlugIn
 				return null;
 			}
 
+			viewIdToJournals.values().forEach( journals -> journals[ s ].flush() );
+
 			IJ.showProgress( progress.getAndSet( 0 ), allBlocks.size() );
 			IOFunctions.println( "Resaved " + n5Params.format + " s" + s + " level, took: " + (System.currentTimeMillis() - time ) + " ms." );
 		}
@@ -460,6 +503,27 @@ public class Resave_N5Api implements PlugIn
 		return sdReduced;
 	}
 
+	protected static List<long[][]> incompleteBlocks(
+			final List<long[][]> grid,
+			final Map< ViewId, BlockJournal[] > viewIdToJournals,
+			final int level )
+	{
+		if ( viewIdToJournals.isEmpty() )
+			return grid;
+
+		return grid.stream().filter( gridBlock ->
+				!viewIdToJournals.get( N5ApiTools.gridBlockToViewId( gridBlock ) )[ level ].isComplete( gridBlock ) ).collect( Collectors.toList() );
+	}
+
+	protected static void markComplete(
+			final long[][] gridBlock,
+			final Map< ViewId, BlockJournal[] > viewIdToJournals,
+			final int level )
+	{
+		if ( !viewIdToJournals.isEmpty() )
+			viewIdToJournals.get( N5ApiTools.gridBlockToViewId( gridBlock ) )[ level ].markComplete( gridBlock );
+	}
+
 	public static void main(String[] args)
 	{
 		List<long[][]> grid = Grid.create( new long[] { 500, 500 }, new int[] { 400, 400 }, new int[] { 200, 200 } );
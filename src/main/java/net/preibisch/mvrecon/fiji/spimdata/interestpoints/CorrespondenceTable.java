@@ -0,0 +1,177 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.fiji.spimdata.interestpoints;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+import mpicbg.spim.data.sequence.ViewId;
+
+/**
+ * Structure-of-arrays representation of the corresponding interest points of one view and label. Each
+ * correspondence is stored as three ints (detection id, corresponding detection id, target index), where each
+ * distinct target (corresponding {@link ViewId} and label) is stored only once. The table is not modified after
+ * creation; {@link #asList()} is a lazy adapter for code that needs {@link CorrespondingInterestPoints} objects.
+ */
+public class CorrespondenceTable implements Serializable
+{
+	private static final long serialVersionUID = 6034521876143215905L;
+
+	final int[] detectionIds, correspondingDetectionIds, targets;
+	final int[] targetTimepoints, targetSetups;
+	final String[] targetLabels;
+
+	/**
+	 * @param detectionIds - the detection id in this view for each correspondence (not copied)
+	 * @param correspondingDetectionIds - the detection id in the corresponding view for each correspondence (not copied)
+	 * @param targets - the index of the target (view, label) for each correspondence (not copied)
+	 * @param targetTimepoints - the timepoint id of each target (not copied)
+	 * @param targetSetups - the setup id of each target (not copied)
+	 * @param targetLabels - the label of each target (not copied)
+	 */
+	public CorrespondenceTable(
+			final int[] detectionIds,
+			final int[] correspondingDetectionIds,
+			final int[] targets,
+			final int[] targetTimepoints,
+			final int[] targetSetups,
+			final String[] targetLabels )
+	{
+		if ( detectionIds.length != correspondingDetectionIds.length || detectionIds.length != targets.length )
+			throw new RuntimeException( "Number of detection ids, corresponding detection ids and targets does not match." );
+
+		if ( targetTimepoints.length != targetSetups.length || targetTimepoints.length != targetLabels.length )
+			throw new RuntimeException( "Number of target timepoints, setups and labels does not match." );
+
+		this.detectionIds = detectionIds;
+		this.correspondingDetectionIds = correspondingDetectionIds;
+		this.targets = targets;
+		this.targetTimepoints = targetTimepoints;
+		this.targetSetups = targetSetups;
+		this.targetLabels = targetLabels;
+	}
+
+	public static CorrespondenceTable empty()
+	{
+		return new CorrespondenceTable( new int[ 0 ], new int[ 0 ], new int[ 0 ], new int[ 0 ], new int[ 0 ], new String[ 0 ] );
+	}
+
+	/**
+	 * @param correspondences - the corresponding interest points
+	 * @return a new table
+	 */
+	public static CorrespondenceTable fromCollection( final Collection< ? extends CorrespondingInterestPoints > correspondences )
+	{
+		if ( correspondences == null || correspondences.size() == 0 )
+			return empty();
+
+		final int size = correspondences.size();
+		final int[] detectionIds = new int[ size ];
+		final int[] correspondingDetectionIds = new int[ size ];
+		final int[] targets = new int[ size ];
+
+		// assign each (timepoint, setup, label) an index
+		final HashMap< ViewId, HashMap< String, Integer > > targetLookup = new HashMap<>();
+		final HashMap< Integer, CorrespondingInterestPoints > firstOfTarget = new HashMap<>();
+
+		int i = 0;
+
+		for ( final CorrespondingInterestPoints cip : correspondences )
+		{
+			final HashMap< String, Integer > labels = targetLookup.computeIfAbsent( new ViewId( cip.correspondingViewIdTP, cip.correspondingViewIdSetup ), v -> new HashMap<>() );
+
+			Integer target = labels.get( cip.correspondingLabel );
+
+			if ( target == null )
+			{
+				target = firstOfTarget.size();
+				labels.put( cip.correspondingLabel, target );
+				firstOfTarget.put( target, cip );
+			}
+
+			detectionIds[ i ] = cip.detectionId;
+			correspondingDetectionIds[ i ] = cip.correspondingDetectionId;
+			targets[ i ] = target;
+			++i;
+		}
+
+		final int numTargets = firstOfTarget.size();
+		final int[] targetTimepoints = new int[ numTargets ];
+		final int[] targetSetups = new int[ numTargets ];
+		final String[] targetLabels = new String[ numTargets ];
+
+		for ( int t = 0; t < numTargets; ++t )
+		{
+			final CorrespondingInterestPoints cip = firstOfTarget.get( t );
+			targetTimepoints[ t ] = cip.correspondingViewIdTP;
+			targetSetups[ t ] = cip.correspondingViewIdSetup;
+			targetLabels[ t ] = cip.correspondingLabel;
+		}
+
+		return new CorrespondenceTable( detectionIds, correspondingDetectionIds, targets, targetTimepoints, targetSetups, targetLabels );
+	}
+
+	public int size() { return detectionIds.length; }
+
+	public int getDetectionId( final int index ) { return detectionIds[ index ]; }
+	public int getCorrespondingDetectionId( final int index ) { return correspondingDetectionIds[ index ]; }
+	public int getTarget( final int index ) { return targets[ index ]; }
+
+	public int numTargets() { return targetLabels.length; }
+	public ViewId getTargetViewId( final int target ) { return new ViewId( targetTimepoints[ target ], targetSetups[ target ] ); }
+	public int getTargetTimepointId( final int target ) { return targetTimepoints[ target ]; }
+	public int getTargetViewSetupId( final int target ) { return targetSetups[ target ]; }
+	public String getTargetLabel( final int target ) { return targetLabels[ target ]; }
+
+	/**
+	 * @param index - the index in the table
+	 * @return a new {@link CorrespondingInterestPoints} instance
+	 */
+	public CorrespondingInterestPoints getCorrespondingInterestPoints( final int index )
+	{
+		final int t = targets[ index ];
+
+		return new CorrespondingInterestPoints( detectionIds[ index ], targetTimepoints[ t ], targetSetups[ t ], targetLabels[ t ], correspondingDetectionIds[ index ] );
+	}
+
+	/**
+	 * @return a lazy list view, every call of get() creates a new {@link CorrespondingInterestPoints} instance
+	 */
+	public List< CorrespondingInterestPoints > asList()
+	{
+		return new CorrespondenceList();
+	}
+
+	protected class CorrespondenceList extends AbstractList< CorrespondingInterestPoints > implements RandomAccess
+	{
+		@Override
+		public CorrespondingInterestPoints get( final int index ) { return getCorrespondingInterestPoints( index ); }
+
+		@Override
+		public int size() { return detectionIds.length; }
+	}
+}
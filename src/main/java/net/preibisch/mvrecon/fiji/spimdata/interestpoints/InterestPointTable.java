@@ -0,0 +1,272 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.fiji.spimdata.interestpoints;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Structure-of-arrays representation of the interest points of one view and label: the ids as int[] and all
+ * coordinates in one flat double[] (x0, y0, z0, x1, y1, z1, ...). This needs a fraction of the memory of one
+ * {@link InterestPoint} object per detection. The table is not modified after creation, so it can be shared
+ * without copying; {@link #asList()} and {@link #asMap()} are lazy adapters for code that needs
+ * {@link InterestPoint} objects.
+ */
+public class InterestPointTable implements Serializable
+{
+	private static final long serialVersionUID = -2418398154326742210L;
+
+	final int numDimensions;
+	final int[] ids;
+	final double[] locations;
+
+	// lazily created for lookup by id (ids sorted, and the index of each id in the table), sortedIds is written last
+	transient volatile int[] sortedIds;
+	transient int[] sortedIndices;
+
+	/**
+	 * @param numDimensions - dimensionality of the points
+	 * @param ids - the ids (not copied)
+	 * @param locations - the flat coordinates, length = ids.length * numDimensions (not copied)
+	 */
+	public InterestPointTable( final int numDimensions, final int[] ids, final double[] locations )
+	{
+		if ( (long)ids.length * numDimensions != locations.length )
+			throw new RuntimeException( "Number of coordinates (" + locations.length + ") does not match number of ids (" + ids.length + ") x dimensions (" + numDimensions + ")." );
+
+		this.numDimensions = numDimensions;
+		this.ids = ids;
+		this.locations = locations;
+	}
+
+	public static InterestPointTable empty() { return new InterestPointTable( 0, new int[ 0 ], new double[ 0 ] ); }
+
+	/**
+	 * @param points - the interest points, their local coordinates are copied
+	 * @return a new table
+	 */
+	public static InterestPointTable fromCollection( final Collection< ? extends InterestPoint > points )
+	{
+		if ( points == null || points.size() == 0 )
+			return empty();
+
+		final Iterator< ? extends InterestPoint > it = points.iterator();
+		final InterestPoint first = it.next();
+		final int n = first.getL().length;
+
+		final int[] ids = new int[ points.size() ];
+		final double[] locations = new double[ points.size() * n ];
+
+		InterestPoint ip = first;
+
+		for ( int i = 0; i < ids.length; ++i )
+		{
+			if ( i > 0 )
+				ip = it.next();
+
+			ids[ i ] = ip.getId();
+			System.arraycopy( ip.getL(), 0, locations, i * n, n );
+		}
+
+		return new InterestPointTable( n, ids, locations );
+	}
+
+	public int size() { return ids.length; }
+	public int numDimensions() { return numDimensions; }
+
+	public int getId( final int index ) { return ids[ index ]; }
+	public double getLocation( final int index, final int d ) { return locations[ index * numDimensions + d ]; }
+
+	public void localize( final int index, final double[] position )
+	{
+		System.arraycopy( locations, index * numDimensions, position, 0, numDimensions );
+	}
+
+	/**
+	 * @return the ids (not a copy, do not modify)
+	 */
+	public int[] getIds() { return ids; }
+
+	/**
+	 * @return the flat coordinates, index * numDimensions + d (not a copy, do not modify)
+	 */
+	public double[] getLocations() { return locations; }
+
+	/**
+	 * @param id - the interest point id
+	 * @return the index of the interest point in this table, or -1 if it does not exist
+	 */
+	public int indexOf( final int id )
+	{
+		int[] sorted = sortedIds;
+
+		if ( sorted == null )
+		{
+			createIndex();
+			sorted = sortedIds;
+		}
+
+		int lo = 0, hi = sorted.length - 1;
+
+		while ( lo <= hi )
+		{
+			final int mid = ( lo + hi ) >>> 1;
+
+			if ( sorted[ mid ] < id )
+				lo = mid + 1;
+			else if ( sorted[ mid ] > id )
+				hi = mid - 1;
+			else
+				return sortedIndices[ mid ];
+		}
+
+		return -1;
+	}
+
+	protected synchronized void createIndex()
+	{
+		if ( sortedIds != null )
+			return;
+
+		final int[] order = IntStream.range( 0, ids.length ).boxed().sorted( ( a, b ) -> Integer.compare( ids[ a ], ids[ b ] ) ).mapToInt( i -> i ).toArray();
+		final int[] sorted = new int[ order.length ];
+
+		for ( int i = 0; i < order.length; ++i )
+			sorted[ i ] = ids[ order[ i ] ];
+
+		this.sortedIndices = order;
+		this.sortedIds = sorted;
+	}
+
+	/**
+	 * @param index - the index in the table
+	 * @return a new {@link InterestPoint} instance
+	 */
+	public InterestPoint getInterestPoint( final int index )
+	{
+		final double[] l = new double[ numDimensions ];
+		localize( index, l );
+
+		return new InterestPoint( ids[ index ], l );
+	}
+
+	/**
+	 * @return a lazy list view, every call of get() creates a new {@link InterestPoint} instance
+	 */
+	public List< InterestPoint > asList()
+	{
+		return new InterestPointList();
+	}
+
+	/**
+	 * @return a lazy, unmodifiable map view from id to interest point, every call of get() creates a new {@link InterestPoint} instance
+	 */
+	public Map< Integer, InterestPoint > asMap()
+	{
+		return new InterestPointMap();
+	}
+
+	/**
+	 * @return a new map from id to (new) interest points, created in parallel
+	 */
+	public Map< Integer, InterestPoint > toMap()
+	{
+		return IntStream.range( 0, ids.length ).parallel().mapToObj( this::getInterestPoint ).collect( Collectors.toMap( InterestPoint::getId, ip -> ip ) );
+	}
+
+	protected class InterestPointList extends AbstractList< InterestPoint > implements RandomAccess
+	{
+		@Override
+		public InterestPoint get( final int index ) { return getInterestPoint( index ); }
+
+		@Override
+		public int size() { return ids.length; }
+	}
+
+	protected class InterestPointMap extends AbstractMap< Integer, InterestPoint >
+	{
+		@Override
+		public InterestPoint get( final Object key )
+		{
+			if ( !( key instanceof Integer ) )
+				return null;
+
+			final int index = indexOf( (Integer)key );
+
+			return index < 0 ? null : getInterestPoint( index );
+		}
+
+		@Override
+		public boolean containsKey( final Object key )
+		{
+			return key instanceof Integer && indexOf( (Integer)key ) >= 0;
+		}
+
+		@Override
+		public int size() { return ids.length; }
+
+		@Override
+		public Set< Entry< Integer, InterestPoint > > entrySet()
+		{
+			return new AbstractSet< Entry< Integer, InterestPoint > >()
+			{
+				@Override
+				public int size() { return ids.length; }
+
+				@Override
+				public Iterator< Entry< Integer, InterestPoint > > iterator()
+				{
+					return new Iterator< Entry< Integer, InterestPoint > >()
+					{
+						int i = 0;
+
+						@Override
+						public boolean hasNext() { return i < ids.length; }
+
+						@Override
+						public Entry< Integer, InterestPoint > next()
+						{
+							if ( i >= ids.length )
+								throw new NoSuchElementException();
+
+							final InterestPoint ip = getInterestPoint( i++ );
+
+							return new SimpleImmutableEntry<>( ip.getId(), ip );
+						}
+					};
+				}
+			};
+		}
+	}
+}
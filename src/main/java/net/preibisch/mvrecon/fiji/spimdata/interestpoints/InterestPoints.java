@@ -23,10 +23,16 @@
 package net.preibisch.mvrecon.fiji.spimdata.interestpoints;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import mpicbg.spim.data.sequence.ViewId;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.Threads;
 
 /**
  * A list of interest points for a certain label, can save and load from textfile as specified in the XML
@@ -66,6 +72,60 @@ public abstract class InterestPoints
 		return list;
 	}
 
+	/**
+	 * Loads the interest points and/or correspondences of many lists (e.g. all views) concurrently, so that
+	 * subsequent calls of the get methods do not need to load them one after another.
+	 *
+	 * @param lists - the interest point lists
+	 * @param interestPoints - load interest points
+	 * @param correspondences - load corresponding interest points
+	 */
+	public static void loadConcurrently( final Collection< ? extends InterestPoints > lists, final boolean interestPoints, final boolean correspondences )
+	{
+		if ( lists.size() <= 1 )
+		{
+			for ( final InterestPoints list : lists )
+			{
+				if ( interestPoints )
+					list.getInterestPointTable();
+
+				if ( correspondences )
+					list.getCorrespondenceTable();
+			}
+
+			return;
+		}
+
+		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Math.min( lists.size(), Threads.numThreads() ) );
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( final InterestPoints list : lists )
+			tasks.add( () ->
+			{
+				// the get methods are synchronized and only load if nothing is loaded yet
+				if ( interestPoints )
+					list.getInterestPointTable();
+
+				if ( correspondences )
+					list.getCorrespondenceTable();
+
+				return null;
+			});
+
+		try
+		{
+			taskExecutor.invokeAll( tasks );
+		}
+		catch ( final InterruptedException e )
+		{
+			IOFunctions.println( "Failed to load interest points concurrently: " + e );
+		}
+		finally
+		{
+			taskExecutor.shutdown();
+		}
+	}
+
 	public boolean hasModifiedInterestPoints() { return modifiedInterestPoints; }
 	public boolean hasModifiedCorrespondingInterestPoints() { return modifiedCorrespondingInterestPoints; }
 
@@ -109,6 +169,16 @@ public abstract class InterestPoints
 	 */
 	public abstract Collection< CorrespondingInterestPoints > getCorrespondingInterestPointsCopy();
 
+	/**
+	 * @return - all interest points as primitive arrays (not copied, must not be modified), tries to load from disc if null
+	 */
+	public abstract InterestPointTable getInterestPointTable();
+
+	/**
+	 * @return - all corresponding interest points as primitive arrays (not copied, must not be modified), tries to load from disc if null
+	 */
+	public abstract CorrespondenceTable getCorrespondenceTable();
+
 	public void setInterestPoints( final Collection< InterestPoint > list )
 	{
 		this.modifiedInterestPoints = true;
@@ -120,8 +190,21 @@ public abstract class InterestPoints
 		setCorrespondingInterestPointsLocal( list );
 	}
 
+	public void setInterestPointTable( final InterestPointTable table )
+	{
+		this.modifiedInterestPoints = true;
+		setInterestPointTableLocal( table );
+	}
+	public void setCorrespondenceTable( final CorrespondenceTable table )
+	{
+		this.modifiedCorrespondingInterestPoints = true;
+		setCorrespondenceTableLocal( table );
+	}
+
 	protected abstract void setInterestPointsLocal( final Collection< InterestPoint > list );
 	protected abstract void setCorrespondingInterestPointsLocal( final Collection< CorrespondingInterestPoints > list );
+	protected abstract void setInterestPointTableLocal( final InterestPointTable table );
+	protected abstract void setCorrespondenceTableLocal( final CorrespondenceTable table );
 
 	public abstract boolean saveInterestPoints( final boolean forceWrite );
 	public abstract boolean saveCorrespondingInterestPoints( final boolean forceWrite );
@@ -27,14 +27,12 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
+import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
@@ -42,13 +40,10 @@ import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.janelia.saalfeldlab.n5.universe.StorageFormat;
 
 import mpicbg.spim.data.sequence.ViewId;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.position.FunctionRandomAccessible;
 import net.imglib2.type.numeric.integer.UnsignedLongType;
 import net.imglib2.type.numeric.real.DoubleType;
-import net.imglib2.util.Pair;
-import net.imglib2.util.ValuePair;
 import net.imglib2.view.Views;
 import net.preibisch.legacy.io.IOFunctions;
 import util.URITools;
@@ -60,10 +55,9 @@ public class InterestPointsN5 extends InterestPoints
 
 	final String n5path;
 
-	int[] ids = null;
-	double[][] locations = null;
-
-	ArrayList< CorrespondingInterestPoints > correspondingInterestPoints;
+	// structure-of-arrays, much less memory than InterestPoint/CorrespondingInterestPoints objects
+	InterestPointTable interestPoints = null;
+	CorrespondenceTable correspondences = null;
 
 	protected InterestPointsN5( final URI baseDir, final String n5path )
 	{
@@ -91,13 +85,12 @@ public class InterestPointsN5 extends InterestPoints
 	@Override
 	public synchronized Map< Integer, InterestPoint > getInterestPointsCopy()
 	{
-		if ( this.locations == null || this.ids == null )
-			loadInterestPoints();
+		final InterestPointTable table = getInterestPointTable();
 
-		if ( ids.length == 0 )
+		if ( table.size() == 0 )
 			return new HashMap<>();
 
-		return IntStream.range( 0, ids.length ).parallel().mapToObj( i -> new InterestPoint( ids[ i ], locations[ i ].clone() ) ).collect( Collectors.toMap( InterestPoint::getId, ip -> ip ) );
+		return table.toMap();
 	}
 
 	/**
@@ -105,47 +98,52 @@ public class InterestPointsN5 extends InterestPoints
 	 */
 	public synchronized Collection< CorrespondingInterestPoints > getCorrespondingInterestPointsCopy()
 	{
-		if ( this.correspondingInterestPoints == null )
+		if ( this.correspondences == null )
 			loadCorrespondences();
 
-		final ArrayList< CorrespondingInterestPoints > list = new ArrayList< CorrespondingInterestPoints >();
+		return new ArrayList<>( this.correspondences.asList() );
+	}
 
-		for ( final CorrespondingInterestPoints p : this.correspondingInterestPoints )
-			list.add( new CorrespondingInterestPoints( p ) );
+	@Override
+	public synchronized InterestPointTable getInterestPointTable()
+	{
+		if ( this.interestPoints == null )
+			loadInterestPoints();
 
-		return list;
+		return interestPoints;
 	}
 
 	@Override
-	protected void setInterestPointsLocal( final Collection< InterestPoint > collection )
+	public synchronized CorrespondenceTable getCorrespondenceTable()
 	{
-		if ( collection == null || collection.size() == 0 )
-		{
-			this.ids = new int[0];
-			this.locations = new double[0][0];
+		if ( this.correspondences == null )
+			loadCorrespondences();
 
-			return;
-		}
+		return correspondences;
+	}
 
-		this.ids = new int[ collection.size() ];
-		this.locations = new double[ collection.size() ][];
+	@Override
+	protected void setInterestPointsLocal( final Collection< InterestPoint > collection )
+	{
+		this.interestPoints = InterestPointTable.fromCollection( collection );
+	}
 
-		final Iterator< InterestPoint > it = collection.iterator();
+	@Override
+	protected void setCorrespondingInterestPointsLocal( final Collection< CorrespondingInterestPoints > list )
+	{
+		this.correspondences = CorrespondenceTable.fromCollection( list );
+	}
 
-		IntStream.range( 0, ids.length ).forEach( i -> {
-			final InterestPoint ip = it.next();
-			ids[ i ] = ip.getId();
-			locations[ i ] = ip.getL().clone();
-		});
+	@Override
+	protected void setInterestPointTableLocal( final InterestPointTable table )
+	{
+		this.interestPoints = table == null ? InterestPointTable.empty() : table;
 	}
 
 	@Override
-	protected void setCorrespondingInterestPointsLocal( final Collection< CorrespondingInterestPoints > list )
+	protected void setCorrespondenceTableLocal( final CorrespondenceTable table )
 	{
-		if ( ArrayList.class.isInstance( list ))
-			this.correspondingInterestPoints = (ArrayList<CorrespondingInterestPoints>)list;
-		else
-			this.correspondingInterestPoints = new ArrayList<>( list );
+		this.correspondences = table == null ? CorrespondenceTable.empty() : table;
 	}
 
 	public String ipDataset() { return new File( getN5path(), "interestpoints" ).getPath(); }
@@ -157,7 +155,9 @@ public class InterestPointsN5 extends InterestPoints
 		if ( !modifiedInterestPoints && !forceWrite )
 			return true;
 
-		if ( ids == null || locations == null )
+		final InterestPointTable table = this.interestPoints;
+
+		if ( table == null )
 			return false;
 
 		final String dataset = ipDataset();
@@ -178,7 +178,7 @@ public class InterestPointsN5 extends InterestPoints
 			final String idDataset = dataset + "/id";
 			final String locDataset = dataset + "/loc";
 
-			if ( ids.length == 0 )
+			if ( table.size() == 0 )
 			{
 				n5Writer.createDataset(
 						idDataset,
@@ -198,27 +198,27 @@ public class InterestPointsN5 extends InterestPoints
 			}
 			else
 			{
-				final int n = locations[ 0 ].length;
+				final int n = table.numDimensions();
 
 				// 1 x N array (which is a 2D array)
 				final FunctionRandomAccessible< UnsignedLongType > id =
 						new FunctionRandomAccessible<>(
 								2,
-								(location, value) -> value.set( this.ids[ location.getIntPosition( 1 ) ] ),
+								(location, value) -> value.set( table.getId( location.getIntPosition( 1 ) ) ),
 								UnsignedLongType::new );
 
 				// DIM x N array (which is a 2D array)
 				final FunctionRandomAccessible< DoubleType > loc =
 						new FunctionRandomAccessible<>(
 								2,
-								(location, value) -> value.set( this.locations[ location.getIntPosition( 1 ) ][ location.getIntPosition( 0 ) ] ),
+								(location, value) -> value.set( table.getLocation( location.getIntPosition( 1 ), location.getIntPosition( 0 ) ) ),
 								DoubleType::new );
 
 				final RandomAccessibleInterval< UnsignedLongType > idData =
-						Views.interval( id, new long[] { 0, 0 }, new long[] { 0, ids.length - 1 } );
+						Views.interval( id, new long[] { 0, 0 }, new long[] { 0, table.size() - 1 } );
 
 				final RandomAccessibleInterval< DoubleType > locData =
-						Views.interval( loc, new long[] { 0, 0 }, new long[] { n - 1, ids.length - 1 } );
+						Views.interval( loc, new long[] { 0, 0 }, new long[] { n - 1, table.size() - 1 } );
 
 				N5Utils.save( idData, n5Writer, idDataset, new int[] { 1, defaultBlockSize }, new GzipCompression() );
 				N5Utils.save( locData, n5Writer, locDataset, new int[] { (int)locData.dimension( 0 ), defaultBlockSize }, new GzipCompression() );
@@ -244,9 +244,9 @@ public class InterestPointsN5 extends InterestPoints
 		if ( !modifiedCorrespondingInterestPoints && !forceWrite )
 			return true;
 
-		final ArrayList< CorrespondingInterestPoints > list = this.correspondingInterestPoints;
+		final CorrespondenceTable table = this.correspondences;
 
-		if ( list == null )
+		if ( table == null )
 			return false;
 
 		final String dataset = corrDataset();
@@ -271,42 +271,21 @@ public class InterestPointsN5 extends InterestPoints
 
 			final String corrDataset = dataset + "/data";
 
-			if ( list.size() == 0 )
+			if ( table.size() == 0 )
 			{
 				n5Writer.setAttribute( dataset, "idMap", new HashMap< String, Long >() );
 				return true;
 			}
 
 			//
-			// assemble all ViewIds+Labels that there are correspondences with
-			// each combination of (ViewId, label) is assigned an ID, this mapping is stored in the attributes
+			// each combination of (ViewId, label) that there are correspondences with is a target of the table,
+			// the index of the target is the ID, this mapping is stored in the attributes
 			// the dataset itself only stores the ID as UINT64
 			//
-			final HashMap<ViewId, HashSet<String>> viewidToLabels = new HashMap<>();
-
-			for ( final CorrespondingInterestPoints cip : list )
-			{
-				final ViewId viewId = cip.getCorrespondingViewId();
-				final String label = cip.getCorrespodingLabel();
-				viewidToLabels.computeIfAbsent( viewId, id -> new HashSet<>() ).add( label );
-			}
-
 			final HashMap< String, Long > idMap = new HashMap<>(); // to store ID
-			final HashMap< ViewId, HashMap<String, Long>> quickLookup = new HashMap<>(); // to quickly lookup ID while saving
-			long id = 0;
 
-			for ( final ViewId viewId : viewidToLabels.keySet() )
-			{
-				final HashMap<String, Long > map = new HashMap<>();
-				quickLookup.put( viewId, map );
-
-				for ( final String label : viewidToLabels.get( viewId ) )
-				{
-					idMap.put( viewId.getTimePointId() + "," + viewId.getViewSetupId() + "," + label, id );
-					map.put( label, id );
-					id++;
-				}
-			}
+			for ( int t = 0; t < table.numTargets(); ++t )
+				idMap.put( table.getTargetTimepointId( t ) + "," + table.getTargetViewSetupId( t ) + "," + table.getTargetLabel( t ), (long)t );
 
 			n5Writer.setAttribute( dataset, "idMap", idMap );
 
@@ -315,19 +294,19 @@ public class InterestPointsN5 extends InterestPoints
 					new FunctionRandomAccessible<>(
 							2,
 							(location, value) -> {
-								final CorrespondingInterestPoints cip = list.get( location.getIntPosition( 1 ) );
+								final int i = location.getIntPosition( 1 );
 								final int x = location.getIntPosition( 0 );
 								if ( x == 0 )
-									value.set( cip.getDetectionId() );
+									value.set( table.getDetectionId( i ) );
 								else if ( x == 1 )
-									value.set( cip.getCorrespondingDetectionId() );
+									value.set( table.getCorrespondingDetectionId( i ) );
 								else
-									value.set( quickLookup.get( cip.getCorrespondingViewId() ).get( cip.getCorrespodingLabel() ) );
+									value.set( table.getTarget( i ) );
 							},
 							UnsignedLongType::new );
 
 			final RandomAccessibleInterval< UnsignedLongType > corrIdData =
-					Views.interval( corrId, new long[] { 0, 0 }, new long[] { 2, list.size() - 1 } );
+					Views.interval( corrId, new long[] { 0, 0 }, new long[] { 2, table.size() - 1 } );
 
 			N5Utils.save( corrIdData, n5Writer, corrDataset, new int[] { 1, defaultBlockSize }, new GzipCompression() );
 
@@ -391,59 +370,34 @@ public class InterestPointsN5 extends InterestPoints
 			final String idDataset = dataset + "/id";
 			final String locDataset = dataset + "/loc";
 
-			// 1 x N array (which is a 2D array)
-			final RandomAccessibleInterval< UnsignedLongType > idData = N5Utils.open( n5, idDataset );
-
-			// DIM x N array (which is a 2D array)
-			final RandomAccessibleInterval< DoubleType > locData = N5Utils.open( n5, locDataset );
-			final int n = (int)locData.dimension( 0 );
-			final int size = (int)idData.dimension( 1 );
-
-			if( locData.dimension( 1 ) != size )
-				throw new RuntimeException( "Sizes of N5 datasets for interest points do not match, stopping." );
+			final DatasetAttributes idAttributes = n5.getDatasetAttributes( idDataset );
+			final DatasetAttributes locAttributes = n5.getDatasetAttributes( locDataset );
 
-			//System.out.println( "Version: " + version + ", type: " + type + " loading: " + URITools.appendName( baseDir, baseN5 ) + "/" + dataset + " " + n + " " + size );
-
-			// empty list (n is correct here, it's a contract, check saveInterestPoints())
-			if ( n == 0 )
+			// empty list (n is correct here, it's a contract, check saveInterestPoints() which saves 1d datasets of size 0)
+			if ( locAttributes.getNumDimensions() < 2 || locAttributes.getDimensions()[ 0 ] == 0 )
 			{
-				this.ids = new int[0];
-				this.locations = new double[0][0];
+				this.interestPoints = InterestPointTable.empty();
 			}
 			else
 			{
-				this.ids = new int[size];
-				this.locations = new double[size][n];
-
-				final RandomAccess< UnsignedLongType > idRA = idData.randomAccess();
-				final RandomAccess< DoubleType > locRA = locData.randomAccess();
-
-				idRA.setPosition( 0, 0 );
-				idRA.setPosition( 0, 1 );
-				locRA.setPosition( 0, 0 );
-				locRA.setPosition( 0, 1 );
-
-				for ( int i = 0; i < size; ++ i )
-				{
-					ids[ i ] = (int)idRA.get().get();
-
-					for ( int d = 0; d < n; ++d )
-					{
-						locations[ i ][ d ] = locRA.get().get();
-
-						if ( d != n - 1 )
-							locRA.fwd( 0 );
-					}
-
-					for ( int d = 0; d < n - 1; ++d )
-						locRA.bck( 0 );
-
-					if ( i != idData.dimension( 1 ) - 1 )
-					{
-						idRA.fwd( 1 );
-						locRA.fwd( 1 );
-					}
-				}
+				// 1 x N array (which is a 2D array)
+				final long[] idData = (long[])readFully( n5, idDataset, idAttributes );
+
+				// DIM x N array (which is a 2D array), which is already the flat layout of the table
+				final double[] locations = (double[])readFully( n5, locDataset, locAttributes );
+
+				final int n = (int)locAttributes.getDimensions()[ 0 ];
+				final int size = idData.length;
+
+				if ( locAttributes.getDimensions()[ 1 ] != size )
+					throw new RuntimeException( "Sizes of N5 datasets for interest points do not match, stopping." );
+
+				final int[] ids = new int[ size ];
+
+				for ( int i = 0; i < size; ++i )
+					ids[ i ] = (int)idData[ i ];
+
+				this.interestPoints = new InterestPointTable( n, ids, locations );
 			}
 
 			n5.close();
@@ -452,8 +406,7 @@ public class InterestPointsN5 extends InterestPoints
 		} 
 		catch ( final Exception e )
 		{
-			this.ids = new int[0];
-			this.locations = new double[0][0];
+			this.interestPoints = InterestPointTable.empty();
 			IOFunctions.println( "InterestPointsN5.loadInterestPoints(): " + e );
 			e.printStackTrace();
 			return false;
@@ -483,13 +436,18 @@ public class InterestPointsN5 extends InterestPoints
 
 			if ( idMap.size() == 0 )
 			{
-				this.correspondingInterestPoints = new ArrayList<>();
+				this.correspondences = CorrespondenceTable.empty();
 				modifiedCorrespondingInterestPoints = false;
 
 				return true;
 			}
 
-			final Map< Long, Pair<ViewId, String> > quickLookup = new HashMap<>();
+			// every ID of the idMap becomes a target of the table
+			final HashMap< Long, Integer > idToTarget = new HashMap<>();
+			final int[] targetTimepoints = new int[ idMap.size() ];
+			final int[] targetSetups = new int[ idMap.size() ];
+			final String[] targetLabels = new String[ idMap.size() ];
+
 			for ( final Entry<String, Long> entry : idMap.entrySet() )
 			{
 				final int firstComma = entry.getKey().indexOf( "," );
@@ -509,44 +467,31 @@ public class InterestPointsN5 extends InterestPoints
 				else
 					id = entry.getValue();
 
-				final Pair<ViewId, String> value = new ValuePair<>( new ViewId( tpInt, setupInt ), label );
-				quickLookup.put( id , value );
+				final int target = idToTarget.size();
+				idToTarget.put( id, target );
+				targetTimepoints[ target ] = tpInt;
+				targetSetups[ target ] = setupInt;
+				targetLabels[ target ] = label;
 			}
 			
 			final String corrDataset = dataset + "/data";
 
 			// 3 x N array (which is a 2D array, ID_a, ID_b, ID)
-			final RandomAccessibleInterval< UnsignedLongType > corrData = N5Utils.open( n5, corrDataset );
-
-			final RandomAccess< UnsignedLongType > corrRA = corrData.randomAccess();
+			final long[] corrData = (long[])readFully( n5, corrDataset, n5.getDatasetAttributes( corrDataset ) );
 
-			final ArrayList< CorrespondingInterestPoints > correspondingInterestPoints = new ArrayList<>();
+			final int size = corrData.length / 3;
+			final int[] detectionIds = new int[ size ];
+			final int[] correspondingDetectionIds = new int[ size ];
+			final int[] targets = new int[ size ];
 
-			corrRA.setPosition( 0, 0 );
-			corrRA.setPosition( 0, 1 );
-
-			for ( int i = 0; i < corrData.dimension( 1 ); ++ i )
+			for ( int i = 0; i < size; ++ i )
 			{
-				final long idA = corrRA.get().get();
-				corrRA.fwd(0);
-				final long idB = corrRA.get().get();
-				corrRA.fwd(0);
-				final long id = corrRA.get().get();
-
-				corrRA.bck(0);
-				corrRA.bck(0);
-
-				if ( i != corrData.dimension( 1 ) - 1 )
-					corrRA.fwd( 1 );
-
-				// final int detectionId, final ViewId correspondingViewId, final String correspondingLabel, final int correspondingDetectionId
-				final Pair<ViewId, String> value = quickLookup.get( id );
-				final CorrespondingInterestPoints cip = new CorrespondingInterestPoints( (int)idA, value.getA(), value.getB(), (int)idB );
-
-				correspondingInterestPoints.add( cip );
+				detectionIds[ i ] = (int)corrData[ i * 3 ];
+				correspondingDetectionIds[ i ] = (int)corrData[ i * 3 + 1 ];
+				targets[ i ] = idToTarget.get( corrData[ i * 3 + 2 ] );
 			}
 
-			this.correspondingInterestPoints = correspondingInterestPoints;
+			this.correspondences = new CorrespondenceTable( detectionIds, correspondingDetectionIds, targets, targetTimepoints, targetSetups, targetLabels );
 			modifiedCorrespondingInterestPoints = false;
 
 			n5.close();
@@ -572,14 +517,64 @@ public class InterestPointsN5 extends InterestPoints
 		} 
 		catch ( final Exception e )
 		{
-			this.ids = new int[0];
-			this.locations = new double[0][0];
+			this.interestPoints = InterestPointTable.empty();
 			IOFunctions.println( "InterestPointsN5.loadCorrespondingInterestPoints(): " + e );
 			e.printStackTrace();
 			return false;
 		}
 	}
 
+	/**
+	 * Reads a complete 2d UINT64 or FLOAT64 dataset block by block directly into a primitive array, which is
+	 * much faster than going through imglib2 for every value.
+	 *
+	 * @param n5 - the reader
+	 * @param dataset - the dataset
+	 * @param attributes - its attributes
+	 * @return long[] or double[] with dimension 0 varying fastest
+	 */
+	protected static Object readFully( final N5Reader n5, final String dataset, final DatasetAttributes attributes )
+	{
+		final long[] dim = attributes.getDimensions();
+		final int[] blockSize = attributes.getBlockSize();
+
+		if ( dim[ 0 ] * dim[ 1 ] > Integer.MAX_VALUE )
+			throw new RuntimeException( "Dataset '" + dataset + "' is too large to be loaded into an array." );
+
+		final int width = (int)dim[ 0 ];
+		final int length = (int)( dim[ 0 ] * dim[ 1 ] );
+
+		final Object data;
+
+		if ( attributes.getDataType() == DataType.UINT64 || attributes.getDataType() == DataType.INT64 )
+			data = new long[ length ];
+		else if ( attributes.getDataType() == DataType.FLOAT64 )
+			data = new double[ length ];
+		else
+			throw new RuntimeException( "Unsupported data type of dataset '" + dataset + "': " + attributes.getDataType() );
+
+		for ( long gy = 0; gy * blockSize[ 1 ] < dim[ 1 ]; ++gy )
+			for ( long gx = 0; gx * blockSize[ 0 ] < dim[ 0 ]; ++gx )
+			{
+				final DataBlock< ? > block = n5.readBlock( dataset, attributes, gx, gy );
+
+				// blocks that were not written are empty
+				if ( block == null )
+					continue;
+
+				final int[] size = block.getSize();
+				final int ox = (int)( gx * blockSize[ 0 ] );
+				final int oy = (int)( gy * blockSize[ 1 ] );
+				final int sx = Math.min( size[ 0 ], width - ox );
+				final int sy = (int)Math.min( size[ 1 ], dim[ 1 ] - oy );
+
+				for ( int y = 0; y < sy; ++y )
+					System.arraycopy( block.getData(), y * size[ 0 ], data, ( oy + y ) * width + ox, sx );
+			}
+
+		return data;
+	}
+
 	@Override
 	public boolean deleteInterestPoints()
 	{
@@ -24,6 +24,7 @@ package net.preibisch.mvrecon.process.deconvolution;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.Callable;
@@ -33,10 +34,15 @@ import java.util.concurrent.Future;
 import bdv.util.ConstantRandomAccessible;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
 import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
@@ -68,6 +74,9 @@ public class DeconView
 
 	String title = null;
 
+	// image and weight of each block, precomputed once since they do not change between iterations (key is the min of the block)
+	HashMap< List< Long >, Pair< RandomAccessibleInterval< FloatType >, RandomAccessibleInterval< FloatType > > > precomputedBlocks = null;
+
 	public DeconView(
 			final ExecutorService service,
 			final RandomAccessibleInterval< FloatType > image,
@@ -192,6 +201,130 @@ public class DeconView
 	public List< List< Block > > getNonInterferingBlocks() { return nonInterferingBlocks; }
 	public int getNumBlocks() { return numBlocks; }
 
+	/**
+	 * @param block - the block
+	 * @return the input image of this block (zero-min, outofbounds is zero), precomputed if available
+	 */
+	public RandomAccessibleInterval< FloatType > getImageBlock( final Interval block )
+	{
+		final Pair< RandomAccessibleInterval< FloatType >, RandomAccessibleInterval< FloatType > > precomputed = getPrecomputedBlock( block );
+
+		if ( precomputed == null )
+			return Views.zeroMin( Views.interval( Views.extendZero( image ), block ) );
+		else
+			return precomputed.getA();
+	}
+
+	/**
+	 * @param block - the block
+	 * @return the weights of this block (zero-min, outofbounds is zero), precomputed if available
+	 */
+	public RandomAccessibleInterval< FloatType > getWeightBlock( final Interval block )
+	{
+		final Pair< RandomAccessibleInterval< FloatType >, RandomAccessibleInterval< FloatType > > precomputed = getPrecomputedBlock( block );
+
+		if ( precomputed == null )
+			return Views.zeroMin( Views.interval( Views.extendZero( weight ), block ) );
+		else
+			return precomputed.getB();
+	}
+
+	protected Pair< RandomAccessibleInterval< FloatType >, RandomAccessibleInterval< FloatType > > getPrecomputedBlock( final Interval block )
+	{
+		if ( precomputedBlocks == null )
+			return null;
+
+		return precomputedBlocks.get( key( block ) );
+	}
+
+	/**
+	 * Reads image and weights of all blocks once into compact arrays, so the iterations do not need to go through
+	 * the (virtual, transformed, cached) input images every time. Note that this needs more memory than the input
+	 * images as blocks overlap.
+	 *
+	 * @param quantize - store as 16 bit (linearly scaled between min and max of each block) instead of 32 bit float
+	 */
+	public void precomputeBlocks( final boolean quantize )
+	{
+		if ( nonInterferingBlocks == null )
+			return;
+
+		precomputedBlocks = new HashMap<>();
+
+		final long[] dim = Util.int2long( blockSize );
+		final ArrayImg< FloatType, ? > tmp = quantize ? ArrayImgs.floats( dim ) : null;
+
+		for ( final List< Block > blocks : nonInterferingBlocks )
+			for ( final Block block : blocks )
+			{
+				final RandomAccessibleInterval< FloatType > imageBlock, weightBlock;
+
+				if ( quantize )
+				{
+					block.copyBlock( Views.extendZero( image ), tmp );
+					imageBlock = quantize( tmp );
+
+					block.copyBlock( Views.extendZero( weight ), tmp );
+					weightBlock = quantize( tmp );
+				}
+				else
+				{
+					final ArrayImg< FloatType, ? > img = ArrayImgs.floats( dim );
+					final ArrayImg< FloatType, ? > w = ArrayImgs.floats( dim );
+
+					block.copyBlock( Views.extendZero( image ), img );
+					block.copyBlock( Views.extendZero( weight ), w );
+
+					imageBlock = img;
+					weightBlock = w;
+				}
+
+				precomputedBlocks.put( key( block ), new ValuePair<>( imageBlock, weightBlock ) );
+			}
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Precomputed " + precomputedBlocks.size() + " image & weight blocks (" +
+				( precomputedBlocks.size() * 2 * Intervals.numElements( dim ) * ( quantize ? 2 : 4 ) / ( 1024 * 1024 ) ) + " MB) for " + this );
+	}
+
+	public void clearPrecomputedBlocks() { precomputedBlocks = null; }
+
+	/**
+	 * @param block - the float block (zero-min)
+	 * @return a 16 bit copy that is converted back to float on access, values are quantized linearly between min and max
+	 */
+	public static RandomAccessibleInterval< FloatType > quantize( final ArrayImg< FloatType, ? > block )
+	{
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+
+		for ( final FloatType t : block )
+		{
+			min = Math.min( min, t.get() );
+			max = Math.max( max, t.get() );
+		}
+
+		final float offset = min;
+		final float scale = ( max > min ) ? ( max - min ) / 65535.0f : 0.0f;
+
+		final ArrayImg< UnsignedShortType, ? > quantized = ArrayImgs.unsignedShorts( block.dimensionsAsLongArray() );
+		final Cursor< UnsignedShortType > c = quantized.cursor();
+
+		for ( final FloatType t : block )
+			c.next().set( scale == 0 ? 0 : Math.round( ( t.get() - offset ) / scale ) );
+
+		return Converters.convert( (RandomAccessibleInterval< UnsignedShortType >)quantized, ( a, b ) -> b.set( offset + scale * a.get() ), new FloatType() );
+	}
+
+	protected static List< Long > key( final Interval block )
+	{
+		final ArrayList< Long > key = new ArrayList<>();
+
+		for ( int d = 0; d < block.numDimensions(); ++d )
+			key.add( block.min( d ) );
+
+		return key;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -0,0 +1,245 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.deconvolution;
+
+import java.net.URI;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.universe.StorageFormat;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.numeric.real.FloatType;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.process.fusion.FusionTools;
+import util.URITools;
+
+/**
+ * Periodically saves the state of a running deconvolution (psi, the iteration and the max intensities of the views)
+ * into a chunked N5 container, so it can be resumed after a crash using
+ * {@link net.preibisch.mvrecon.process.deconvolution.init.PsiInitFromCheckpoint}.
+ *
+ * Psi is first copied into a snapshot image (in parallel, this is the only time the iterations wait), which is then
+ * written in the background while the next iterations run. Two datasets are used alternately and the state attribute is
+ * only updated once a dataset is complete, so a crash while writing never destroys the previous checkpoint.
+ */
+public class DeconvolutionCheckpoint
+{
+	public static String stateKey = "mvrCheckpoint";
+	public static int defaultBlockSize = 128;
+	public static int numWriterThreads = 4;
+
+	/**
+	 * What is stored in the container
+	 */
+	public static class State
+	{
+		public String dataset;
+		public int iteration;
+		public float[] max;
+		public double avg;
+		public long[] dimensions;
+	}
+
+	final URI container;
+	final String group;
+	final int interval;
+	ExecutorService background = null, writer = null;
+	Img< FloatType > snapshot = null;
+	Future< ? > pending = null;
+	int slot = 0;
+
+	/**
+	 * @param container - the N5 container
+	 * @param group - the group inside the container (e.g. one per deconvolved image)
+	 * @param interval - save every n'th iteration
+	 */
+	public DeconvolutionCheckpoint( final URI container, final String group, final int interval )
+	{
+		this.container = container;
+		this.group = group;
+		this.interval = Math.max( 1, interval );
+	}
+
+	public int getInterval() { return interval; }
+
+	/**
+	 * Snapshots psi and writes it asynchronously, waits for a previous checkpoint that is still being written.
+	 *
+	 * @param psi - the current deconvolved image
+	 * @param iteration - the number of iterations psi is the result of
+	 * @param max - the max intensities of the views
+	 * @param avg - the average intensity
+	 * @param factory - used to create the snapshot image
+	 * @param service - used for copying psi
+	 */
+	public synchronized void checkpoint(
+			final Img< FloatType > psi,
+			final int iteration,
+			final float[] max,
+			final double avg,
+			final ImgFactory< FloatType > factory,
+			final ExecutorService service )
+	{
+		waitForPending();
+
+		if ( snapshot == null )
+		{
+			snapshot = factory.create( psi );
+			background = Executors.newSingleThreadExecutor();
+			writer = Executors.newFixedThreadPool( numWriterThreads );
+
+			// never overwrite the dataset of an existing checkpoint first (e.g. the one we resumed from)
+			try
+			{
+				final N5Reader n5 = URITools.instantiateN5Reader( StorageFormat.N5, container );
+				final State previous = n5.exists( group ) ? n5.getAttribute( group, stateKey, State.class ) : null;
+				n5.close();
+
+				if ( previous != null && ( group + "/psi0" ).equals( previous.dataset ) )
+					slot = 1;
+			}
+			catch ( Exception e ) { /* no container yet */ }
+		}
+
+		final long time = System.currentTimeMillis();
+		FusionTools.copyImg( psi, snapshot, service );
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Checkpoint of iteration " + iteration + " copied in " + ( System.currentTimeMillis() - time ) + " ms, writing in the background." );
+
+		final State state = new State();
+		state.dataset = group + "/psi" + slot;
+		state.iteration = iteration;
+		state.max = max.clone();
+		state.avg = avg;
+		state.dimensions = psi.dimensionsAsLongArray();
+
+		slot = ( slot + 1 ) % 2;
+
+		pending = background.submit( () -> write( snapshot, state ) );
+	}
+
+	protected void write( final RandomAccessibleInterval< FloatType > img, final State state )
+	{
+		try
+		{
+			final N5Writer n5 = URITools.instantiateN5Writer( StorageFormat.N5, container );
+
+			if ( n5.exists( state.dataset ) )
+				n5.remove( state.dataset );
+
+			final int[] blockSize = new int[ img.numDimensions() ];
+			for ( int d = 0; d < blockSize.length; ++d )
+				blockSize[ d ] = defaultBlockSize;
+
+			N5Utils.save( img, n5, state.dataset, blockSize, new RawCompression(), writer );
+
+			// written last, only complete datasets are referenced
+			n5.setAttribute( group, stateKey, state );
+
+			n5.close();
+
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Checkpoint of iteration " + state.iteration + " saved to " + container + ":" + state.dataset );
+		}
+		catch ( Exception e )
+		{
+			// not fatal, we only lose the ability to resume from this iteration
+			IOFunctions.println( "Could not save checkpoint of iteration " + state.iteration + " to " + container + ": " + e );
+		}
+	}
+
+	protected void waitForPending()
+	{
+		if ( pending == null )
+			return;
+
+		try
+		{
+			pending.get();
+		}
+		catch ( Exception e )
+		{
+			IOFunctions.println( "Writing checkpoint failed: " + e );
+		}
+
+		pending = null;
+	}
+
+	/**
+	 * Waits until the last checkpoint is written and frees all resources.
+	 */
+	public synchronized void finish()
+	{
+		waitForPending();
+
+		if ( background != null )
+		{
+			background.shutdown();
+			writer.shutdown();
+		}
+
+		background = writer = null;
+		snapshot = null;
+	}
+
+	/**
+	 * @param container - the N5 container
+	 * @param group - the group inside the container
+	 * @return the state of the last complete checkpoint, or null if there is none
+	 */
+	public static State loadState( final URI container, final String group )
+	{
+		try
+		{
+			final N5Reader n5 = URITools.instantiateN5Reader( StorageFormat.N5, container );
+			final State state = n5.exists( group ) ? n5.getAttribute( group, stateKey, State.class ) : null;
+			n5.close();
+
+			return state;
+		}
+		catch ( Exception e )
+		{
+			IOFunctions.println( "Could not load checkpoint from " + container + ":" + group + ": " + e );
+			return null;
+		}
+	}
+
+	/**
+	 * @param container - the N5 container
+	 * @param state - the state of the checkpoint
+	 * @return the saved psi
+	 */
+	public static RandomAccessibleInterval< FloatType > openPsi( final URI container, final State state )
+	{
+		final N5Reader n5 = URITools.instantiateN5Reader( StorageFormat.N5, container );
+		return N5Utils.open( n5, state.dataset );
+	}
+}
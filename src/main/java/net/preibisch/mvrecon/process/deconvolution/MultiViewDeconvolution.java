@@ -38,6 +38,7 @@ import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.mvrecon.process.cuda.Block;
 import net.preibisch.mvrecon.process.deconvolution.init.PsiInit;
 import net.preibisch.mvrecon.process.deconvolution.init.PsiInitFactory;
+import net.preibisch.mvrecon.process.deconvolution.init.PsiInitFromCheckpoint;
 import net.preibisch.mvrecon.process.deconvolution.iteration.ComputeBlockThread;
 import net.preibisch.mvrecon.process.deconvolution.iteration.ComputeBlockThreadFactory;
 import net.preibisch.mvrecon.process.export.DisplayImage;
@@ -74,6 +75,15 @@ public abstract class MultiViewDeconvolution< C extends ComputeBlockThread >
 	final int numIterations;
 	final double avgMax;
 
+	// the average intensity as computed by the psi initialization (stored in checkpoints)
+	final double avg;
+
+	// used to create psi (and the checkpoint snapshot)
+	final ImgFactory< FloatType > psiFactory;
+
+	// optionally saves the state every n'th iteration
+	DeconvolutionCheckpoint checkpoint = null;
+
 	boolean debug = false;
 	int debugInterval = 1;
 
@@ -99,6 +109,7 @@ public abstract class MultiViewDeconvolution< C extends ComputeBlockThread >
 
 		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Deconvolved image factory: " + psiFactory.getClass().getSimpleName() );
 
+		this.psiFactory = psiFactory;
 		this.psi = psiFactory.create( views.getPSIDimensions(), new FloatType() );
 
 		this.computeBlockFactory = computeBlockFactory;
@@ -120,10 +131,16 @@ public abstract class MultiViewDeconvolution< C extends ComputeBlockThread >
 		{
 			this.max = null;
 			this.avgMax = 0;
+			this.avg = 0;
 		}
 		else
 		{
 			this.max = psiInit.getMax();
+			this.avg = psiInit.getAvg();
+
+			// continue counting where the checkpoint stopped
+			if ( PsiInitFromCheckpoint.class.isInstance( psiInit ) )
+				this.it = ((PsiInitFromCheckpoint)psiInit).getIteration();
 	
 			double avgMaxIntensity = 0;
 			for ( int i = 0; i < max.length; ++i )
@@ -140,6 +157,8 @@ public abstract class MultiViewDeconvolution< C extends ComputeBlockThread >
 	public void setDebug( final boolean debug ) { this.debug = debug; }
 	public CompositeImage getDebugImage() { return ci; }
 	public void setDebugInterval( final int debugInterval ) { this.debugInterval = debugInterval; }
+	public void setCheckpoint( final DeconvolutionCheckpoint checkpoint ) { this.checkpoint = checkpoint; }
+	public int getCurrentIteration() { return it; }
 
 	public void runIterations()
 	{
@@ -191,8 +210,15 @@ public abstract class MultiViewDeconvolution< C extends ComputeBlockThread >
 			}
 
 			runNextIteration();
+
+			// the final result is exported anyways
+			if ( checkpoint != null && it % checkpoint.getInterval() == 0 && it < numIterations )
+				checkpoint.checkpoint( psi, it, max, avg, psiFactory, views.getExecutorService() );
 		}
 
+		if ( checkpoint != null )
+			checkpoint.finish();
+
 		// TODO: IOFunctions.println( "Masking never updated pixels." );
 		// maskNeverUpdatedPixels( tmp1, views.getViews() );
 
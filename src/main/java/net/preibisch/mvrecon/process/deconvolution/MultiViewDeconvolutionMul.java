@@ -179,8 +179,8 @@ public class MultiViewDeconvolutionMul extends MultiViewDeconvolution< ComputeBl
 							for ( int i = 0; i < views.getViews().size(); ++i )
 							{
 								view.add( views.getViews().get( i ) );
-								imgBlock.add( Views.zeroMin( Views.interval( Views.extendZero( views.getViews().get( i ).getImage() ), blockStruct ) ) );
-								weightBlock.add( Views.zeroMin( Views.interval( Views.extendZero( views.getViews().get( i ).getWeight() ), blockStruct ) ) );
+								imgBlock.add( views.getViews().get( i ).getImageBlock( blockStruct ) );
+								weightBlock.add( views.getViews().get( i ).getWeightBlock( blockStruct ) );
 								maxIntensityView.add( max[ i ] );
 								kernel1.add( views.getViews().get( i ).getPSF().getKernel1() );
 								kernel2.add( views.getViews().get( i ).getPSF().getKernel2() );
@@ -30,6 +30,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
@@ -44,6 +45,9 @@ import net.preibisch.mvrecon.process.fusion.FusionTools;
 
 public class MultiViewDeconvolutionSeq extends MultiViewDeconvolution< ComputeBlockSeqThread >
 {
+	// images that hold computed blocks until they are written back, reused for all batches, views and iterations
+	final Vector< Img< FloatType > > writebackPool = new Vector<>();
+
 	public MultiViewDeconvolutionSeq(
 			final DeconViews views,
 			final int numIterations,
@@ -119,8 +123,8 @@ public class MultiViewDeconvolutionSeq extends MultiViewDeconvolution< ComputeBl
 								stats.add( blockThread.runIteration(
 										view,
 										blockStruct,
-										Views.zeroMin( Views.interval( Views.extendZero( view.getImage() ), blockStruct ) ),//imgBlock,
-										Views.zeroMin( Views.interval( Views.extendZero( view.getWeight() ), blockStruct ) ),//weightBlock,
+										view.getImageBlock( blockStruct ),//imgBlock,
+										view.getWeightBlock( blockStruct ),//weightBlock,
 										max[ viewNum ],
 										view.getPSF().getKernel1(),
 										view.getPSF().getKernel2() ) );
@@ -135,7 +139,7 @@ public class MultiViewDeconvolutionSeq extends MultiViewDeconvolution< ComputeBl
 								else
 								{
 									// copy to the writequeue
-									final Img< FloatType > tmp = blockThread.getPsiBlockTmp().factory().create( blockThread.getPsiBlockTmp(), new FloatType() );
+									final Img< FloatType > tmp = acquireWritebackImg( blockThread.getPsiBlockTmp() );
 									FusionTools.copyImg( blockThread.getPsiBlockTmp(), tmp, views.getExecutorService(), false );
 									currentBlockWritebackQueue.add( new ValuePair<>( new ValuePair<>( blockIdOut, blockStruct ), tmp ) );
 
@@ -151,6 +155,7 @@ public class MultiViewDeconvolutionSeq extends MultiViewDeconvolution< ComputeBl
 
 				// write back previous list of blocks
 				writeBack( psi, previousBlockWritebackQueue );
+				releaseWritebackImgs( previousBlockWritebackQueue );
 
 				previousBlockWritebackQueue.clear();
 				previousBlockWritebackQueue.addAll( currentBlockWritebackQueue );
@@ -160,6 +165,7 @@ public class MultiViewDeconvolutionSeq extends MultiViewDeconvolution< ComputeBl
 
 			// write back last list of blocks
 			writeBack( psi, previousBlockWritebackQueue );
+			releaseWritebackImgs( previousBlockWritebackQueue );
 
 			// accumulate the results from the individual blocks
 			final IterationStatistics is = new IterationStatistics();
@@ -178,4 +184,22 @@ public class MultiViewDeconvolutionSeq extends MultiViewDeconvolution< ComputeBl
 			++v;
 		}// finish view
 	}
+
+	protected Img< FloatType > acquireWritebackImg( final Img< FloatType > psiBlockTmp )
+	{
+		synchronized ( writebackPool )
+		{
+			for ( int i = writebackPool.size() - 1; i >= 0; --i )
+				if ( Intervals.equalDimensions( writebackPool.get( i ), psiBlockTmp ) )
+					return writebackPool.remove( i );
+		}
+
+		return psiBlockTmp.factory().create( psiBlockTmp, new FloatType() );
+	}
+
+	protected void releaseWritebackImgs( final Vector< Pair< Pair< Integer, Block >, Img< FloatType > > > blockWritebackQueue )
+	{
+		for ( final Pair< Pair< Integer, Block >, Img< FloatType > > writeBackBlock : blockWritebackQueue )
+			writebackPool.add( writeBackBlock.getB() );
+	}
 }
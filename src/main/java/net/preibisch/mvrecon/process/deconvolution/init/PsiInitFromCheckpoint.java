@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.deconvolution.init;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.process.deconvolution.DeconView;
+import net.preibisch.mvrecon.process.deconvolution.DeconvolutionCheckpoint;
+import net.preibisch.mvrecon.process.deconvolution.DeconvolutionCheckpoint.State;
+import net.preibisch.mvrecon.process.fusion.FusionTools;
+
+public class PsiInitFromCheckpoint implements PsiInit
+{
+	final URI container;
+	final String group;
+
+	State state = null;
+
+	/**
+	 * @param container - the N5 container of the checkpoint
+	 * @param group - the group of the checkpoint inside the container
+	 */
+	public PsiInitFromCheckpoint( final URI container, final String group )
+	{
+		this.container = container;
+		this.group = group;
+	}
+
+	@Override
+	public boolean runInitialization(
+			final Img< FloatType > psi,
+			final List< DeconView > views,
+			final ExecutorService service )
+	{
+		final State state = DeconvolutionCheckpoint.loadState( container, group );
+
+		if ( state == null )
+		{
+			IOFunctions.println( "No checkpoint found in " + container + ":" + group );
+			return false;
+		}
+
+		if ( state.max == null || state.max.length != views.size() )
+		{
+			IOFunctions.println( "Checkpoint in " + container + ":" + group + " is for a different number of views." );
+			return false;
+		}
+
+		try
+		{
+			final RandomAccessibleInterval< FloatType > input = DeconvolutionCheckpoint.openPsi( container, state );
+
+			for ( int d = 0; d < psi.numDimensions(); ++d )
+				if ( input.dimension( d ) != psi.dimension( d ) )
+				{
+					IOFunctions.println( "Image dimensions do not match: " + Util.printInterval( input ) + " != " + Util.printInterval( psi ) );
+					return false;
+				}
+
+			FusionTools.copyImg( Views.zeroMin( input ), Views.zeroMin( psi ), service );
+		}
+		catch ( RuntimeException e )
+		{
+			IOFunctions.println( "Cannot load checkpoint " + container + ":" + state.dataset + ": " + e );
+			return false;
+		}
+
+		IOFunctions.println( "Checkpoint " + container + ":" + state.dataset + " copied onto PSI, resuming after iteration " + state.iteration + "." );
+
+		this.state = state;
+
+		return true;
+	}
+
+	/**
+	 * @return the number of iterations that were already computed
+	 */
+	public int getIteration() { return state.iteration; }
+
+	@Override
+	public double getAvg() { return state.avg; }
+
+	@Override
+	public float[] getMax() { return state.max; }
+}
@@ -23,9 +23,12 @@
 package net.preibisch.mvrecon.process.deconvolution.iteration.sequential;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
@@ -33,6 +36,7 @@ import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.type.numeric.complex.ComplexFloatType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Pair;
 import net.imglib2.view.Views;
 import net.preibisch.mvrecon.process.cuda.Block;
 import net.preibisch.mvrecon.process.deconvolution.DeconView;
@@ -50,6 +54,10 @@ public class ComputeBlockSeqThreadCPU extends ComputeBlockSeqThreadAbstract
 	final Img< FloatType > tmp1, tmp2;
 	final float lambda;
 
+	// persistent FFT workspace of this thread
+	final ArrayList< Img< ComplexFloatType > > fftBuffers = new ArrayList<>();
+	final long[] min, max;
+
 	public ComputeBlockSeqThreadCPU(
 			final ExecutorService service,
 			final float minValue,
@@ -66,6 +74,8 @@ public class ComputeBlockSeqThreadCPU extends ComputeBlockSeqThreadAbstract
 		this.tasks = new ArrayList<>();
 		this.portions = new ArrayList<>();
 		this.lambda = lambda;
+		this.min = new long[ blockSize.length ];
+		this.max = new long[ blockSize.length ];
 
 		this.portions.addAll( FusionTools.divideIntoPortions( tmp1.size() ) );
 		try { this.fftFactory = blockFactory.imgFactory( new ComplexFloatType() ); } catch ( IncompatibleTypeException e )
@@ -174,18 +184,7 @@ public class ComputeBlockSeqThreadCPU extends ComputeBlockSeqThreadAbstract
 			final Img< ComplexFloatType > kernelFFT,
 			final Img< FloatType > result )
 	{
-		final FFTConvolution< FloatType > fftConvolution =
-				new FFTConvolution< FloatType >(
-						Views.extendMirrorSingle( image ),
-						image,
-						Views.extendZero( kernel ),
-						kernel,
-						result,
-						fftFactory );
-		fftConvolution.setExecutorService( service );
-		fftConvolution.setKeepImgFFT( false );
-		fftConvolution.setKernelFFT( kernelFFT );
-		fftConvolution.convolve();
+		convolve( Views.extendMirrorSingle( image ), image, kernel, kernelFFT, result );
 	}
 
 	public void convolve2(
@@ -194,18 +193,42 @@ public class ComputeBlockSeqThreadCPU extends ComputeBlockSeqThreadAbstract
 			final Img< ComplexFloatType > kernelFFT,
 			final Img< FloatType > result )
 	{
-		final FFTConvolution< FloatType > fftConvolution =
-				new FFTConvolution< FloatType >(
-						Views.extendValue( image, new FloatType( 1.0f ) ), // ratio outside of the deconvolved space (psi) is 1, shouldn't matter here though
-						image,
-						Views.extendZero( kernel ),
-						kernel,
-						result,
-						fftFactory );
-		fftConvolution.setExecutorService( service );
-		fftConvolution.setKeepImgFFT( false );
-		fftConvolution.setKernelFFT( kernelFFT );
-		fftConvolution.convolve();
+		// ratio outside of the deconvolved space (psi) is 1, shouldn't matter here though
+		convolve( Views.extendValue( image, new FloatType( 1.0f ) ), image, kernel, kernelFFT, result );
+	}
+
+	/*
+	 * Convolves using the precomputed FFT of the kernel, the FFT of the image is computed into a buffer
+	 * of this thread that is reused for all blocks, views and iterations (instead of allocating a new one
+	 * for every convolution).
+	 */
+	protected void convolve(
+			final RandomAccessible< FloatType > image,
+			final Interval imageInterval,
+			final Img< FloatType > kernel,
+			final Img< ComplexFloatType > kernelFFT,
+			final Img< FloatType > result )
+	{
+		final Pair< Interval, Interval > fftIntervals = FFTConvolution.setupFFTs( imageInterval, kernel, min, max );
+		final Img< ComplexFloatType > fftImg = getFFTBuffer( FFTConvolution.fftDimensions( fftIntervals.getA() ) );
+
+		FFTConvolution.computeImgFFT( fftIntervals.getA(), image, fftImg, service );
+		FFTConvolution.computeConvolution( fftImg, kernelFFT, result, false, service );
 	}
 
+	/*
+	 * The FFT size only depends on the block size and the PSF size, so there is usually one buffer
+	 * per PSF size (a single one if all PSFs have the same size)
+	 */
+	protected Img< ComplexFloatType > getFFTBuffer( final long[] fftDimensions )
+	{
+		for ( final Img< ComplexFloatType > buffer : fftBuffers )
+			if ( Arrays.equals( buffer.dimensionsAsLongArray(), fftDimensions ) )
+				return buffer;
+
+		final Img< ComplexFloatType > buffer = fftFactory.create( fftDimensions, new ComplexFloatType() );
+		fftBuffers.add( buffer );
+
+		return buffer;
+	}
 }
@@ -0,0 +1,241 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.deconvolution.util;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.TreeMap;
+
+import net.imglib2.FinalDimensions;
+import net.imglib2.algorithm.fft2.FFTMethods;
+import net.imglib2.util.Util;
+import net.preibisch.legacy.io.IOFunctions;
+
+/**
+ * Selects the compute block size for the deconvolution. Each dimension is chosen so that the FFT of a block
+ * (block + kernel - 1, see {@link util.FFTConvolution#setupFFTs}) is a fast FFT size without padding. Among
+ * all combinations, the one with the lowest predicted compute time (number of rounds of parallel blocks times
+ * the cost of one FFT) that fits into the available memory is selected.
+ */
+public class BlockSizeAutotuner
+{
+	public static int minBlockSize = 64;
+	public static int maxBlockSize = 1024;
+
+	// fraction of the maximal java heap that the deconvolution (psi and blocks) may use, the rest is for input images and weights
+	public static double defaultMemoryFraction = 0.5;
+
+	/**
+	 * The selected block size and what it is predicted to cost
+	 */
+	public static class Estimate
+	{
+		public int[] blockSize;
+		public long[] effectiveSize, fftSize, numBlocks;
+		public long totalBlocks, memoryBytes;
+		public double cost;
+
+		@Override
+		public String toString()
+		{
+			return "blocksize=" + Util.printCoordinates( blockSize ) + ", effective size=" + Util.printCoordinates( effectiveSize ) +
+					", FFT size=" + Util.printCoordinates( fftSize ) + ", blocks=" + Util.printCoordinates( numBlocks ) + " (" + totalBlocks + ")" +
+					", predicted memory=" + ( memoryBytes / ( 1024 * 1024 ) ) + " MB";
+		}
+	}
+
+	/**
+	 * @param psiSize - the dimensions of the deconvolved image
+	 * @param psfSize - the (maximal) dimensions of the PSFs
+	 * @param numViews - the number of (virtual) views, each has two kernel FFTs in memory
+	 * @param numParallelBlocks - how many blocks are computed at the same time (e.g. number of GPUs, 1 for CPU)
+	 * @param availableBytes - the memory that psi and all blocks may use
+	 * @param powerOfTwo - only allow power-of-two block sizes (e.g. for CUDA)
+	 * @return the best block size, or null if none fits into memory
+	 */
+	public static Estimate autotune(
+			final long[] psiSize,
+			final long[] psfSize,
+			final int numViews,
+			final int numParallelBlocks,
+			final long availableBytes,
+			final boolean powerOfTwo )
+	{
+		final int n = psiSize.length;
+		final ArrayList< long[] > candidates = new ArrayList<>();
+
+		for ( int d = 0; d < n; ++d )
+		{
+			candidates.add( candidates( d, psiSize, psfSize, powerOfTwo ) );
+
+			if ( candidates.get( d ).length == 0 )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): No valid block size in dimension " + d + " for a PSF of size " + psfSize[ d ] );
+				return null;
+			}
+		}
+
+		final long[] blockSize = new long[ n ];
+		final int[] index = new int[ n ];
+
+		Estimate best = null;
+
+		// test all combinations
+		while ( true )
+		{
+			for ( int d = 0; d < n; ++d )
+				blockSize[ d ] = candidates.get( d )[ index[ d ] ];
+
+			final Estimate e = estimate( blockSize, psiSize, psfSize, numViews, numParallelBlocks );
+
+			if ( e.memoryBytes <= availableBytes &&
+					( best == null || e.cost < best.cost || ( e.cost == best.cost && e.memoryBytes < best.memoryBytes ) ) )
+				best = e;
+
+			int d = 0;
+			while ( d < n && ++index[ d ] == candidates.get( d ).length )
+				index[ d++ ] = 0;
+
+			if ( d == n )
+				break;
+		}
+
+		if ( best == null )
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): No block size fits into " + ( availableBytes / ( 1024 * 1024 ) ) + " MB." );
+		else
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Selected " + best );
+
+		return best;
+	}
+
+	/**
+	 * @param blockSize - the block size
+	 * @param psiSize - the dimensions of the deconvolved image
+	 * @param psfSize - the (maximal) dimensions of the PSFs
+	 * @param numViews - the number of (virtual) views
+	 * @param numParallelBlocks - how many blocks are computed at the same time
+	 * @return the predicted number of blocks, cost and memory
+	 */
+	public static Estimate estimate(
+			final long[] blockSize,
+			final long[] psiSize,
+			final long[] psfSize,
+			final int numViews,
+			final int numParallelBlocks )
+	{
+		final int n = psiSize.length;
+
+		final Estimate e = new Estimate();
+		e.blockSize = new int[ n ];
+		e.effectiveSize = new long[ n ];
+		e.fftSize = paddedSize( blockSize, psfSize );
+		e.numBlocks = new long[ n ];
+		e.totalBlocks = 1;
+
+		long blockPixels = 1, fftPixels = 1, complexPixels = 1, psiPixels = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			e.blockSize[ d ] = (int)blockSize[ d ];
+
+			// see DeconView, we convolve twice so the kernel is 2*psf-1
+			e.effectiveSize[ d ] = blockSize[ d ] - ( psfSize[ d ] * 2 - 1 ) + 1;
+			e.numBlocks[ d ] = ( psiSize[ d ] + e.effectiveSize[ d ] - 1 ) / e.effectiveSize[ d ];
+			e.totalBlocks *= e.numBlocks[ d ];
+
+			blockPixels *= blockSize[ d ];
+			fftPixels *= e.fftSize[ d ];
+			complexPixels *= ( d == 0 ) ? e.fftSize[ d ] / 2 + 1 : e.fftSize[ d ];
+			psiPixels *= psiSize[ d ];
+		}
+
+		// blocks are processed in rounds of numParallelBlocks, each one costs a few FFTs
+		final long rounds = ( e.totalBlocks + numParallelBlocks - 1 ) / numParallelBlocks;
+		e.cost = rounds * fftPixels * Math.log( fftPixels );
+
+		// the non-interfering batches contain about every 2^n'th block, two of them wait for write-back
+		final long writeBackBlocks = e.totalBlocks == 1 ? 0 : 2 * ( ( e.totalBlocks + ( 1 << n ) - 1 ) / ( 1 << n ) );
+
+		e.memoryBytes =
+				psiPixels * 4 + // psi
+				numParallelBlocks * ( blockPixels * 4 * 3 + complexPixels * 8 ) + // psi block, two temporary blocks and the FFT of each thread
+				numViews * 2 * complexPixels * 8 + // the FFTs of both kernels of each view
+				writeBackBlocks * blockPixels * 4;
+
+		return e;
+	}
+
+	/*
+	 * All block sizes of dimension d whose FFT needs no padding, up to the size that covers the entire image with one block
+	 */
+	protected static long[] candidates( final int d, final long[] psiSize, final long[] psfSize, final boolean powerOfTwo )
+	{
+		final long kernelSize = psfSize[ d ] * 2 - 1;
+
+		// the smallest block that covers the entire image
+		final long oneBlock = psiSize[ d ] + kernelSize - 1;
+
+		// the effective size should be at least the kernel size
+		final long min = Math.max( minBlockSize, 2 * kernelSize - 1 );
+		final long max = Math.max( min, maxBlockSize );
+
+		// for each FFT size the largest block
+		final TreeMap< Long, Long > largestBlock = new TreeMap<>();
+		final long[] size = psfSize.clone();
+
+		for ( long b = min; b <= max; ++b )
+		{
+			if ( powerOfTwo && Long.bitCount( b ) != 1 )
+				continue;
+
+			size[ d ] = b;
+			largestBlock.put( paddedSize( size, psfSize )[ d ], b );
+
+			// larger blocks would only add padding
+			if ( b >= oneBlock )
+				break;
+		}
+
+		return largestBlock.values().stream().mapToLong( Long::longValue ).toArray();
+	}
+
+	/**
+	 * @param blockSize - the block size
+	 * @param psfSize - the size of the PSF
+	 * @return the size of the FFT used to convolve a block with the PSF (as in {@link util.FFTConvolution#setupFFTs})
+	 */
+	public static long[] paddedSize( final long[] blockSize, final long[] psfSize )
+	{
+		final long[] newDimensions = new long[ blockSize.length ];
+
+		for ( int d = 0; d < blockSize.length; ++d )
+			newDimensions[ d ] = blockSize[ d ] + psfSize[ d ] - 1;
+
+		final long[] paddedDimensions = new long[ blockSize.length ];
+		final long[] fftDimensions = new long[ blockSize.length ];
+
+		FFTMethods.dimensionsRealToComplexFast( FinalDimensions.wrap( newDimensions ), paddedDimensions, fftDimensions );
+
+		return paddedDimensions;
+	}
+}
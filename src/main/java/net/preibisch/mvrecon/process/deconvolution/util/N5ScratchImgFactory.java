@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.deconvolution.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.CacheRemover;
+import net.imglib2.cache.IoSync;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.ref.GuardedStrongRefLoaderRemoverCache;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.basictypeaccess.array.DirtyFloatArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.preibisch.legacy.io.IOFunctions;
+
+/**
+ * Creates {@link FloatType} images that live in a chunked N5 container on (local) disk. Only a bounded number of cells is
+ * kept in memory, modified cells are written back to their N5 block when they are evicted and read again when they are needed.
+ * Used for out-of-core deconvolution (psi, and precomputed input images and weights), where the size of the
+ * deconvolved volume is then bounded by the scratch disk and not by the heap.
+ *
+ * Call {@link #clear()} once the images are not needed anymore (e.g. after exporting the deconvolved image) to delete them.
+ */
+public class N5ScratchImgFactory extends ImgFactory< FloatType >
+{
+	public static String defaultScratchDirectory = System.getProperty( "java.io.tmpdir" );
+	public static int defaultCacheSizeMB = 4096;
+	public static int numIoThreads = 4;
+	public static int maxIoQueueSize = 1000;
+
+	final int[] cellSize;
+	final int maxCachedCells;
+	final File container;
+	final N5Writer n5;
+
+	final List< String > datasets = new ArrayList<>();
+	final List< Cache< Long, ? > > caches = new ArrayList<>();
+
+	/**
+	 * @param scratchDirectory - the directory in which a new, temporary N5 container is created
+	 * @param cellSize - the cell (and N5 block) size
+	 * @param cacheSizeMB - how much memory the cached cells of one image may use
+	 * @throws IOException - if the container cannot be created
+	 */
+	public N5ScratchImgFactory( final String scratchDirectory, final int cellSize, final int cacheSizeMB ) throws IOException
+	{
+		super( new FloatType() );
+
+		this.cellSize = new int[] { cellSize, cellSize, cellSize };
+		this.maxCachedCells = (int)Math.max( 1, ( (long)cacheSizeMB * 1024 * 1024 ) / ( 4L * cellSize * cellSize * cellSize ) );
+
+		this.container = Files.createTempDirectory( new File( scratchDirectory ).toPath(), "mvr-scratch-" ).resolve( "scratch.n5" ).toFile();
+		this.n5 = new N5FSWriter( container.getAbsolutePath() );
+
+		IOFunctions.println( "Out-of-core images are stored in '" + container.getAbsolutePath() + "', max " + maxCachedCells + " cells (" + cellSize + "^3) in memory per image." );
+	}
+
+	@Override
+	public synchronized Img< FloatType > create( final long... dimensions )
+	{
+		final String dataset = "img" + datasets.size();
+		final long[] dim = dimensions.clone();
+		final int[] cell = new int[ dim.length ];
+
+		for ( int d = 0; d < dim.length; ++d )
+			cell[ d ] = cellSize[ Math.min( d, cellSize.length - 1 ) ];
+
+		final DatasetAttributes attributes = new DatasetAttributes( dim, cell, DataType.FLOAT32, new RawCompression() );
+		n5.createDataset( dataset, attributes );
+
+		final CellGrid grid = new CellGrid( dim, cell );
+		final N5CellIO io = new N5CellIO( n5, dataset, attributes, grid );
+		final IoSync< Long, Cell< DirtyFloatArray >, DirtyFloatArray > iosync = new IoSync<>( io, numIoThreads, maxIoQueueSize );
+
+		final Cache< Long, Cell< DirtyFloatArray > > cache =
+				new GuardedStrongRefLoaderRemoverCache< Long, Cell< DirtyFloatArray >, DirtyFloatArray >( maxCachedCells )
+					.withRemover( iosync )
+					.withLoader( iosync );
+
+		datasets.add( dataset );
+		caches.add( cache );
+
+		return new CachedCellImg<>( grid, new FloatType(), cache, new DirtyFloatArray( 0 ) );
+	}
+
+	@Deprecated
+	@Override
+	public Img< FloatType > create( final long[] dim, final FloatType type )
+	{
+		return create( dim );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	@Override
+	public < S > ImgFactory< S > imgFactory( final S type ) throws IncompatibleTypeException
+	{
+		if ( FloatType.class.isInstance( type ) )
+			return (ImgFactory< S >)this;
+
+		throw new IncompatibleTypeException( this, type.getClass().getCanonicalName() + " is not supported by " + getClass().getSimpleName() );
+	}
+
+	public File getContainer() { return container; }
+
+	/**
+	 * Deletes all images created so far, they must not be used afterwards.
+	 */
+	public synchronized void clear()
+	{
+		for ( final Cache< Long, ? > cache : caches )
+			cache.invalidateAll();
+
+		for ( final String dataset : datasets )
+			n5.remove( dataset );
+
+		caches.clear();
+		datasets.clear();
+	}
+
+	/**
+	 * Deletes all images and the container.
+	 */
+	public synchronized void close()
+	{
+		clear();
+		n5.remove();
+		n5.close();
+
+		// the temporary directory around the container
+		container.getParentFile().delete();
+	}
+
+	/**
+	 * Loads cells from their N5 block (or empty if not written yet), writes them back if they were modified.
+	 */
+	protected static class N5CellIO implements CacheLoader< Long, Cell< DirtyFloatArray > >, CacheRemover< Long, Cell< DirtyFloatArray >, DirtyFloatArray >
+	{
+		final N5Writer n5;
+		final String dataset;
+		final DatasetAttributes attributes;
+		final CellGrid grid;
+		final int n;
+
+		public N5CellIO( final N5Writer n5, final String dataset, final DatasetAttributes attributes, final CellGrid grid )
+		{
+			this.n5 = n5;
+			this.dataset = dataset;
+			this.attributes = attributes;
+			this.grid = grid;
+			this.n = grid.numDimensions();
+		}
+
+		@Override
+		public Cell< DirtyFloatArray > get( final Long key ) throws Exception
+		{
+			final long[] gridPosition = new long[ n ];
+			grid.getCellGridPositionFlat( key, gridPosition );
+
+			final DataBlock< ? > block = n5.readBlock( dataset, attributes, gridPosition );
+
+			final DirtyFloatArray data;
+
+			if ( block == null )
+				data = new DirtyFloatArray( numElements( key ) );
+			else
+				data = new DirtyFloatArray( (float[])block.getData() );
+
+			return reconstruct( key, data );
+		}
+
+		@Override
+		public void onRemoval( final Long key, final DirtyFloatArray data )
+		{
+			if ( !data.isDirty() )
+				return;
+
+			final long[] gridPosition = new long[ n ];
+			grid.getCellGridPositionFlat( key, gridPosition );
+
+			final int[] cellDims = new int[ n ];
+			grid.getCellDimensions( gridPosition, new long[ n ], cellDims );
+
+			n5.writeBlock( dataset, attributes, new FloatArrayDataBlock( cellDims, gridPosition, data.getCurrentStorageArray() ) );
+			data.setDirty( false );
+		}
+
+		@Override
+		public CompletableFuture< Void > persist( final Long key, final DirtyFloatArray data )
+		{
+			onRemoval( key, data );
+			return CompletableFuture.completedFuture( null );
+		}
+
+		@Override
+		public DirtyFloatArray extract( final Cell< DirtyFloatArray > value )
+		{
+			return value.getData();
+		}
+
+		@Override
+		public Cell< DirtyFloatArray > reconstruct( final Long key, final DirtyFloatArray data )
+		{
+			final long[] cellMin = new long[ n ];
+			final int[] cellDims = new int[ n ];
+			grid.getCellDimensions( key, cellMin, cellDims );
+
+			return new Cell<>( cellDims, cellMin, data );
+		}
+
+		protected int numElements( final long key )
+		{
+			final long[] cellMin = new long[ n ];
+			final int[] cellDims = new int[ n ];
+			grid.getCellDimensions( key, cellMin, cellDims );
+
+			return (int)Intervals.numElements( cellDims );
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.export;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import net.preibisch.legacy.io.IOFunctions;
+
+/**
+ * Persistent record of the (compute) blocks of a dataset that were written completely. It is stored as an
+ * attribute of the dataset inside the N5/ZARR container and updated as blocks land (at most every
+ * {@link #flushIntervalMs}, and when calling {@link #flush()}), so an export or resave that died can be
+ * resumed by skipping all blocks that were already written.
+ *
+ * Blocks are identified by their grid position (gridBlock[2], see {@link util.Grid}), the journal is only valid
+ * for the same dimensions, blocksize and compute blocksize, otherwise it is ignored and starts empty.
+ */
+public class BlockJournal
+{
+	public static String journalKey = "mvrCompletedBlocks";
+	public static long flushIntervalMs = 10000;
+
+	/**
+	 * What is stored in the container
+	 */
+	public static class JournalAttributes
+	{
+		public long[] dimensions;
+		public int[] blockSize, computeBlockSize;
+		public long[] completed;
+	}
+
+	final N5Writer n5;
+	final String dataset, key;
+	final long[] dimensions, numBlocks;
+	final int[] blockSize, computeBlockSize;
+	final BitSet completed;
+
+	long lastFlush = System.currentTimeMillis();
+	boolean dirty = false;
+
+	protected BlockJournal(
+			final N5Writer n5,
+			final String dataset,
+			final String key,
+			final long[] dimensions,
+			final int[] blockSize,
+			final int[] computeBlockSize,
+			final BitSet completed )
+	{
+		this.n5 = n5;
+		this.dataset = dataset;
+		this.key = key;
+		this.dimensions = dimensions;
+		this.blockSize = blockSize;
+		this.computeBlockSize = computeBlockSize;
+		this.completed = completed;
+
+		this.numBlocks = new long[ dimensions.length ];
+
+		for ( int d = 0; d < dimensions.length; ++d )
+			numBlocks[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+	}
+
+	/**
+	 * @param n5 - the container
+	 * @param dataset - the dataset
+	 * @param dimensions - the 3d dimensions of the dataset (the first 3 if it is 5d OME-ZARR)
+	 * @param blockSize - the 3d blocksize of the dataset
+	 * @param computeBlockSize - the 3d size of the compute blocks (a multiple of blockSize)
+	 * @param resume - if true, an existing, compatible journal is loaded, otherwise it starts empty
+	 * @return the journal
+	 */
+	public static BlockJournal open(
+			final N5Writer n5,
+			final String dataset,
+			final long[] dimensions,
+			final int[] blockSize,
+			final int[] computeBlockSize,
+			final boolean resume )
+	{
+		return open( n5, dataset, journalKey, dimensions, blockSize, computeBlockSize, resume );
+	}
+
+	/**
+	 * @param n5 - the container
+	 * @param dataset - the dataset
+	 * @param key - the attribute key, needs to be unique if several volumes share one dataset (e.g. 5d OME-ZARR)
+	 * @param dimensions - the 3d dimensions of the dataset (the first 3 if it is 5d OME-ZARR)
+	 * @param blockSize - the 3d blocksize of the dataset
+	 * @param computeBlockSize - the 3d size of the compute blocks (a multiple of blockSize)
+	 * @param resume - if true, an existing, compatible journal is loaded, otherwise it starts empty
+	 * @return the journal
+	 */
+	public static BlockJournal open(
+			final N5Writer n5,
+			final String dataset,
+			final String key,
+			final long[] dimensions,
+			final int[] blockSize,
+			final int[] computeBlockSize,
+			final boolean resume )
+	{
+		final long[] dim = Arrays.copyOf( dimensions, 3 );
+		final int[] bs = Arrays.copyOf( blockSize, 3 );
+		final int[] cbs = Arrays.copyOf( computeBlockSize, 3 );
+
+		BitSet completed = new BitSet();
+
+		if ( resume )
+		{
+			try
+			{
+				final JournalAttributes attr = n5.getAttribute( dataset, key, JournalAttributes.class );
+
+				if ( attr != null && attr.completed != null &&
+						Arrays.equals( dim, attr.dimensions ) && Arrays.equals( bs, attr.blockSize ) && Arrays.equals( cbs, attr.computeBlockSize ) )
+					completed = BitSet.valueOf( attr.completed );
+				else if ( attr != null )
+					IOFunctions.println( "Journal of '" + dataset + "' does not match current dimensions/blocksizes, ignoring it." );
+			}
+			catch ( Exception e )
+			{
+				IOFunctions.println( "Could not load journal of '" + dataset + "', starting from scratch: " + e );
+			}
+		}
+
+		final BlockJournal journal = new BlockJournal( n5, dataset, key, dim, bs, cbs, completed );
+
+		// an old journal must not survive if we start from scratch
+		if ( !resume )
+			journal.dirty = true;
+
+		journal.flush();
+
+		return journal;
+	}
+
+	/**
+	 * @param gridBlock - the block (gridBlock[2] is the grid position)
+	 * @return true if the block was written completely in this or a previous run
+	 */
+	public boolean isComplete( final long[][] gridBlock )
+	{
+		final int i = index( gridBlock[ 2 ] );
+
+		synchronized ( completed )
+		{
+			return completed.get( i );
+		}
+	}
+
+	public void markComplete( final long[][] gridBlock )
+	{
+		markComplete( gridBlock[ 2 ] );
+	}
+
+	public void markComplete( final long[] gridPosition )
+	{
+		final int i = index( gridPosition );
+		final boolean flush;
+
+		synchronized ( completed )
+		{
+			completed.set( i );
+			dirty = true;
+			flush = System.currentTimeMillis() - lastFlush > flushIntervalMs;
+		}
+
+		if ( flush )
+			flush();
+	}
+
+	/**
+	 * @param grid - all blocks
+	 * @return a new list with all blocks that are not complete
+	 */
+	public List< long[][] > incompleteBlocks( final List< long[][] > grid )
+	{
+		final ArrayList< long[][] > incomplete = new ArrayList<>();
+
+		for ( final long[][] gridBlock : grid )
+			if ( !isComplete( gridBlock ) )
+				incomplete.add( gridBlock );
+
+		return incomplete;
+	}
+
+	public int numCompleted()
+	{
+		synchronized ( completed )
+		{
+			return completed.cardinality();
+		}
+	}
+
+	/**
+	 * Writes the journal to the container if it changed.
+	 */
+	public synchronized void flush()
+	{
+		final JournalAttributes attr = new JournalAttributes();
+
+		synchronized ( completed )
+		{
+			if ( !dirty )
+				return;
+
+			attr.dimensions = dimensions;
+			attr.blockSize = blockSize;
+			attr.computeBlockSize = computeBlockSize;
+			attr.completed = completed.toLongArray();
+
+			dirty = false;
+			lastFlush = System.currentTimeMillis();
+		}
+
+		try
+		{
+			n5.setAttribute( dataset, key, attr );
+		}
+		catch ( Exception e )
+		{
+			// not fatal, we only lose the ability to resume
+			IOFunctions.println( "Could not save journal of '" + dataset + "': " + e );
+
+			synchronized ( completed )
+			{
+				dirty = true;
+			}
+		}
+	}
+
+	protected int index( final long[] gridPosition )
+	{
+		return (int)( gridPosition[ 0 ] + numBlocks[ 0 ] * ( gridPosition[ 1 ] + numBlocks[ 1 ] * gridPosition[ 2 ] ) );
+	}
+}
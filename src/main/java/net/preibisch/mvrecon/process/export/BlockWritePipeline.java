@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.export;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.n5.DataType;
+
+/**
+ * Producer/consumer pipeline for block-wise export. Blocks are computed by a compute pool and handed over
+ * to a separate writer pool that compresses and writes them, so that computing the next blocks is not
+ * stalled by storage latency. The amount of memory held by blocks that are computed or waiting to be written
+ * is bounded; compute threads block until enough memory was released by the writers.
+ *
+ * If the number of writer threads is 0, blocks are written by the compute thread that created them.
+ *
+ * One pipeline can be shared by several images that are exported at the same time, their blocks are interleaved
+ * and share the memory budget.
+ */
+public class BlockWritePipeline
+{
+	@FunctionalInterface
+	public interface BlockWriter< B, R >
+	{
+		R write( B block ) throws Exception;
+	}
+
+	final ExecutorService computePool, writerPool;
+	final Semaphore budget;
+	final int maxPermits;
+
+	/**
+	 * @param computeThreads - number of threads computing blocks
+	 * @param writerThreads - number of threads writing blocks (0 means writing happens in the compute threads)
+	 * @param maxBytesInFlight - maximal amount of memory held by blocks that are computed or not written yet
+	 */
+	public BlockWritePipeline( final int computeThreads, final int writerThreads, final long maxBytesInFlight )
+	{
+		this.computePool = Executors.newFixedThreadPool( computeThreads );
+		this.writerPool = writerThreads > 0 ? Executors.newFixedThreadPool( writerThreads ) : null;
+
+		// permits are counted in kilobytes so large budgets fit into an int
+		this.maxPermits = (int)Math.max( 1, Math.min( Integer.MAX_VALUE, maxBytesInFlight / 1024 ) );
+		this.budget = new Semaphore( maxPermits );
+	}
+
+	/**
+	 * @param numBytes - the (approximate) size of the block in memory
+	 * @param compute - computes the block
+	 * @param writer - writes the block
+	 * @param <B> block type
+	 * @param <R> result type
+	 * @return a future that completes once the block is written, or exceptionally if computing or writing failed
+	 */
+	public < B, R > CompletableFuture< R > submit( final long numBytes, final Callable< B > compute, final BlockWriter< B, R > writer )
+	{
+		// a single block larger than the budget must still be able to run
+		final int permits = (int)Math.min( maxPermits, Math.max( 1, ( numBytes + 1023 ) / 1024 ) );
+		final CompletableFuture< R > result = new CompletableFuture<>();
+
+		computePool.execute( () ->
+		{
+			try
+			{
+				budget.acquire( permits );
+			}
+			catch ( InterruptedException e )
+			{
+				result.completeExceptionally( e );
+				return;
+			}
+
+			final B block;
+
+			try
+			{
+				block = compute.call();
+			}
+			catch ( Throwable e )
+			{
+				budget.release( permits );
+				result.completeExceptionally( e );
+				return;
+			}
+
+			final Runnable write = () ->
+			{
+				try
+				{
+					result.complete( writer.write( block ) );
+				}
+				catch ( Throwable e )
+				{
+					result.completeExceptionally( e );
+				}
+				finally
+				{
+					budget.release( permits );
+				}
+			};
+
+			if ( writerPool == null )
+				write.run();
+			else
+				writerPool.execute( write );
+		});
+
+		return result;
+	}
+
+	/**
+	 * Runs tasks that do not produce blocks (e.g. downsampling, which reads and writes itself) on the compute pool.
+	 *
+	 * @param tasks - the tasks
+	 * @param <R> result type
+	 * @return the futures, all tasks are complete
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public < R > List< Future< R > > invokeAll( final Collection< ? extends Callable< R > > tasks ) throws InterruptedException
+	{
+		return computePool.invokeAll( tasks );
+	}
+
+	public void shutdown() throws InterruptedException
+	{
+		computePool.shutdown();
+		computePool.awaitTermination( Long.MAX_VALUE, TimeUnit.HOURS );
+
+		if ( writerPool != null )
+		{
+			writerPool.shutdown();
+			writerPool.awaitTermination( Long.MAX_VALUE, TimeUnit.HOURS );
+		}
+	}
+
+	public static int bytesPerPixel( final DataType dataType )
+	{
+		switch ( dataType )
+		{
+			case INT8:
+			case UINT8:
+				return 1;
+			case INT16:
+			case UINT16:
+				return 2;
+			case INT32:
+			case UINT32:
+			case FLOAT32:
+				return 4;
+			default:
+				return 8;
+		}
+	}
+}
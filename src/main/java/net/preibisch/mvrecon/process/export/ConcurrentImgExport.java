@@ -0,0 +1,63 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.export;
+
+import java.util.concurrent.Callable;
+
+import mpicbg.spim.data.sequence.ViewDescription;
+import net.imglib2.Interval;
+import net.imglib2.algorithm.blocks.BlockSupplier;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * An {@link ImgExport} that can write several images at the same time. Setting up the output (datasets, metadata,
+ * XML) is done sequentially by {@link #prepareExport(BlockSupplier, Interval, double, double, String, Group)}, while
+ * the returned tasks that compute and write the blocks can run concurrently and share the resources of the exporter
+ * (threads, memory budget).
+ */
+public interface ConcurrentImgExport extends ImgExport
+{
+	/**
+	 * Sets up the output for one image, must not be called concurrently. Parameters as in
+	 * {@link #exportImage(BlockSupplier, Interval, double, double, String, Group)}, the current calibration
+	 * (if {@link Calibrateable}) is used.
+	 *
+	 * @param img - the image
+	 * @param bb - the bounding box used to fuse this image
+	 * @param downsampling - how much it was downsampled (or NaN if not)
+	 * @param anisoF - how much the z-dimension was scaled (or NaN if not)
+	 * @param title - the name of the image
+	 * @param fusionGroup - which views are part of this fusion
+	 * @param <T> pixel type
+	 * @return a task that computes and writes the image (returns success), or null if setting up failed
+	 */
+	< T extends RealType< T > & NativeType< T > > Callable< Boolean > prepareExport(
+			final BlockSupplier< T > img,
+			final Interval bb,
+			final double downsampling,
+			final double anisoF,
+			final String title,
+			final Group< ? extends ViewDescription > fusionGroup );
+}
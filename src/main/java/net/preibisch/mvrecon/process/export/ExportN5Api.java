@@ -33,10 +33,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 
@@ -71,6 +68,7 @@ import net.imglib2.algorithm.blocks.BlockSupplier;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import net.preibisch.legacy.io.IOFunctions;
@@ -89,7 +87,7 @@ import util.BlockSupplierUtils;
 import util.Grid;
 import util.URITools;
 
-public class ExportN5Api implements ImgExport, Calibrateable
+public class ExportN5Api implements ConcurrentImgExport, Calibrateable
 {
 	public static String defaultPathURI = null;
 	public static int defaultOption = 0;
@@ -102,6 +100,8 @@ public class ExportN5Api implements ImgExport, Calibrateable
 	public static boolean defaultOmeZarrOneContainer = true;
 	public static boolean defaultBDV = false;
 	public static boolean defaultMultiRes = true;
+	public static boolean defaultStreamingPyramid = false;
+	public static boolean defaultResume = false;
 	public static String defaultXMLOutURI = null;
 	public static boolean defaultManuallyAssignViewId = false;
 	public static int defaultTpId = 0;
@@ -116,6 +116,9 @@ public class ExportN5Api implements ImgExport, Calibrateable
 
 	public static boolean defaultAdvancedBlockSize = false;
 
+	public static int defaultWriterThreads = 4;
+	public static int defaultMaxInFlightMB = 1024;
+
 	public static int defaultBlocksizeFactorX_N5 = 1;
 	public static int defaultBlocksizeFactorY_N5 = 1;
 	public static int defaultBlocksizeFactorZ_N5 = 1;
@@ -143,6 +146,8 @@ public class ExportN5Api implements ImgExport, Calibrateable
 	Map<ViewId, ViewDescription> vdMap;
 
 	int[][] downsampling = null; //if downsampling is desired
+	boolean streamingPyramid = defaultStreamingPyramid; // build s1 ... sN in memory while writing s0
+	boolean resume = defaultResume; // skip blocks that the journal in the container lists as written
 
 	int bsX = defaultBlocksizeX_N5;
 	int bsY = defaultBlocksizeY_N5;
@@ -152,8 +157,12 @@ public class ExportN5Api implements ImgExport, Calibrateable
 	int bsFactorY = defaultBlocksizeFactorY_N5;
 	int bsFactorZ = defaultBlocksizeFactorZ_N5;
 
+	int writerThreads = defaultWriterThreads; // 0 means the compute threads write
+	int maxInFlightMB = defaultMaxInFlightMB; // memory for s0 blocks that are computed or not yet written
+
 	Compression compression = null;
 	N5Writer driverVolumeWriter = null;
+	BlockWritePipeline pipeline = null; // shared by all images that are exported
 
 	InstantiateViewSetupBigStitcher instantiate;
 	final HashMap<Integer, Integer> countViewIds = new HashMap<>();
@@ -161,6 +170,20 @@ public class ExportN5Api implements ImgExport, Calibrateable
 	@Override
 	public boolean finish()
 	{
+		if ( pipeline != null )
+		{
+			try
+			{
+				pipeline.shutdown();
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+
+			pipeline = null;
+		}
+
 		driverVolumeWriter.close();
 		return true;
 	}
@@ -188,6 +211,32 @@ public class ExportN5Api implements ImgExport, Calibrateable
 			final double anisoF,
 			final String title,
 			final Group<? extends ViewDescription> fusionGroup )
+	{
+		final Callable< Boolean > export = prepareExport( blockSupplierIn, bb, downsamplingF, anisoF, title, fusionGroup );
+
+		if ( export == null )
+			return false;
+
+		try
+		{
+			return export.call();
+		}
+		catch ( Exception e )
+		{
+			IOFunctions.println( "Failed to export '" + title + "': " + e );
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	@Override
+	public <T extends RealType<T> & NativeType<T>> Callable< Boolean > prepareExport(
+			final BlockSupplier<T> blockSupplierIn,
+			final Interval bb,
+			final double downsamplingF,
+			final double anisoF,
+			final String title,
+			final Group<? extends ViewDescription> fusionGroup )
 	{
 		final BlockSupplier<T> blockSupplier = blockSupplierIn.threadSafe();
 
@@ -273,7 +322,7 @@ public class ExportN5Api implements ImgExport, Calibrateable
 			catch ( Exception e )
 			{
 				IOFunctions.println( "Couldn't create " + storageType + " container '" + path + "': " + e );
-				return false;
+				return null;
 			}
 		}
 
@@ -319,13 +368,13 @@ public class ExportN5Api implements ImgExport, Calibrateable
 						instantiate );
 
 				if ( mrInfo == null )
-					return false;
+					return null;
 			}
 			catch (SpimDataException | IOException e)
 			{
 				e.printStackTrace();
 				IOFunctions.println( "Failed to write metadata for '"  + "': " + e );
-				return false;
+				return null;
 			}
 
 			currentChannelIndex = -1;
@@ -434,16 +483,100 @@ public class ExportN5Api implements ImgExport, Calibrateable
 			}
 		}
 
+		// build the multiresolution pyramid while writing s0 (if possible)
+		final StreamingPyramid< T > pyramid;
+
+		if ( streamingPyramid && mrInfo.length > 1 && StreamingPyramid.isSupported( mrInfo, blocksize() ) )
+		{
+			IOFunctions.println( "Building multiresolution pyramid while writing s0." );
+
+			pyramid = new StreamingPyramid<>(
+					driverVolumeWriter,
+					mrInfo,
+					type,
+					blocksize(),
+					( storageType == StorageFormat.ZARR && omeZarrOneContainer ) ? new long[] { currentChannelIndex, currentTPIndex } : null );
+		}
+		else
+		{
+			if ( streamingPyramid && mrInfo.length > 1 )
+				IOFunctions.println( "Blocksize " + Util.printCoordinates( blocksize() ) + " is not divisible by all downsampling steps, cannot build pyramid while writing s0." );
+
+			pyramid = null;
+		}
+
+		final int[] computeBlockSize = new int[] {
+				blocksize()[0] * computeBlocksizeFactor()[ 0 ],
+				blocksize()[1] * computeBlocksizeFactor()[ 1 ],
+				blocksize()[2] * computeBlocksizeFactor()[ 2 ] };
+
+		// journal of written blocks for each level, stored in the container so an export that died can be resumed
+		final BlockJournal[] journals;
+
+		if ( storageType == StorageFormat.N5 || storageType == StorageFormat.ZARR )
+		{
+			// in a 5D OME-ZARR all channels and timepoints share the datasets
+			final String journalKey = ( storageType == StorageFormat.ZARR && omeZarrOneContainer ) ?
+					BlockJournal.journalKey + "_c" + currentChannelIndex + "_t" + currentTPIndex : BlockJournal.journalKey;
+
+			journals = new BlockJournal[ mrInfo.length ];
+
+			for ( int level = 0; level < mrInfo.length; ++level )
+				journals[ level ] = BlockJournal.open(
+						driverVolumeWriter,
+						mrInfo[ level ].dataset,
+						journalKey,
+						mrInfo[ level ].dimensions,
+						blocksize(),
+						( level > 0 && pyramid != null ) ? blocksize() : computeBlockSize, // the streaming pyramid works on storage blocks
+						resume );
+
+			if ( pyramid != null )
+				pyramid.setJournals( journals );
+		}
+		else
+		{
+			if ( resume )
+				IOFunctions.println( "Resuming is not supported for " + storageType + ", writing all blocks." );
+
+			journals = null;
+		}
+
+		// all blocks share the threads and memory budget of this exporter, also across images
+		if ( pipeline == null )
+		{
+			IOFunctions.println( "#threads=" + Threads.numThreads() + ", #writer threads=" + writerThreads + ", max memory for blocks in flight=" + maxInFlightMB + " MB" );
+			pipeline = new BlockWritePipeline( Threads.numThreads(), writerThreads, maxInFlightMB * 1024L * 1024L );
+		}
+
+		return () -> writeImage( blockSupplier, bb, imgInterval, dataType, mrInfo, currentChannelIndex, currentTPIndex, pyramid, journals, computeBlockSize );
+	}
+
+	protected <T extends RealType<T> & NativeType<T>> boolean writeImage(
+			final BlockSupplier<T> blockSupplier,
+			final Interval bb,
+			final Interval imgInterval,
+			final DataType dataType,
+			final MultiResolutionLevelInfo[] mrInfo,
+			final long currentChannelIndex,
+			final long currentTPIndex,
+			final StreamingPyramid< T > pyramid,
+			final BlockJournal[] journals,
+			final int[] computeBlockSize )
+	{
 		// we need to run explicitly in 3D because for OME-ZARR, dimensions are 5D
-		final List<long[][]> grid = N5ApiTools.assembleJobs(
+		final List<long[][]> jobs = N5ApiTools.assembleJobs(
 				null, // no need to go across ViewIds (for now)
 				new long[] { mrInfo[ 0 ].dimensions[ 0 ], mrInfo[ 0 ].dimensions[ 1 ], mrInfo[ 0 ].dimensions[ 2 ] },
 				blocksize(),
-				new int[] {
-						blocksize()[0] * computeBlocksizeFactor()[ 0 ],
-						blocksize()[1] * computeBlocksizeFactor()[ 1 ],
-						blocksize()[2] * computeBlocksizeFactor()[ 2 ] }
-				);
+				computeBlockSize );
+
+		// the order of blocks determines how many partially filled lower resolution blocks are kept in memory
+		final List<long[][]> sortedJobs = ( pyramid == null ) ? jobs : pyramid.sortForStreaming( jobs );
+		final List<long[][]> grid = ( journals == null ) ? sortedJobs : journals[ 0 ].incompleteBlocks( sortedJobs );
+
+		if ( grid.size() < sortedJobs.size() )
+			IOFunctions.println( "Resuming, skipping " + ( sortedJobs.size() - grid.size() ) + " compute blocks of s0 that were already written." );
 
 		IOFunctions.println( "num blocks = " + Grid.create( bb.dimensionsAsLongArray(), blocksize() ).size() + ", size = " + bsX + "x" + bsY + "x" + bsZ );
 		IOFunctions.println( "num compute blocks = " + grid.size() + ", size = " + bsX*bsFactorX + "x" + bsY*bsFactorY + "x" + bsZ*bsFactorZ );
@@ -455,10 +588,8 @@ public class ExportN5Api implements ImgExport, Calibrateable
 		// save full-resolution data (s0)
 		//
 
-		IOFunctions.println( "#threads=" + Threads.numThreads() );
-
-		//final ForkJoinPool poolFullRes = new ForkJoinPool( Threads.numThreads() );
-		final ExecutorService poolFullRes = Executors.newFixedThreadPool( Threads.numThreads() );
+		// blocks are computed and written by separate pools, the memory of blocks in flight is bounded
+		final long bytesPerPixel = BlockWritePipeline.bytesPerPixel( dataType );
 
 		long time = System.currentTimeMillis();
 
@@ -471,22 +602,25 @@ public class ExportN5Api implements ImgExport, Calibrateable
 				if (!retryTracker.beginAttempt())
 					return false;
 
-				final ArrayList< Callable< long[][] > > tasks = new ArrayList<>();
+				final List<Future<long[][]>> futures = new ArrayList<>();
 
 				for ( final long[][] gridBlock : grid )
 				{
-					tasks.add( () ->
-					{
-						final long[] /*blockOffset, blockSize,*/ gridOffset;
-	
-						final long[] blockMin = gridBlock[0].clone();
-						final long[] blockMax = new long[ blockMin.length ];
+					final long[] blockMin = gridBlock[0].clone();
+					final long[] blockMax = new long[ blockMin.length ];
+
+					for ( int d = 0; d < blockMin.length; ++d )
+						blockMax[ d ] = Math.min( imgInterval.max( d ), blockMin[ d ] + gridBlock[1][ d ] - 1 );
 
-						for ( int d = 0; d < blockMin.length; ++d )
-							blockMax[ d ] = Math.min( imgInterval.max( d ), blockMin[ d ] + gridBlock[1][ d ] - 1 );
+					final Interval blockInterval = new FinalInterval( blockMin, blockMax );
 
+					futures.add( pipeline.< RandomAccessibleInterval< T >, long[][] >submit(
+							Intervals.numElements( blockInterval ) * bytesPerPixel,
+							() -> BlockSupplierUtils.arrayImg( blockSupplier, blockInterval ),
+							img ->
+					{
+						final long[] /*blockOffset, blockSize,*/ gridOffset;
 						final RandomAccessibleInterval< T > image;
-						final RandomAccessibleInterval< T > img = BlockSupplierUtils.arrayImg( blockSupplier, new FinalInterval( blockMin, blockMax ) );
 
 						// 5D OME-ZARR CONTAINER
 						if ( storageType == StorageFormat.ZARR && omeZarrOneContainer )
@@ -524,14 +658,28 @@ public class ExportN5Api implements ImgExport, Calibrateable
 								Views.offsetInterval(source, blockOffset, blockSize);
 						*/
 						N5Utils.saveBlock( /*sourceGridBlock*/ image, driverVolumeWriter, mrInfo[ 0 ].dataset, gridOffset );
+
+						if ( journals != null )
+							journals[ 0 ].markComplete( gridBlock );
+
+						// downsample into s1 ... sN, failures are logged and the affected blocks written below
+						if ( pyramid != null )
+						{
+							try
+							{
+								pyramid.addS0Block( img, blockMin );
+							}
+							catch ( Exception e )
+							{
+								IOFunctions.println( "Failed to build pyramid from s0 block " + Util.printCoordinates( blockMin ) + " (will be re-tried from disk): " + e );
+							}
+						}
 	
 						IJ.showProgress( progress.incrementAndGet(), grid.size() );
 	
 						return gridBlock.clone();
-					} );
+					} ) );
 				}
-	
-				final List<Future<long[][]>> futures = poolFullRes.invokeAll( tasks );
 
 				// extract all blocks that failed
 				final Set<long[][]> failedBlocksSet = retryTracker.processWithFutures( futures, grid );
@@ -545,9 +693,6 @@ public class ExportN5Api implements ImgExport, Calibrateable
 				grid.addAll(failedBlocksSet);
 			}
 			while ( grid.size() > 0 );
-
-			poolFullRes.shutdown();
-			poolFullRes.awaitTermination(Long.MAX_VALUE, TimeUnit.HOURS);
 		}
 		catch ( Exception e )
 		{
@@ -561,26 +706,39 @@ public class ExportN5Api implements ImgExport, Calibrateable
 		IJ.showProgress( progress.getAndSet( 0 ), grid.size() );
 		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Saved full resolution, took: " + (System.currentTimeMillis() - time ) + " ms." );
 
+		if ( journals != null )
+			journals[ 0 ].flush();
+
+		if ( pyramid != null )
+		{
+			final int discarded = pyramid.discardPending();
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Saved " + pyramid.numWrittenBlocks() + " blocks of s1 ... s" + ( mrInfo.length - 1 ) + " while writing s0 (" + discarded + " incomplete)." );
+		}
+
 		//
 		// save multiresolution pyramid (s1 ... sN)
 		//
 		for ( int level = 1; level < mrInfo.length; ++level )
 		{
-			//final ForkJoinPool myPool = new ForkJoinPool( Threads.numThreads() );
-			final ExecutorService myPool = Executors.newFixedThreadPool( Threads.numThreads() );
 			final int s = level;
 
 			// we need to run explicitly in 3D because for OME-ZARR, dimensions are 5D
-			final List<long[][]> allBlocks = 
+			// when streaming, only the blocks that could not be written while writing s0 are left
+			final List<long[][]> levelJobs = ( pyramid != null ) ? pyramid.remainingBlocks( level ) :
 					N5ApiTools.assembleJobs(
 							null, // no need to go across ViewIds (for now)
 							new long[] { mrInfo[ level ].dimensions[ 0 ], mrInfo[ level ].dimensions[ 1 ], mrInfo[ level ].dimensions[ 2 ] },
 							blocksize(),
-							new int[] {
-									blocksize()[0] * computeBlocksizeFactor()[ 0 ],
-									blocksize()[1] * computeBlocksizeFactor()[ 1 ],
-									blocksize()[2] * computeBlocksizeFactor()[ 2 ] }
-							);
+							computeBlockSize );
+
+			// when resuming, blocks that were written in a previous run are left out
+			final List<long[][]> allBlocks = ( journals == null ) ? levelJobs : journals[ level ].incompleteBlocks( levelJobs );
+
+			if ( allBlocks.size() == 0 )
+			{
+				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": All blocks of s" + level + " are already saved." );
+				continue;
+			}
 
 			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Downsampling: " + Util.printCoordinates( mrInfo[ level ].absoluteDownsampling ) + " with relative downsampling of " + Util.printCoordinates( mrInfo[ level ].relativeDownsampling ));
 			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": s" + level + " num blocks=" + allBlocks.size() );
@@ -624,13 +782,16 @@ public class ExportN5Api implements ImgExport, Calibrateable
 										gridBlock );
 							}
 
+							if ( journals != null )
+								journals[ s ].markComplete( gridBlock );
+
 							IJ.showProgress( progress.incrementAndGet(), allBlocks.size() );
 
 							return gridBlock.clone();
 						});
 					}
 
-					final List<Future<long[][]>> futures = myPool.invokeAll( tasks );
+					final List<Future<long[][]>> futures = pipeline.invokeAll( tasks );
 
 					// extract all blocks that failed
 					final Set<long[][]> failedBlocksSet = retryTracker.processWithFutures( futures, allBlocks );
@@ -644,9 +805,6 @@ public class ExportN5Api implements ImgExport, Calibrateable
 					allBlocks.addAll(failedBlocksSet);
 				}
 				while ( allBlocks.size() > 0 );
-
-				myPool.shutdown();
-				myPool.awaitTermination( Long.MAX_VALUE, TimeUnit.HOURS);
 			}
 			catch ( Exception e )
 			{
@@ -655,6 +813,9 @@ public class ExportN5Api implements ImgExport, Calibrateable
 				return false;
 			}
 
+			if ( journals != null )
+				journals[ level ].flush();
+
 			IJ.showProgress( progress.getAndSet( 0 ), allBlocks.size() );
 			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Saved level s" + level + ", took: " + (System.currentTimeMillis() - time ) + " ms." );
 		}
@@ -702,6 +863,11 @@ public class ExportN5Api implements ImgExport, Calibrateable
 
 		gdInit.addCheckbox( "Create_multi-resolution pyramid", defaultMultiRes );
 
+		gdInit.addCheckbox( "Resume_previous_export (N5/OME-ZARR only, skips blocks already written)", defaultResume );
+		gdInit.addMessage(
+				"Note: when resuming, use the same path, block sizes and downsampling as for the export you want to resume.",
+				GUIHelper.smallStatusFont, GUIHelper.neutral );
+
 		gdInit.showDialog();
 		if ( gdInit.wasCanceled() )
 			return false;
@@ -710,6 +876,7 @@ public class ExportN5Api implements ImgExport, Calibrateable
 		this.compression = PluginHelper.parseCompression( gdInit );
 		this.bdv = defaultBDV = gdInit.getNextBoolean();
 		final boolean multiRes = defaultMultiRes = gdInit.getNextBoolean();
+		this.resume = defaultResume = gdInit.getNextBoolean();
 		this.splittingType = fusion.getSplittingType();
 		this.instantiate = new InstantiateViewSetupBigStitcher( splittingType );
 
@@ -949,6 +1116,14 @@ public class ExportN5Api implements ImgExport, Calibrateable
 					+ "For example, if you chose a blocksize of 32x32x16 for saving, and you choose factors of 4x4x2,\n"
 					+ "the compute will be performed in blocksizes of 128x128x64, which creates less tasks.", GUIHelper.smallStatusFont, GUIHelper.neutral );
 
+			gd2.addNumericField( "number_of_writer_threads", defaultWriterThreads, 0 );
+			gd2.addNumericField( "max_memory_for_blocks_in_flight (MB)", defaultMaxInFlightMB, 0 );
+
+			gd2.addMessage(
+					"Compressing and writing blocks is done by separate writer threads, so computing is not stalled\n"
+					+ "by storage latency (0 writer threads means the compute threads write). Computing pauses if\n"
+					+ "computed blocks that are not yet written exceed the given amount of memory.", GUIHelper.smallStatusFont, GUIHelper.neutral );
+
 			gd2.showDialog();
 			if ( gd2.wasCanceled() )
 				return false;
@@ -961,6 +1136,9 @@ public class ExportN5Api implements ImgExport, Calibrateable
 			bsFactorY = (int)Math.round( gd2.getNextNumber() );
 			bsFactorZ = (int)Math.round( gd2.getNextNumber() );
 
+			writerThreads = defaultWriterThreads = Math.max( 0, (int)Math.round( gd2.getNextNumber() ) );
+			maxInFlightMB = defaultMaxInFlightMB = Math.max( 1, (int)Math.round( gd2.getNextNumber() ) );
+
 			if ( storageType == StorageFormat.HDF5 )
 			{
 				defaultBlocksizeX_H5 = bsX; defaultBlocksizeY_H5 = bsY; defaultBlocksizeZ_H5 = bsZ;
@@ -1004,12 +1182,17 @@ public class ExportN5Api implements ImgExport, Calibrateable
 
 			gdp.addStringField( "Subsampling_factors (downsampling)", ProposeMipmaps.getArrayString( proposedDownsampling ), 40 );
 			gdp.addMessage( "Blocksize: "+bsX+"x"+bsY+"x"+bsZ, GUIHelper.mediumstatusNonItalicfont, GUIHelper.neutral );
+			gdp.addCheckbox( "Build_pyramid_while_writing_full_resolution (does not re-read s0)", defaultStreamingPyramid );
+			gdp.addMessage(
+					"Downsampled blocks are kept in memory until complete, requires the blocksize\n"
+					+ "to be divisible by all relative downsampling steps (otherwise s0 is re-read).", GUIHelper.smallStatusFont, GUIHelper.neutral );
 
 			gdp.showDialog();
 			if ( gdp.wasCanceled() )
 				return false;
 
 			final String subsampling = gdp.getNextString();
+			this.streamingPyramid = defaultStreamingPyramid = gdp.getNextBoolean();
 			this.downsampling = PluginHelper.parseResolutionsString( subsampling );
 
 			if ( this.downsampling == null || downsampling.length == 0 || downsampling[0] == null || downsampling[0].length == 0)
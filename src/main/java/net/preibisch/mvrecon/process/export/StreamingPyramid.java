@@ -0,0 +1,448 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.export;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.blocks.BlockSupplier;
+import net.imglib2.algorithm.blocks.downsample.Downsample;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.process.n5api.N5ApiTools.MultiResolutionLevelInfo;
+import util.BlockSupplierUtils;
+import util.Grid;
+
+/**
+ * Builds the multi-resolution pyramid (s1 ... sN) while s0 is written. Each fused s0 block is downsampled
+ * in memory and accumulated into the (partial) blocks of s1, which are written and downsampled further into
+ * s2 as soon as they are complete, and so on. This way s0 never has to be read back from the container.
+ *
+ * Blocks that could not be completed while streaming (e.g. because writing failed) are returned by
+ * {@link #remainingBlocks(int)} and have to be written the conventional way afterwards.
+ *
+ * @param <T> pixel type
+ */
+public class StreamingPyramid< T extends NativeType< T > & RealType< T > >
+{
+	final N5Writer n5;
+	final MultiResolutionLevelInfo[] mrInfo;
+	final T type;
+	final int[] blockSize; // 3d
+	final long[] channelTimepointIndex; // null, or { c, t } for a 5D OME-ZARR
+
+	final long[][] dimensions; // 3d, for each level
+	final long[][] numBlocks; // 3d, for each level
+	final int[][] relativeDownsampling; // 3d, for each level
+
+	final List< HashMap< Long, PendingBlock< T > > > pending = new ArrayList<>();
+	final BitSet[] written;
+
+	BlockJournal[] journals = null;
+
+	/**
+	 * @param n5 - the writer
+	 * @param mrInfo - the multiresolution pyramid as created by N5ApiTools.setupMultiResolutionPyramid (3d or 5d)
+	 * @param type - the pixel type
+	 * @param blockSize - the 3d blocksize of the datasets
+	 * @param channelTimepointIndex - null for 3d datasets, { channelIndex, timepointIndex } for 5d OME-ZARR datasets
+	 */
+	public StreamingPyramid(
+			final N5Writer n5,
+			final MultiResolutionLevelInfo[] mrInfo,
+			final T type,
+			final int[] blockSize,
+			final long[] channelTimepointIndex )
+	{
+		this.n5 = n5;
+		this.mrInfo = mrInfo;
+		this.type = type.createVariable();
+		this.blockSize = new int[] { blockSize[ 0 ], blockSize[ 1 ], blockSize[ 2 ] };
+		this.channelTimepointIndex = channelTimepointIndex;
+
+		this.dimensions = new long[ mrInfo.length ][ 3 ];
+		this.numBlocks = new long[ mrInfo.length ][ 3 ];
+		this.relativeDownsampling = new int[ mrInfo.length ][ 3 ];
+		this.written = new BitSet[ mrInfo.length ];
+
+		for ( int level = 0; level < mrInfo.length; ++level )
+		{
+			for ( int d = 0; d < 3; ++d )
+			{
+				dimensions[ level ][ d ] = mrInfo[ level ].dimensions[ d ];
+				numBlocks[ level ][ d ] = ( dimensions[ level ][ d ] + this.blockSize[ d ] - 1 ) / this.blockSize[ d ];
+				relativeDownsampling[ level ][ d ] = mrInfo[ level ].relativeDownsampling[ d ];
+			}
+
+			pending.add( new HashMap<>() );
+			written[ level ] = new BitSet();
+		}
+	}
+
+	/**
+	 * @param journals - journals (one per level) that are updated for every written block, can be null
+	 */
+	public void setJournals( final BlockJournal[] journals ) { this.journals = journals; }
+
+	/**
+	 * Streaming requires that the blocks of each level (and the compute blocks of s0) can be downsampled
+	 * independently, i.e. that the block size is divisible by all relative downsampling factors.
+	 *
+	 * @param mrInfo - the multiresolution pyramid
+	 * @param blockSize - the 3d blocksize of the datasets
+	 * @return true if the pyramid can be built while writing s0
+	 */
+	public static boolean isSupported( final MultiResolutionLevelInfo[] mrInfo, final int[] blockSize )
+	{
+		for ( int level = 1; level < mrInfo.length; ++level )
+			for ( int d = 0; d < 3; ++d )
+				if ( blockSize[ d ] % mrInfo[ level ].relativeDownsampling[ d ] != 0 )
+					return false;
+
+		return true;
+	}
+
+	/**
+	 * Sorts the s0 compute blocks hierarchically by the footprint of the blocks of the coarsest level, then
+	 * the next finer level, and so on. Processing the blocks in this order completes blocks of lower levels
+	 * early, which keeps the number of partially filled blocks that are held in memory small.
+	 *
+	 * @param grid - the s0 compute blocks (3d)
+	 * @return a new, sorted list
+	 */
+	public List< long[][] > sortForStreaming( final List< long[][] > grid )
+	{
+		final IdentityHashMap< long[][], long[] > keys = new IdentityHashMap<>();
+
+		for ( final long[][] gridBlock : grid )
+		{
+			final long[] key = new long[ 3 * ( mrInfo.length - 1 ) ];
+			int i = 0;
+
+			for ( int level = mrInfo.length - 1; level >= 1; --level )
+				for ( int d = 2; d >= 0; --d )
+					key[ i++ ] = gridBlock[ 0 ][ d ] / ( (long)blockSize[ d ] * mrInfo[ level ].absoluteDownsampling[ d ] );
+
+			keys.put( gridBlock, key );
+		}
+
+		final ArrayList< long[][] > sorted = new ArrayList<>( grid );
+		sorted.sort( (a,b) -> compare( keys.get( a ), keys.get( b ) ) );
+
+		return sorted;
+	}
+
+	/**
+	 * Adds a block of s0 that has already been written. It is downsampled into s1, and all blocks of lower
+	 * levels that are completed by it are written.
+	 *
+	 * @param block - the s0 block (zero-min)
+	 * @param offset - the offset of the block in s0
+	 */
+	public void addS0Block( final RandomAccessibleInterval< T > block, final long[] offset )
+	{
+		if ( mrInfo.length > 1 )
+			add( 1, block, offset );
+	}
+
+	/**
+	 * @param level - the level
+	 * @return all (storage) blocks of that level that have not been written while streaming, in the
+	 * format of {@link Grid#create(long[], int[])}
+	 */
+	public List< long[][] > remainingBlocks( final int level )
+	{
+		final ArrayList< long[][] > remaining = new ArrayList<>();
+
+		for ( final long[][] gridBlock : Grid.create( dimensions[ level ], blockSize ) )
+		{
+			final boolean done;
+
+			synchronized ( written[ level ] )
+			{
+				done = written[ level ].get( index( level, gridBlock[ 2 ] ) );
+			}
+
+			if ( !done )
+				remaining.add( gridBlock );
+		}
+
+		return remaining;
+	}
+
+	/**
+	 * @return the number of blocks of all levels that have been written while streaming
+	 */
+	public long numWrittenBlocks()
+	{
+		long count = 0;
+
+		for ( final BitSet w : written )
+			synchronized ( w )
+			{
+				count += w.cardinality();
+			}
+
+		return count;
+	}
+
+	/**
+	 * Drops all partially filled blocks (e.g. after a failure), they are part of {@link #remainingBlocks(int)}.
+	 *
+	 * @return the number of blocks that were dropped
+	 */
+	public int discardPending()
+	{
+		int count = 0;
+
+		for ( final HashMap< Long, PendingBlock< T > > map : pending )
+			synchronized ( map )
+			{
+				count += map.size();
+				map.clear();
+			}
+
+		return count;
+	}
+
+	protected void add( final int level, final RandomAccessibleInterval< T > source, final long[] sourceOffset )
+	{
+		final int[] f = relativeDownsampling[ level ];
+
+		// the part of this level that is covered by the downsampled source
+		final long[] min = new long[ 3 ];
+		final long[] dim = new long[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = sourceOffset[ d ] / f[ d ];
+			dim[ d ] = Math.min( ( sourceOffset[ d ] + source.dimension( d ) ) / f[ d ], dimensions[ level ][ d ] ) - min[ d ];
+
+			if ( dim[ d ] <= 0 )
+				return;
+		}
+
+		final BlockSupplier< T > blocks = BlockSupplier.of( Views.extendBorder( source ) ).andThen( Downsample.downsample( f ) );
+		final ArrayImg< T, ? > piece = BlockSupplierUtils.arrayImg( blocks, new FinalInterval( dim ) );
+		final Object pieceData = storageArray( piece );
+
+		// distribute it to all blocks of this level that it overlaps with
+		final long[] gridMin = new long[ 3 ];
+		final long[] gridMax = new long[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			gridMin[ d ] = min[ d ] / blockSize[ d ];
+			gridMax[ d ] = ( min[ d ] + dim[ d ] - 1 ) / blockSize[ d ];
+		}
+
+		final long[] gridPosition = new long[ 3 ];
+
+		for ( gridPosition[ 2 ] = gridMin[ 2 ]; gridPosition[ 2 ] <= gridMax[ 2 ]; ++gridPosition[ 2 ] )
+			for ( gridPosition[ 1 ] = gridMin[ 1 ]; gridPosition[ 1 ] <= gridMax[ 1 ]; ++gridPosition[ 1 ] )
+				for ( gridPosition[ 0 ] = gridMin[ 0 ]; gridPosition[ 0 ] <= gridMax[ 0 ]; ++gridPosition[ 0 ] )
+				{
+					final PendingBlock< T > block = pendingBlock( level, gridPosition );
+
+					if ( block.insert( pieceData, min, dim ) )
+					{
+						synchronized ( pending.get( level ) )
+						{
+							pending.get( level ).remove( (long)index( level, gridPosition ) );
+						}
+
+						complete( level, block );
+					}
+				}
+	}
+
+	protected void complete( final int level, final PendingBlock< T > block )
+	{
+		try
+		{
+			write( level, block );
+
+			synchronized ( written[ level ] )
+			{
+				written[ level ].set( index( level, block.gridPosition ) );
+			}
+
+			if ( journals != null )
+				journals[ level ].markComplete( block.gridPosition );
+		}
+		catch ( Exception e )
+		{
+			// it will be part of remainingBlocks() and written from the previous level
+			IOFunctions.println( "Failed to write block " + Util.printCoordinates( block.gridPosition ) + " of '" + mrInfo[ level ].dataset + "' (will be re-tried): " + e );
+		}
+
+		// the data in memory is correct even if writing failed
+		if ( level + 1 < mrInfo.length )
+			add( level + 1, block.img, block.min );
+	}
+
+	protected void write( final int level, final PendingBlock< T > block )
+	{
+		if ( channelTimepointIndex == null )
+		{
+			N5Utils.saveNonEmptyBlock( block.img, n5, mrInfo[ level ].dataset, block.gridPosition, type.createVariable() );
+		}
+		else
+		{
+			// block is 3d, make it 5d
+			final RandomAccessibleInterval< T > img5d = Views.offsetInterval(
+					Views.addDimension( Views.addDimension( block.img ) ),
+					new long[] { 0, 0, 0, channelTimepointIndex[ 0 ], channelTimepointIndex[ 1 ] },
+					new long[] { block.img.dimension( 0 ), block.img.dimension( 1 ), block.img.dimension( 2 ), 1, 1 } );
+
+			final long[] gridOffset = new long[] {
+					block.gridPosition[ 0 ], block.gridPosition[ 1 ], block.gridPosition[ 2 ],
+					channelTimepointIndex[ 0 ], channelTimepointIndex[ 1 ] }; // because blocksize in C & T is 1
+
+			N5Utils.saveNonEmptyBlock( img5d, n5, mrInfo[ level ].dataset, gridOffset, type.createVariable() );
+		}
+	}
+
+	protected PendingBlock< T > pendingBlock( final int level, final long[] gridPosition )
+	{
+		final HashMap< Long, PendingBlock< T > > map = pending.get( level );
+		final long key = index( level, gridPosition );
+
+		synchronized ( map )
+		{
+			PendingBlock< T > block = map.get( key );
+
+			if ( block == null )
+			{
+				final long[] min = new long[ 3 ];
+				final long[] dim = new long[ 3 ];
+
+				for ( int d = 0; d < 3; ++d )
+				{
+					min[ d ] = gridPosition[ d ] * blockSize[ d ];
+					dim[ d ] = Math.min( blockSize[ d ], dimensions[ level ][ d ] - min[ d ] );
+				}
+
+				block = new PendingBlock<>( new ArrayImgFactory<>( type ).create( dim ), min, gridPosition.clone() );
+				map.put( key, block );
+			}
+
+			return block;
+		}
+	}
+
+	protected int index( final int level, final long[] gridPosition )
+	{
+		final long[] n = numBlocks[ level ];
+		return (int)( gridPosition[ 0 ] + n[ 0 ] * ( gridPosition[ 1 ] + n[ 1 ] * gridPosition[ 2 ] ) );
+	}
+
+	protected static Object storageArray( final ArrayImg< ?, ? > img )
+	{
+		return ( ( ArrayDataAccess< ? > ) img.update( null ) ).getCurrentStorageArray();
+	}
+
+	protected static int compare( final long[] a, final long[] b )
+	{
+		for ( int i = 0; i < a.length; ++i )
+			if ( a[ i ] != b[ i ] )
+				return a[ i ] < b[ i ] ? -1 : 1;
+
+		return 0;
+	}
+
+	/**
+	 * A block of a lower resolution level that is filled piece by piece
+	 */
+	protected static class PendingBlock< T extends NativeType< T > >
+	{
+		final ArrayImg< T, ? > img;
+		final Object data;
+		final long[] min, gridPosition;
+		final int[] dim;
+
+		long remaining;
+
+		public PendingBlock( final ArrayImg< T, ? > img, final long[] min, final long[] gridPosition )
+		{
+			this.img = img;
+			this.data = storageArray( img );
+			this.min = min;
+			this.gridPosition = gridPosition;
+			this.dim = new int[] { (int)img.dimension( 0 ), (int)img.dimension( 1 ), (int)img.dimension( 2 ) };
+			this.remaining = img.size();
+		}
+
+		/**
+		 * Copies the overlapping part of a piece into this block.
+		 *
+		 * @param pieceData - primitive array of the piece
+		 * @param pieceMin - the offset of the piece
+		 * @param pieceDim - the dimensions of the piece
+		 * @return true if the block is complete
+		 */
+		public synchronized boolean insert( final Object pieceData, final long[] pieceMin, final long[] pieceDim )
+		{
+			final long[] from = new long[ 3 ];
+			final long[] to = new long[ 3 ];
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				from[ d ] = Math.max( pieceMin[ d ], min[ d ] );
+				to[ d ] = Math.min( pieceMin[ d ] + pieceDim[ d ], min[ d ] + dim[ d ] );
+
+				if ( to[ d ] <= from[ d ] )
+					return false;
+			}
+
+			final int length = (int)( to[ 0 ] - from[ 0 ] );
+
+			for ( long z = from[ 2 ]; z < to[ 2 ]; ++z )
+				for ( long y = from[ 1 ]; y < to[ 1 ]; ++y )
+				{
+					final long src = ( ( z - pieceMin[ 2 ] ) * pieceDim[ 1 ] + ( y - pieceMin[ 1 ] ) ) * pieceDim[ 0 ] + ( from[ 0 ] - pieceMin[ 0 ] );
+					final long dst = ( ( z - min[ 2 ] ) * dim[ 1 ] + ( y - min[ 1 ] ) ) * dim[ 0 ] + ( from[ 0 ] - min[ 0 ] );
+
+					System.arraycopy( pieceData, (int)src, data, (int)dst, length );
+				}
+
+			remaining -= length * ( to[ 1 ] - from[ 1 ] ) * ( to[ 2 ] - from[ 2 ] );
+
+			return remaining == 0;
+		}
+	}
+}
@@ -55,6 +55,21 @@ class Blending
 		return new BlendingBlockSupplier( interval, border, blending, transform );
 	}
 
+	/**
+	 * The blending weight in one dimension at a (non-transformed) position {@code l} relative to the interval min,
+	 * with {@code b0...b3} as in {@link BlendingBlockSupplier}.
+	 */
+	static float computeWeight(
+			final float l,
+			final float blending,
+			final float b0,
+			final float b1,
+			final float b2,
+			final float b3 )
+	{
+		return BlendingBlockSupplier.computeWeight( l, blending, b0, b1, b2, b3 );
+	}
+
 	private static class BlendingBlockSupplier implements BlockSupplier< FloatType >
 	{
 		private final AffineTransform3D t;
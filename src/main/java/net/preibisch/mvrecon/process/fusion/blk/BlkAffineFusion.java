@@ -300,7 +300,7 @@ public class BlkAffineFusion
 		//return BlockAlgoUtils.cellImg( blocks, fusionInterval.dimensionsAsLongArray(), blockSize );
 	}
 
-	private static < T extends NativeType< T > > BlockSupplier< T > convertToOutputType(
+	static < T extends NativeType< T > > BlockSupplier< T > convertToOutputType(
 			final BlockSupplier< FloatType > floatBlocks,
 			final Converter< FloatType, T > converter,
 			final T type )
@@ -342,12 +342,22 @@ public class BlkAffineFusion
 			final Coefficients coefficients,
 			final AffineTransform3D transform,
 			final Interpolation interpolation )
+	{
+		return inputBlocks( inputImg, coefficients ).andThen( Transform.affine( transform, interpolation ) );
+	}
+
+	/**
+	 * @return the (extended) input image as FloatType, intensity-adjusted if {@code coefficients} are not null
+	 */
+	static < T extends NativeType< T > > BlockSupplier< FloatType > inputBlocks(
+			final RandomAccessibleInterval< T > inputImg,
+			final Coefficients coefficients )
 	{
 		BlockSupplier< FloatType > blocks = BlockSupplier.of( extendInput( inputImg ) )
 				.andThen( Convert.convert( new FloatType() ) );
 		if ( coefficients != null )
 			blocks = blocks.andThen( FastLinearIntensityMap.linearIntensityMap( coefficients, inputImg ) );
-		return blocks.andThen( Transform.affine( transform, interpolation ) );
+		return blocks;
 	}
 
 	private static < T extends NativeType< T > > RandomAccessible< T > extendInput(
@@ -373,7 +383,7 @@ public class BlkAffineFusion
 		}
 	}
 
-	private static AffineTransform3D concatenateBoundingBoxOffset(
+	static AffineTransform3D concatenateBoundingBoxOffset(
 			final AffineTransform3D transformFromSource,
 			final Interval boundingBoxInTarget )
 	{
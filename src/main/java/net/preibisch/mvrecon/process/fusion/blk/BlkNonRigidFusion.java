@@ -0,0 +1,352 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.blk;
+
+import static net.imglib2.algorithm.blocks.transform.Transform.Interpolation.NEARESTNEIGHBOR;
+import static net.imglib2.algorithm.blocks.transform.Transform.Interpolation.NLINEAR;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import mpicbg.models.AffineModel1D;
+import mpicbg.models.AffineModel3D;
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicViewDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Dimensions;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.blocks.BlockSupplier;
+import net.imglib2.algorithm.blocks.convert.Convert;
+import net.imglib2.algorithm.blocks.transform.Transform;
+import net.imglib2.algorithm.blocks.transform.Transform.Interpolation;
+import net.imglib2.converter.Converter;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Cast;
+import net.imglib2.util.Pair;
+import net.imglib2.util.Util;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.fiji.plugin.fusion.FusionGUI.FusionType;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.ViewInterestPointLists;
+import net.preibisch.mvrecon.process.downsampling.DownsampleTools;
+import net.preibisch.mvrecon.process.fusion.FusionTools;
+import net.preibisch.mvrecon.process.fusion.lazy.LazyFusionTools;
+import net.preibisch.mvrecon.process.fusion.lazy.LazyNonRigidFusion;
+import net.preibisch.mvrecon.process.fusion.transformed.TransformVirtual;
+import net.preibisch.mvrecon.process.fusion.transformed.nonrigid.CorrespondingIP;
+import net.preibisch.mvrecon.process.fusion.transformed.nonrigid.NonRigidTools;
+import net.preibisch.mvrecon.process.fusion.transformed.nonrigid.SimpleReferenceIP;
+import net.preibisch.mvrecon.process.fusion.transformed.nonrigid.grid.ModelGrid;
+import net.preibisch.mvrecon.process.fusion.transformed.nonrigid.grid.ModelGridStore;
+import net.preibisch.mvrecon.process.interestpointregistration.TransformationTools;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Block-based non-rigid fusion, the counterpart of {@link BlkAffineFusion}. The {@link ModelGrid}s are evaluated
+ * per block into primitive arrays ({@link ModelGridField}) and images and weights are resampled in tight loops
+ * ({@link NonRigid}). Views without a grid (not enough corresponding points) are fused affinely as in
+ * {@link BlkAffineFusion}. Falls back to {@link LazyNonRigidFusion} for 2d, intensity adjustments and when
+ * displaying distances.
+ */
+public class BlkNonRigidFusion
+{
+	public static < T extends RealType< T > & NativeType< T > > BlockSupplier< T > init(
+			final Converter< FloatType, T > converter,
+			final BasicImgLoader imgloader,
+			final Map< ViewId, AffineTransform3D > viewRegistrations,
+			final Map< ViewId, ViewInterestPointLists > viewInterestPoints,
+			final Map< ViewId, ? extends BasicViewDescription< ? > > viewDescriptions,
+			final Collection< ? extends ViewId > viewsToFuse,
+			final Collection< ? extends ViewId > viewsToUse,
+			final List< String > labels,
+			final FusionType fusionType,
+			final boolean displayDistances,
+			final long[] controlPointDistance,
+			final double alpha,
+			final boolean virtualGrid,
+			final double anisotropyFactor, // can be Double.NAN, only for content-based fusion
+			final int interpolationMethod,
+			final Map< ViewId, AffineModel1D > intensityAdjustments,
+			final ExecutorService service,
+			final Interval fusionInterval,
+			final T type,
+			final int[] blockSize )
+	{
+		return init(
+				converter, imgloader, viewRegistrations, viewInterestPoints, viewDescriptions, viewsToFuse, viewsToUse, labels,
+				fusionType, displayDistances, controlPointDistance, alpha, virtualGrid, anisotropyFactor, interpolationMethod, intensityAdjustments,
+				service, fusionInterval, type, blockSize, null );
+	}
+
+	/**
+	 * Same as above, (non-virtual) grids are loaded from the gridStore if their inputs did not change, otherwise computed
+	 * and saved to it. Can be null.
+	 */
+	public static < T extends RealType< T > & NativeType< T > > BlockSupplier< T > init(
+			final Converter< FloatType, T > converter,
+			final BasicImgLoader imgloader,
+			final Map< ViewId, AffineTransform3D > viewRegistrations,
+			final Map< ViewId, ViewInterestPointLists > viewInterestPoints,
+			final Map< ViewId, ? extends BasicViewDescription< ? > > viewDescriptions,
+			final Collection< ? extends ViewId > viewsToFuse,
+			final Collection< ? extends ViewId > viewsToUse,
+			final List< String > labels,
+			final FusionType fusionType,
+			final boolean displayDistances,
+			final long[] controlPointDistance,
+			final double alpha,
+			final boolean virtualGrid,
+			final double anisotropyFactor, // can be Double.NAN, only for content-based fusion
+			final int interpolationMethod,
+			final Map< ViewId, AffineModel1D > intensityAdjustments,
+			final ExecutorService service,
+			final Interval fusionInterval,
+			final T type,
+			final int[] blockSize,
+			final ModelGridStore gridStore )
+	{
+		// go through the views and check if they are all 2-dimensional
+		final boolean is2d = viewsToFuse.stream()
+				.map( viewDescriptions::get )
+				.map( BasicViewDescription::getViewSetup )
+				.filter( BasicViewSetup::hasSize )
+				.allMatch( vs -> vs.getSize().dimension( 2 ) == 1 );
+
+		if ( is2d || intensityAdjustments != null || displayDistances )
+		{
+			IOFunctions.println( "BlkNonRigidFusion: Fusion method not supported (yet). Falling back to LazyNonRigidFusion." );
+			return BlockSupplier.of(
+					LazyNonRigidFusion.init(
+							converter, imgloader, viewRegistrations, viewInterestPoints, viewDescriptions, viewsToFuse, viewsToUse, labels,
+							fusionType, displayDistances, controlPointDistance, alpha, virtualGrid, interpolationMethod, intensityAdjustments,
+							service, fusionInterval, type, blockSize ) );
+		}
+
+		// finding the corresponding interest points is the same for all levels
+		final HashMap< ViewId, Collection< CorrespondingIP > > annotatedIps = NonRigidTools.assembleIPsForNonRigid( viewInterestPoints, viewsToUse, labels );
+
+		// find unique interest points in the pairs of images
+		final ArrayList< HashSet< CorrespondingIP > > uniqueIPs = NonRigidTools.findUniqueInterestPoints( annotatedIps );
+
+		// create final registrations for all views and a list of corresponding interest points
+		final HashMap< ViewId, AffineTransform3D > registrations =
+				TransformVirtual.adjustAllTransforms(
+						viewRegistrations,
+						Double.NaN,
+						Double.NaN );
+
+		// transform unique interest points
+		final ArrayList< HashSet< CorrespondingIP > > transformedUniqueIPs = NonRigidTools.transformUniqueIPs( uniqueIPs, registrations );
+
+		// compute an average location of each unique interest point that is defined by many (2...n) corresponding interest points
+		// this location in world coordinates defines where each individual point should be "warped" to
+		final Pair< HashMap< ViewId, ArrayList< SimpleReferenceIP > >, Double > uniquePointsData = NonRigidTools.computeReferencePoints( annotatedIps.keySet(), transformedUniqueIPs );
+
+		// compute all grids, if it does not contain a grid we use the old affine model
+		final HashMap< ViewId, ModelGrid > nonrigidGrids = NonRigidTools.computeGrids( viewsToFuse, uniquePointsData.getA(), controlPointDistance, alpha, fusionInterval, virtualGrid, gridStore, service );
+
+		final HashMap< ViewId, Dimensions > viewDimensions = LazyFusionTools.assembleDimensions( viewsToFuse, viewDescriptions );
+		final Interpolation interpolation = ( interpolationMethod == 1 ) ? NLINEAR : NEARESTNEIGHBOR;
+
+		// to be able to use the "lowest ViewId" wins strategy
+		final List< ? extends ViewId > sortedViewIds = new ArrayList<>( viewsToFuse );
+		Collections.sort( sortedViewIds );
+
+		// the affine bounding boxes are expanded by the maximal non-rigid distance
+		final Overlap overlap = new Overlap(
+				sortedViewIds,
+				registrations,
+				viewDimensions,
+				NonRigidTools.defaultOverlapExpansion( uniquePointsData.getB() ),
+				3 )
+				.filter( fusionInterval )
+				.offset( fusionInterval.minAsLongArray() );
+
+		final List< BlockSupplier< FloatType > > images = new ArrayList<>( overlap.numViews() );
+		final List< BlockSupplier< FloatType > > weights = new ArrayList<>( overlap.numViews() );
+		final List< BlockSupplier< UnsignedByteType > > masks = new ArrayList<>( overlap.numViews() );
+
+		for ( final ViewId viewId : overlap.getViewIds() )
+		{
+			final AffineTransform3D model = registrations.get( viewId ).copy();
+
+			// open the image at a reduced resolution level if it makes sense, the grid maps to full resolution
+			// so for non-rigid views the inverse of the opener is applied after the interpolated model
+			final double[] usedDownsampleFactors = new double[ 3 ];
+			final Pair< RandomAccessibleInterval, AffineTransform3D > inputData =
+					DownsampleTools.openDownsampled2( imgloader, viewId, model, usedDownsampleFactors );
+
+			final AffineModel3D invertedModelOpener;
+
+			if ( inputData.getB() != null )
+			{
+				model.concatenate( inputData.getB() );
+				invertedModelOpener = TransformationTools.getModel( inputData.getB() ).createInverse();
+			}
+			else
+			{
+				invertedModelOpener = null;
+			}
+
+			final RandomAccessibleInterval inputImg = inputData.getA();
+
+			final ModelGrid grid = nonrigidGrids.get( viewId );
+			final ModelGridField field = grid == null ? null : new ModelGridField( grid, invertedModelOpener, fusionInterval.minAsLongArray() );
+			final AffineTransform3D transform = BlkAffineFusion.concatenateBoundingBoxOffset( model, fusionInterval );
+
+			final BlockSupplier< FloatType > inputBlocks = BlkAffineFusion.inputBlocks( Cast.unchecked( inputImg ), null );
+
+			if ( field == null )
+				images.add( inputBlocks.andThen( Transform.affine( transform, interpolation ) ) );
+			else
+				images.add( NonRigid.transform( inputBlocks, field, interpolation ) );
+
+			// instantiate blending if necessary
+			final float[] blending = Util.getArrayFromValue( FusionTools.defaultBlendingRange, 3 );
+			final float[] border = Util.getArrayFromValue( FusionTools.defaultBlendingBorder, 3 );
+
+			// adjust both for z-scaling (anisotropy), downsampling, and registrations itself
+			FusionTools.adjustBlending( viewDimensions.get( viewId ), Group.pvid( viewId ), blending, border, model );
+
+			// adjust content-based for downsampling
+			final double[] sigma1 = Util.getArrayFromValue( ContentBased.defaultContentBasedSigma1, 3 );
+			final double[] sigma2 = Util.getArrayFromValue( ContentBased.defaultContentBasedSigma2, 3 );
+			FusionTools.adjustContentBased( viewDescriptions.get( viewId ), sigma1, sigma2, usedDownsampleFactors, anisotropyFactor );
+
+			switch ( fusionType )
+			{
+			case AVG:
+				weights.add( masking( inputImg, border, transform, field ).andThen( Convert.convert( new FloatType() ) ) );
+				break;
+			case AVG_BLEND:
+				weights.add( blending( inputImg, border, blending, transform, field ) );
+				break;
+			case MAX_INTENSITY:
+			case LOWEST_VIEWID_WINS:
+			case HIGHEST_VIEWID_WINS:
+				masks.add( masking( inputImg, border, transform, field ) );
+				break;
+			case CLOSEST_PIXEL_WINS:
+				// we need to use the blending weights, whatever weight is highest wins
+				weights.add( blending( inputImg, border, blending, transform, field ) );
+				break;
+			case AVG_BLEND_CONTENT:
+				weights.add( MultiplicativeCombiner.create(
+						contentBased( inputImg, sigma1, sigma2, transform, field ),
+						blending( inputImg, border, blending, transform, field ) ) );
+				break;
+			case AVG_CONTENT:
+				weights.add( MultiplicativeCombiner.create(
+						contentBased( inputImg, sigma1, sigma2, transform, field ),
+						masking( inputImg, border, transform, field ).andThen( Convert.convert( new FloatType() ) ) ) );
+				break;
+			default:
+				// should never happen
+				throw new IllegalStateException();
+			}
+		}
+
+		final BlockSupplier< FloatType > floatBlocks;
+		switch ( fusionType )
+		{
+		case AVG:
+		case AVG_CONTENT:
+		case AVG_BLEND_CONTENT:
+		case AVG_BLEND:
+			floatBlocks = WeightedAverage.of( images, weights, overlap );
+			break;
+		case MAX_INTENSITY:
+			floatBlocks = MaxIntensity.of( images, masks, overlap );
+			break;
+		case LOWEST_VIEWID_WINS:
+			floatBlocks = LowestViewIdWins.of( images, masks, overlap );
+			break;
+		case HIGHEST_VIEWID_WINS:
+			floatBlocks = HighestViewIdWins.of( images, masks, overlap );
+			break;
+		case CLOSEST_PIXEL_WINS:
+			floatBlocks = ClosestPixelWins.of( images, weights, overlap );
+			break;
+		default:
+			// should never happen
+			throw new IllegalStateException();
+		}
+
+		return BlkAffineFusion.convertToOutputType(
+				floatBlocks,
+				converter, type )
+				.tile( 32 );
+	}
+
+	private static BlockSupplier< UnsignedByteType > masking(
+			final Interval inputImg,
+			final float[] border,
+			final AffineTransform3D transform,
+			final ModelGridField field )
+	{
+		if ( field == null )
+			return Masking.create( inputImg, border, transform );
+		else
+			return NonRigid.masking( inputImg, border, field );
+	}
+
+	private static BlockSupplier< FloatType > blending(
+			final Interval inputImg,
+			final float[] border,
+			final float[] blending,
+			final AffineTransform3D transform,
+			final ModelGridField field )
+	{
+		if ( field == null )
+			return Blending.create( inputImg, border, blending, transform );
+		else
+			return NonRigid.blending( inputImg, border, blending, field );
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static BlockSupplier< FloatType > contentBased(
+			final RandomAccessibleInterval inputImg,
+			final double[] sigma1,
+			final double[] sigma2,
+			final AffineTransform3D transform,
+			final ModelGridField field )
+	{
+		final BlockSupplier< FloatType > cb = ContentBased.create( inputImg, sigma1, sigma2, ContentBased.defaultScale );
+
+		if ( field == null )
+			return cb.andThen( Transform.affine( transform, Interpolation.NLINEAR ) );
+		else
+			return NonRigid.transform( cb, field, Interpolation.NLINEAR );
+	}
+}
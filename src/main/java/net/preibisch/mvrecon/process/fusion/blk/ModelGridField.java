@@ -0,0 +1,213 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.blk;
+
+import mpicbg.models.AffineModel3D;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.fusion.transformed.nonrigid.grid.ModelGrid;
+import net.preibisch.mvrecon.process.fusion.transformed.nonrigid.grid.NumericAffineModel3D;
+
+/**
+ * The parameters of a {@link ModelGrid} in a flat {@code double[]} (12 per control point, column-major as
+ * {@link AffineModel3D#toArray(double[])}), used to compute for each pixel of a block where it maps to in the
+ * input image. The affine models are n-linearly interpolated between control points, exactly as
+ * {@link ModelGrid#realRandomAccess()} does, but along X the bilinear interpolation in Y and Z is only done
+ * once per grid cell.
+ */
+class ModelGridField
+{
+	private static final int N = 12;
+
+	private final int gx, gy, gz;
+
+	private final double[] params;
+
+	/**
+	 * world coordinates of the first control point
+	 */
+	private final double minX, minY, minZ;
+
+	/**
+	 * world coordinates of pixel (0,0,0) of the blocks
+	 */
+	private final long offsetX, offsetY, offsetZ;
+
+	private final double cpdX, cpdY, cpdZ;
+
+	/**
+	 * @param grid - the non-rigid grid
+	 * @param invertedModelOpener - maps from full resolution to the opened (downsampled) input image, can be null
+	 * @param offset - world coordinates of pixel (0,0,0) of the blocks (e.g. the min of the fusion interval)
+	 */
+	public ModelGridField(
+			final ModelGrid grid,
+			final AffineModel3D invertedModelOpener,
+			final long[] offset )
+	{
+		final RandomAccessibleInterval< NumericAffineModel3D > models = grid.getGrid();
+
+		this.gx = ( int ) models.dimension( 0 );
+		this.gy = ( int ) models.dimension( 1 );
+		this.gz = ( int ) models.dimension( 2 );
+
+		if ( invertedModelOpener == null && grid.getCoefficients() != null )
+		{
+			// already stored as primitive array, it is only read
+			this.params = grid.getCoefficients();
+		}
+		else
+		{
+			this.params = new double[ gx * gy * gz * N ];
+
+			// the opener is applied after the interpolated model, which is linear in the parameters,
+			// so it can be concatenated to every control point instead of every pixel
+			final double[] tmp = new double[ N ];
+			final Cursor< NumericAffineModel3D > cursor = Views.flatIterable( models ).cursor();
+
+			for ( int i = 0; cursor.hasNext(); ++i )
+			{
+				final AffineModel3D model = cursor.next().getModel().copy();
+
+				if ( invertedModelOpener != null )
+					model.preConcatenate( invertedModelOpener );
+
+				model.toArray( tmp );
+				System.arraycopy( tmp, 0, params, i * N, N );
+			}
+		}
+
+		final long[] min = grid.getMin();
+		final long[] cpd = grid.getControlPointDistance();
+
+		this.minX = min[ 0 ];
+		this.minY = min[ 1 ];
+		this.minZ = min[ 2 ];
+
+		this.offsetX = offset[ 0 ];
+		this.offsetY = offset[ 1 ];
+		this.offsetZ = offset[ 2 ];
+
+		this.cpdX = cpd[ 0 ];
+		this.cpdY = cpd[ 1 ];
+		this.cpdZ = cpd[ 2 ];
+	}
+
+	/**
+	 * Computes the input image coordinates of every pixel of a block (flat, X fastest).
+	 *
+	 * @param min - min of the block (relative to the offset)
+	 * @param size - size of the block
+	 * @param x - input image x-coordinates
+	 * @param y - input image y-coordinates
+	 * @param z - input image z-coordinates
+	 */
+	public void compute( final long[] min, final int[] size, final float[] x, final float[] y, final float[] z )
+	{
+		final int sx = size[ 0 ];
+		final int sy = size[ 1 ];
+		final int sz = size[ 2 ];
+
+		final double[] p0 = new double[ N ];
+		final double[] p1 = new double[ N ];
+		final double[] p = new double[ N ];
+
+		for ( int zi = 0; zi < sz; ++zi )
+		{
+			final double wz = min[ 2 ] + zi + offsetZ;
+			final double cz = clamp( ( wz - minZ ) / cpdZ, gz );
+			final int z0 = Math.min( ( int ) cz, Math.max( 0, gz - 2 ) );
+			final double tz = cz - z0;
+
+			for ( int yi = 0; yi < sy; ++yi )
+			{
+				final double wy = min[ 1 ] + yi + offsetY;
+				final double cy = clamp( ( wy - minY ) / cpdY, gy );
+				final int y0 = Math.min( ( int ) cy, Math.max( 0, gy - 2 ) );
+				final double ty = cy - y0;
+
+				final int offset = ( zi * sy + yi ) * sx;
+				int cell = -1;
+
+				for ( int xi = 0; xi < sx; ++xi )
+				{
+					final double wx = min[ 0 ] + xi + offsetX;
+					final double cx = clamp( ( wx - minX ) / cpdX, gx );
+					final int x0 = Math.min( ( int ) cx, Math.max( 0, gx - 2 ) );
+					final double tx = cx - x0;
+
+					// the models at both X-ends of the current cell only change when entering a new cell
+					if ( x0 != cell )
+					{
+						bilinear( x0, y0, z0, ty, tz, p0 );
+						bilinear( Math.min( x0 + 1, gx - 1 ), y0, z0, ty, tz, p1 );
+						cell = x0;
+					}
+
+					for ( int j = 0; j < N; ++j )
+						p[ j ] = p0[ j ] + tx * ( p1[ j ] - p0[ j ] );
+
+					x[ offset + xi ] = ( float ) ( p[ 0 ] * wx + p[ 3 ] * wy + p[ 6 ] * wz + p[ 9 ] );
+					y[ offset + xi ] = ( float ) ( p[ 1 ] * wx + p[ 4 ] * wy + p[ 7 ] * wz + p[ 10 ] );
+					z[ offset + xi ] = ( float ) ( p[ 2 ] * wx + p[ 5 ] * wy + p[ 8 ] * wz + p[ 11 ] );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Interpolates the models at grid position (x, y+ty, z+tz).
+	 */
+	private void bilinear( final int x, final int y, final int z, final double ty, final double tz, final double[] out )
+	{
+		final int y1 = Math.min( y + 1, gy - 1 );
+		final int z1 = Math.min( z + 1, gz - 1 );
+
+		final int i00 = index( x, y, z );
+		final int i10 = index( x, y1, z );
+		final int i01 = index( x, y, z1 );
+		final int i11 = index( x, y1, z1 );
+
+		final double w00 = ( 1 - ty ) * ( 1 - tz );
+		final double w10 = ty * ( 1 - tz );
+		final double w01 = ( 1 - ty ) * tz;
+		final double w11 = ty * tz;
+
+		for ( int j = 0; j < N; ++j )
+			out[ j ] = w00 * params[ i00 + j ] + w10 * params[ i10 + j ] + w01 * params[ i01 + j ] + w11 * params[ i11 + j ];
+	}
+
+	private int index( final int x, final int y, final int z )
+	{
+		return ( ( z * gy + y ) * gx + x ) * N;
+	}
+
+	/**
+	 * the grid covers the fusion interval, outside of it the models of the border are used
+	 */
+	private static double clamp( final double c, final int size )
+	{
+		return Math.max( 0, Math.min( size - 1, c ) );
+	}
+}
@@ -0,0 +1,423 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.blk;
+
+import static net.imglib2.type.PrimitiveType.FLOAT;
+import static net.imglib2.util.Util.safeInt;
+
+import java.util.Arrays;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.algorithm.blocks.AbstractBlockSupplier;
+import net.imglib2.algorithm.blocks.BlockSupplier;
+import net.imglib2.algorithm.blocks.transform.Transform.Interpolation;
+import net.imglib2.blocks.BlockInterval;
+import net.imglib2.blocks.TempArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Cast;
+import net.imglib2.util.Intervals;
+
+/**
+ * Non-rigid counterparts of {@code Transform.affine(...)}, {@link Blending} and {@link Masking}. For each block
+ * the input coordinates of all pixels are computed from a {@link ModelGridField}, images are resampled from a
+ * single block of the input that covers all these coordinates, weights are computed directly from the coordinates.
+ */
+class NonRigid
+{
+	/**
+	 * @param source - the input image (must be defined everywhere, e.g. extended)
+	 * @param field - the coordinates in the input for each pixel
+	 * @param interpolation - nearest neighbor or n-linear
+	 * @return the input transformed into the output space
+	 */
+	public static BlockSupplier< FloatType > transform(
+			final BlockSupplier< FloatType > source,
+			final ModelGridField field,
+			final Interpolation interpolation )
+	{
+		return new TransformBlockSupplier( source, field, interpolation );
+	}
+
+	/**
+	 * Conceptually, the given {@code interval} is filled with blending weights (see {@link Blending}), then transformed with {@code field}.
+	 *
+	 * @param interval
+	 * @param border
+	 * @param blending
+	 * @param field
+	 */
+	public static BlockSupplier< FloatType > blending(
+			final Interval interval,
+			final float[] border,
+			final float[] blending,
+			final ModelGridField field )
+	{
+		return new BlendingBlockSupplier( interval, border, blending, field );
+	}
+
+	/**
+	 * Conceptually, the given {@code interval} is filled with masking weights (see {@link Masking}), then transformed with {@code field}.
+	 *
+	 * @param interval
+	 * @param border
+	 * @param field
+	 */
+	public static BlockSupplier< UnsignedByteType > masking(
+			final Interval interval,
+			final float[] border,
+			final ModelGridField field )
+	{
+		return new MaskingBlockSupplier( interval, border, field );
+	}
+
+	private static final int n = 3;
+
+	/**
+	 * Holds the per-thread coordinate arrays.
+	 */
+	private static abstract class CoordinatesBlockSupplier< T extends NativeType< T > > extends AbstractBlockSupplier< T >
+	{
+		final ModelGridField field;
+
+		final TempArray< float[] >[] tempArrays;
+
+		CoordinatesBlockSupplier( final ModelGridField field, final int numTempArrays )
+		{
+			this.field = field;
+			tempArrays = Cast.unchecked( new TempArray[ numTempArrays ] );
+			Arrays.setAll( tempArrays, i -> TempArray.forPrimitiveType( FLOAT ) );
+		}
+
+		@Override
+		public int numDimensions()
+		{
+			return n;
+		}
+	}
+
+	private static class TransformBlockSupplier extends CoordinatesBlockSupplier< FloatType >
+	{
+		private final BlockSupplier< FloatType > source;
+
+		private final Interpolation interpolation;
+
+		TransformBlockSupplier(
+				final BlockSupplier< FloatType > source,
+				final ModelGridField field,
+				final Interpolation interpolation )
+		{
+			super( field, 4 );
+			this.source = source;
+			this.interpolation = interpolation;
+		}
+
+		private TransformBlockSupplier( final TransformBlockSupplier s )
+		{
+			this( s.source.independentCopy(), s.field, s.interpolation );
+		}
+
+		@Override
+		public void copy( final Interval interval, final Object dest )
+		{
+			final BlockInterval blockInterval = BlockInterval.asBlockInterval( interval );
+			final long[] srcPos = blockInterval.min();
+			final int[] size = blockInterval.size();
+
+			final int len = safeInt( Intervals.numElements( size ) );
+			final float[] x = tempArrays[ 0 ].get( len );
+			final float[] y = tempArrays[ 1 ].get( len );
+			final float[] z = tempArrays[ 2 ].get( len );
+
+			field.compute( srcPos, size, x, y, z );
+
+			// the block of the input that contains all coordinates (plus one for n-linear interpolation)
+			final boolean linear = interpolation == Interpolation.NLINEAR;
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+			final float[][] coords = { x, y, z };
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final float[] c = coords[ d ];
+				float cMin = c[ 0 ], cMax = c[ 0 ];
+
+				for ( int i = 1; i < len; ++i )
+				{
+					cMin = Math.min( cMin, c[ i ] );
+					cMax = Math.max( cMax, c[ i ] );
+				}
+
+				if ( linear )
+				{
+					min[ d ] = ( long ) Math.floor( cMin );
+					max[ d ] = ( long ) Math.floor( cMax ) + 1;
+				}
+				else
+				{
+					min[ d ] = ( long ) Math.floor( cMin + 0.5 );
+					max[ d ] = ( long ) Math.floor( cMax + 0.5 );
+				}
+			}
+
+			final int sx = safeInt( max[ 0 ] - min[ 0 ] + 1 );
+			final int sy = safeInt( max[ 1 ] - min[ 1 ] + 1 );
+			final int sxy = sx * sy;
+			final float[] src = tempArrays[ 3 ].get( safeInt( ( long ) sxy * ( max[ 2 ] - min[ 2 ] + 1 ) ) );
+
+			source.copy( new FinalInterval( min, max ), src );
+
+			final float[] fdest = Cast.unchecked( dest );
+
+			if ( linear )
+			{
+				for ( int i = 0; i < len; ++i )
+				{
+					final float fx = x[ i ] - min[ 0 ];
+					final float fy = y[ i ] - min[ 1 ];
+					final float fz = z[ i ] - min[ 2 ];
+
+					final int ix = ( int ) Math.floor( fx );
+					final int iy = ( int ) Math.floor( fy );
+					final int iz = ( int ) Math.floor( fz );
+
+					final float tx = fx - ix;
+					final float ty = fy - iy;
+					final float tz = fz - iz;
+
+					final int o = ( iz * sy + iy ) * sx + ix;
+
+					final float v00 = src[ o ] + tx * ( src[ o + 1 ] - src[ o ] );
+					final float v10 = src[ o + sx ] + tx * ( src[ o + sx + 1 ] - src[ o + sx ] );
+					final float v01 = src[ o + sxy ] + tx * ( src[ o + sxy + 1 ] - src[ o + sxy ] );
+					final float v11 = src[ o + sxy + sx ] + tx * ( src[ o + sxy + sx + 1 ] - src[ o + sxy + sx ] );
+
+					final float v0 = v00 + ty * ( v10 - v00 );
+					final float v1 = v01 + ty * ( v11 - v01 );
+
+					fdest[ i ] = v0 + tz * ( v1 - v0 );
+				}
+			}
+			else
+			{
+				for ( int i = 0; i < len; ++i )
+				{
+					final int ix = ( int ) ( Math.floor( x[ i ] + 0.5 ) - min[ 0 ] );
+					final int iy = ( int ) ( Math.floor( y[ i ] + 0.5 ) - min[ 1 ] );
+					final int iz = ( int ) ( Math.floor( z[ i ] + 0.5 ) - min[ 2 ] );
+
+					fdest[ i ] = src[ ( iz * sy + iy ) * sx + ix ];
+				}
+			}
+		}
+
+		@Override
+		public BlockSupplier< FloatType > independentCopy()
+		{
+			return new TransformBlockSupplier( this );
+		}
+
+		private static final FloatType type = new FloatType();
+
+		@Override
+		public FloatType getType()
+		{
+			return type;
+		}
+	}
+
+	private static class BlendingBlockSupplier extends CoordinatesBlockSupplier< FloatType >
+	{
+		private final long[] intervalMin;
+
+		private final float[] b0 = new float[ n ], b1 = new float[ n ], b2 = new float[ n ], b3 = new float[ n ];
+
+		private final float[] blending;
+
+		BlendingBlockSupplier(
+				final Interval interval,
+				final float[] border,
+				final float[] blending,
+				final ModelGridField field )
+		{
+			super( field, 3 );
+
+			this.intervalMin = interval.minAsLongArray();
+			this.blending = blending.clone();
+
+			// same as Blending
+			for ( int d = 0; d < n; ++d )
+			{
+				final int dim = ( int ) interval.dimension( d );
+				b0[ d ] = border[ d ];
+				b1[ d ] = border[ d ] + blending[ d ];
+				b2[ d ] = dim - 1 - border[ d ] - blending[ d ];
+				b3[ d ] = dim - 1 - border[ d ];
+
+				if ( b1[ d ] > b2[ d ] ) // there is no "inside region" where w=1
+				{
+					b1[ d ] = ( b1[ d ] + b2[ d ] ) / 2;
+					b2[ d ] = b1[ d ];
+				}
+			}
+		}
+
+		private BlendingBlockSupplier( final BlendingBlockSupplier s )
+		{
+			super( s.field, 3 );
+
+			intervalMin = s.intervalMin;
+			blending = s.blending;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				b0[ d ] = s.b0[ d ];
+				b1[ d ] = s.b1[ d ];
+				b2[ d ] = s.b2[ d ];
+				b3[ d ] = s.b3[ d ];
+			}
+		}
+
+		@Override
+		public void copy( final Interval interval, final Object dest )
+		{
+			final BlockInterval blockInterval = BlockInterval.asBlockInterval( interval );
+			final int[] size = blockInterval.size();
+
+			final int len = safeInt( Intervals.numElements( size ) );
+			final float[][] coords = { tempArrays[ 0 ].get( len ), tempArrays[ 1 ].get( len ), tempArrays[ 2 ].get( len ) };
+
+			field.compute( blockInterval.min(), size, coords[ 0 ], coords[ 1 ], coords[ 2 ] );
+
+			final float[] weights = Cast.unchecked( dest );
+			Arrays.fill( weights, 0, len, 1 );
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final float[] c = coords[ d ];
+				final float m = intervalMin[ d ];
+
+				for ( int i = 0; i < len; ++i )
+					if ( weights[ i ] != 0 )
+						weights[ i ] *= Blending.computeWeight( c[ i ] - m, blending[ d ], b0[ d ], b1[ d ], b2[ d ], b3[ d ] );
+			}
+		}
+
+		@Override
+		public BlockSupplier< FloatType > independentCopy()
+		{
+			return new BlendingBlockSupplier( this );
+		}
+
+		private static final FloatType type = new FloatType();
+
+		@Override
+		public FloatType getType()
+		{
+			return type;
+		}
+	}
+
+	private static class MaskingBlockSupplier extends CoordinatesBlockSupplier< UnsignedByteType >
+	{
+		private final long[] intervalMin;
+
+		private final float[] b0 = new float[ n ], b3 = new float[ n ];
+
+		MaskingBlockSupplier(
+				final Interval interval,
+				final float[] border,
+				final ModelGridField field )
+		{
+			super( field, 3 );
+
+			this.intervalMin = interval.minAsLongArray();
+
+			// same as Masking
+			for ( int d = 0; d < n; ++d )
+			{
+				b0[ d ] = border[ d ];
+				b3[ d ] = interval.dimension( d ) - 1 - border[ d ];
+			}
+		}
+
+		private MaskingBlockSupplier( final MaskingBlockSupplier s )
+		{
+			super( s.field, 3 );
+
+			intervalMin = s.intervalMin;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				b0[ d ] = s.b0[ d ];
+				b3[ d ] = s.b3[ d ];
+			}
+		}
+
+		@Override
+		public void copy( final Interval interval, final Object dest )
+		{
+			final BlockInterval blockInterval = BlockInterval.asBlockInterval( interval );
+			final int[] size = blockInterval.size();
+
+			final int len = safeInt( Intervals.numElements( size ) );
+			final float[] x = tempArrays[ 0 ].get( len );
+			final float[] y = tempArrays[ 1 ].get( len );
+			final float[] z = tempArrays[ 2 ].get( len );
+
+			field.compute( blockInterval.min(), size, x, y, z );
+
+			final byte[] weights = ( byte[] ) dest;
+
+			for ( int i = 0; i < len; ++i )
+			{
+				final float lx = x[ i ] - intervalMin[ 0 ];
+				final float ly = y[ i ] - intervalMin[ 1 ];
+				final float lz = z[ i ] - intervalMin[ 2 ];
+
+				final boolean inside =
+						lx >= b0[ 0 ] && lx < b3[ 0 ] &&
+						ly >= b0[ 1 ] && ly < b3[ 1 ] &&
+						lz >= b0[ 2 ] && lz < b3[ 2 ];
+
+				weights[ i ] = inside ? ( byte ) 1 : ( byte ) 0;
+			}
+		}
+
+		@Override
+		public BlockSupplier< UnsignedByteType > independentCopy()
+		{
+			return new MaskingBlockSupplier( this );
+		}
+
+		private static final UnsignedByteType type = new UnsignedByteType();
+
+		@Override
+		public UnsignedByteType getType()
+		{
+			return type;
+		}
+	}
+}
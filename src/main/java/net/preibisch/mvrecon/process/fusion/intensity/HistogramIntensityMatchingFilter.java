@@ -50,18 +50,15 @@ class HistogramIntensityMatchingFilter implements IntensityMatchingFilter {
     public void filter(final FlattenedMatches candidates, final Collection<PointMatch> reducedMatches) {
         reducedMatches.clear();
 
-        final double[] histo1 = Arrays.copyOf(candidates.p()[0], candidates.size());
-        Arrays.sort(histo1);
-        final double[] histo2 = Arrays.copyOf(candidates.q()[0], candidates.size());
-        Arrays.sort(histo2);
-
         final int numSamples = 100; // TODO: make this a parameter?
+        final double[] weights = candidates.weighted() ? candidates.w() : null;
+        final double[] histo1 = quantiles(candidates.p()[0], weights, candidates.size(), numSamples);
+        final double[] histo2 = quantiles(candidates.q()[0], weights, candidates.size(), numSamples);
+
         final FlattenedMatches matches = new FlattenedMatches(1, numSamples);
         matches.setWeighted(false);
         for (int i = 0; i < numSamples; ++i) {
-            final double p = histo1[histo1.length * i / numSamples];
-            final double q = histo2[histo2.length * i / numSamples];
-            matches.put(p, q, 1);
+            matches.put(histo1[i], histo2[i], 1);
         }
         try {
             model.fit(matches);
@@ -71,8 +68,48 @@ class HistogramIntensityMatchingFilter implements IntensityMatchingFilter {
         }
 
         final double min = histo1[0];
-        final double max = histo1[histo1.length - 1];
+        final double max = histo1[numSamples];
         reducedMatches.add(new PointMatch1D(new Point1D(min), new Point1D(model.apply(min)), 1.0));
         reducedMatches.add(new PointMatch1D(new Point1D(max), new Point1D(model.apply(max)), 1.0));
     }
+
+    /**
+     * @param values the samples
+     * @param weights weight of each sample (e.g. histogram counts), or null if all samples have weight 1
+     * @param size number of samples
+     * @param numSamples number of quantiles
+     * @return the values at the quantiles {@code i / numSamples} for {@code i = 0 ... numSamples - 1}, followed by the maximum
+     */
+    private static double[] quantiles(final double[] values, final double[] weights, final int size, final int numSamples) {
+        final double[] quantiles = new double[numSamples + 1];
+
+        if (weights == null) {
+            final double[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            for (int i = 0; i < numSamples; ++i)
+                quantiles[i] = sorted[size * i / numSamples];
+            quantiles[numSamples] = sorted[size - 1];
+            return quantiles;
+        }
+
+        final Integer[] order = new Integer[size];
+        Arrays.setAll(order, i -> i);
+        Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+
+        double total = 0;
+        for (int i = 0; i < size; ++i)
+            total += weights[i];
+
+        // the first sample whose cumulative weight exceeds the quantile (same as above for weights of 1)
+        double cumulative = weights[order[0]];
+        int k = 0;
+        for (int i = 0; i < numSamples; ++i) {
+            final double target = total * i / numSamples;
+            while (cumulative <= target && k < size - 1)
+                cumulative += weights[order[++k]];
+            quantiles[i] = values[order[k]];
+        }
+        quantiles[numSamples] = values[order[size - 1]];
+        return quantiles;
+    }
 }
@@ -45,6 +45,13 @@ import static net.imglib2.util.Intervals.isEmpty;
 
 public class IntensityCorrection {
 
+	/**
+	 * If {@code > 0}, the intensities of each coefficient region pair are compressed into a joint histogram with
+	 * that many bins per intensity (one weighted match per non-empty bin) instead of one match per overlapping voxel.
+	 * This bounds the memory needed for matching large tiles.
+	 */
+	public static int histogramBins = 0;
+
 	public static class SerializableRealInterval implements RealInterval, Serializable {
 
 		private static final long serialVersionUID = 1L;
@@ -175,7 +182,7 @@ public class IntensityCorrection {
             final int minNumInliers,
             final double maxTrust
     ) {
-        final IntensityMatcher matcher = new IntensityMatcher(spimData, renderScale, coefficientsSize, unbleachFunction);
+        final IntensityMatcher matcher = new IntensityMatcher(spimData, renderScale, coefficientsSize, unbleachFunction, histogramBins);
         final List<CoefficientMatch> match = matcher.match(
                 viewId1, viewId1Bleachers, viewId2, viewId2Bleachers,
                 minIntensity, maxIntensity, minNumCandidates, iterations, maxEpsilon,
@@ -213,7 +220,7 @@ public class IntensityCorrection {
             final double maxIntensity,
             final int minNumCandidates
     ) {
-        final IntensityMatcher matcher = new IntensityMatcher(spimData, renderScale, coefficientsSize, unbleachFunction);
+        final IntensityMatcher matcher = new IntensityMatcher(spimData, renderScale, coefficientsSize, unbleachFunction, histogramBins);
         final List<CoefficientMatch> match = matcher.match(
                 viewId1, viewId1Bleachers, viewId2, viewId2Bleachers,
                 minIntensity, maxIntensity, minNumCandidates);
@@ -228,10 +235,7 @@ public class IntensityCorrection {
 		final IntensitySolver solver = new IntensitySolver(coefficientsSize);
 		pairwiseMatches.forEach(solver::connect);
 		solver.solveForGlobalCoefficients(iterations);
-		final Map<ViewId, IntensityTile> intensityTiles = solver.getIntensityTiles();
-		final Map<ViewId, Coefficients> coefficients = new HashMap<>();
-		intensityTiles.forEach((k, v) -> coefficients.put(k, v.getCoefficients()));
-		return coefficients;
+		return solver.getCoefficients();
 	}
 
 	// TODO: this should become part of SpimData2 I'd say? Ultimately this is a property of the dataset that should also be displayed and potentially used during reconstruction
@@ -0,0 +1,420 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.intensity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import mpicbg.models.PointMatch;
+import net.imglib2.iterator.IntervalIterator;
+import net.imglib2.util.IntervalIndexer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Solves for the intensity coefficients of all sub-tiles at once as one
+ * linear least-squares problem, instead of the iterative tile relaxation of
+ * {@link IntensityTileOptimizer}.
+ * <p>
+ * Every sub-tile {@code i} has a linear map {@code y = a_i * x + b_i}. For
+ * every point match {@code (p, q, w)} between sub-tiles {@code i} and
+ * {@code j} the residual {@code a_i * p + b_i - a_j * q - b_j} is minimized.
+ * The regularisation of {@link IntensitySolver#getIntensityTile} is expressed
+ * as additional residuals over the points of each sub-tile: {@code lambda1}
+ * penalizes the deviation from the best fitting translation
+ * ({@code (a_i - 1) * (p - mean(p))}), {@code lambda2} the deviation from the
+ * identity ({@code a_i * p + b_i - p}). One sub-tile is fixed to the identity.
+ * <p>
+ * The normal equations are assembled in parallel as a sparse matrix of 2x2
+ * blocks (one block row per sub-tile) and solved with conjugate gradients,
+ * preconditioned with the inverse of the diagonal blocks.
+ */
+class IntensityLinearSolver {
+
+	private static final Logger LOG = LoggerFactory.getLogger(IntensityLinearSolver.class);
+
+	/**
+	 * The matches between two sub-tiles, {@code p1} of the matches is in {@code subTile1} of {@code tile1}, {@code p2} in {@code subTile2} of {@code tile2}.
+	 */
+	static class SubTileMatches {
+
+		final IntensityTile tile1, tile2;
+		final int subTile1, subTile2;
+		final Collection<PointMatch> matches;
+
+		SubTileMatches(final IntensityTile tile1, final int subTile1, final IntensityTile tile2, final int subTile2, final Collection<PointMatch> matches) {
+			this.tile1 = tile1;
+			this.subTile1 = subTile1;
+			this.tile2 = tile2;
+			this.subTile2 = subTile2;
+			this.matches = matches;
+		}
+	}
+
+	private final double lambda1, lambda2;
+	private final int maxIterations;
+	private final double tolerance;
+
+	/**
+	 * @param lambda1
+	 * 		weight of the regularisation towards a translation
+	 * @param lambda2
+	 * 		weight of the regularisation towards the identity
+	 * @param maxIterations
+	 * 		maximal number of conjugate gradient iterations
+	 * @param tolerance
+	 * 		stop if the norm of the residual is reduced by this factor
+	 */
+	IntensityLinearSolver(final double lambda1, final double lambda2, final int maxIterations, final double tolerance) {
+		this.lambda1 = lambda1;
+		this.lambda2 = lambda2;
+		this.maxIterations = maxIterations;
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * @param tiles
+	 * 		all tiles
+	 * @param fixedTile
+	 * 		the tile whose first sub-tile is fixed to the identity
+	 * @param subTileMatches
+	 * 		the matches between sub-tiles of different tiles (sub-tiles within a tile are connected to their neighbors here)
+	 *
+	 * @return the coefficients for each tile
+	 */
+	Map<IntensityTile, Coefficients> solve(
+			final List<IntensityTile> tiles,
+			final IntensityTile fixedTile,
+			final List<SubTileMatches> subTileMatches) {
+
+		final long t0 = System.currentTimeMillis();
+
+		// global index of the first sub-tile of each tile
+		final Map<IntensityTile, Integer> offsets = new HashMap<>();
+		int numSubTiles = 0;
+		for (final IntensityTile tile : tiles) {
+			offsets.put(tile, numSubTiles);
+			numSubTiles += tile.nSubTiles();
+		}
+		final int fixed = offsets.get(fixedTile);
+
+		// the terms each sub-tile participates in (every term is listed for both sub-tiles)
+		final List<List<Term>> terms = new ArrayList<>(numSubTiles);
+		for (int i = 0; i < numSubTiles; ++i)
+			terms.add(new ArrayList<>());
+
+		for (final SubTileMatches m : subTileMatches)
+			addTerm(terms, offsets.get(m.tile1) + m.subTile1, offsets.get(m.tile2) + m.subTile2, m.matches);
+
+		// neighboring sub-tiles within a tile are connected by the identity (as in IntensitySolver)
+		for (final IntensityTile tile : tiles) {
+			final int offset = offsets.get(tile);
+			final int[] gridSize = tile.getSubTileGridSize();
+			final int n = gridSize.length;
+			final int[] pos = new int[n];
+			final IntervalIterator iter = new IntervalIterator(gridSize);
+			while (iter.hasNext()) {
+				iter.fwd();
+				iter.localize(pos);
+				final int i0 = offset + IntervalIndexer.positionToIndex(pos, gridSize);
+				for (int d = 0; d < n; d++) {
+					if (pos[d] > 0) {
+						pos[d]--;
+						final int i1 = offset + IntervalIndexer.positionToIndex(pos, gridSize);
+						pos[d]++;
+						addTerm(terms, i0, i1, IDENTITY_MATCHES);
+					}
+				}
+			}
+		}
+
+		final BlockMatrix matrix = assemble(terms, fixed);
+
+		final long t1 = System.currentTimeMillis();
+		LOG.info("assembled system for {} sub-tiles with {} blocks in {} ms", numSubTiles, matrix.numBlocks(), t1 - t0);
+
+		// start with the identity
+		final double[] x = new double[2 * numSubTiles];
+		for (int i = 0; i < numSubTiles; ++i)
+			x[2 * i] = 1;
+
+		final int iterations = conjugateGradients(matrix, x);
+
+		LOG.info("solved in {} iterations, {} ms", iterations, System.currentTimeMillis() - t1);
+
+		final Map<IntensityTile, Coefficients> coefficients = new HashMap<>();
+		for (final IntensityTile tile : tiles) {
+			final int offset = offsets.get(tile);
+			final int n = tile.nSubTiles();
+			final double[][] c = new double[2][n];
+			for (int i = 0; i < n; ++i) {
+				c[0][i] = x[2 * (offset + i)];
+				c[1][i] = x[2 * (offset + i) + 1];
+			}
+			coefficients.put(tile, new Coefficients(c, tile.getSubTileGridSize()));
+		}
+		return coefficients;
+	}
+
+	private static final List<PointMatch> IDENTITY_MATCHES = IntensitySolver.identityMatches(1.0);
+
+	/**
+	 * Matches between sub-tile {@code i} (p1) and sub-tile {@code j} (p2).
+	 */
+	private static class Term {
+
+		final int i, j;
+		final Collection<PointMatch> matches;
+
+		Term(final int i, final int j, final Collection<PointMatch> matches) {
+			this.i = i;
+			this.j = j;
+			this.matches = matches;
+		}
+	}
+
+	private static void addTerm(final List<List<Term>> terms, final int i, final int j, final Collection<PointMatch> matches) {
+		final Term term = new Term(i, j, matches);
+		terms.get(i).add(term);
+		terms.get(j).add(term);
+	}
+
+	/**
+	 * Symmetric sparse matrix of 2x2 blocks (row-major), one block row per sub-tile, plus the right hand side.
+	 */
+	private static class BlockMatrix {
+
+		final int[][] columns;
+		final double[][] blocks;
+		final double[] rhs;
+		final double[][] inverseDiagonal;
+
+		BlockMatrix(final int numRows) {
+			columns = new int[numRows][];
+			blocks = new double[numRows][];
+			rhs = new double[2 * numRows];
+			inverseDiagonal = new double[numRows][];
+		}
+
+		int numRows() {
+			return columns.length;
+		}
+
+		long numBlocks() {
+			long n = 0;
+			for (final int[] c : columns)
+				n += c.length;
+			return n;
+		}
+
+		void multiply(final double[] x, final double[] y) {
+			IntStream.range(0, numRows()).parallel().forEach(row -> {
+				final int[] c = columns[row];
+				final double[] b = blocks[row];
+				double y0 = 0, y1 = 0;
+				for (int k = 0; k < c.length; ++k) {
+					final double x0 = x[2 * c[k]];
+					final double x1 = x[2 * c[k] + 1];
+					y0 += b[4 * k] * x0 + b[4 * k + 1] * x1;
+					y1 += b[4 * k + 2] * x0 + b[4 * k + 3] * x1;
+				}
+				y[2 * row] = y0;
+				y[2 * row + 1] = y1;
+			});
+		}
+
+		void precondition(final double[] r, final double[] z) {
+			IntStream.range(0, numRows()).parallel().forEach(row -> {
+				final double[] m = inverseDiagonal[row];
+				final double r0 = r[2 * row];
+				final double r1 = r[2 * row + 1];
+				z[2 * row] = m[0] * r0 + m[1] * r1;
+				z[2 * row + 1] = m[2] * r0 + m[3] * r1;
+			});
+		}
+	}
+
+	/**
+	 * Assembles the normal equations, each row is computed independently (in parallel) from the terms of its sub-tile.
+	 * The fixed sub-tile gets an identity row, its coupling to other rows is moved to their right hand side.
+	 */
+	private BlockMatrix assemble(final List<List<Term>> terms, final int fixed) {
+		final int numRows = terms.size();
+		final BlockMatrix matrix = new BlockMatrix(numRows);
+
+		IntStream.range(0, numRows).parallel().forEach(row -> {
+			final Map<Integer, double[]> rowBlocks = new HashMap<>();
+			final double[] diagonal = new double[4];
+			final double[] rhs = new double[2];
+			rowBlocks.put(row, diagonal);
+
+			// weighted sums of this sub-tile's points for the regularisation
+			double sw = 0, swp = 0, swpp = 0;
+
+			for (final Term term : terms.get(row)) {
+				final boolean first = term.i == row;
+				final int other = first ? term.j : term.i;
+
+				for (final PointMatch match : term.matches) {
+					final double w = match.getWeight();
+					final double p = first ? match.getP1().getL()[0] : match.getP2().getL()[0];
+					final double q = first ? match.getP2().getL()[0] : match.getP1().getL()[0];
+
+					sw += w;
+					swp += w * p;
+					swpp += w * p * p;
+
+					// d/d(a_row, b_row) of w * (a_row * p + b_row - a_other * q - b_other)^2
+					diagonal[0] += w * p * p;
+					diagonal[1] += w * p;
+					diagonal[2] += w * p;
+					diagonal[3] += w;
+
+					if (other == fixed && row != fixed) {
+						// a_fixed = 1, b_fixed = 0
+						rhs[0] += w * p * q;
+						rhs[1] += w * q;
+					} else if (other != row) {
+						final double[] block = rowBlocks.computeIfAbsent(other, k -> new double[4]);
+						block[0] -= w * p * q;
+						block[1] -= w * p;
+						block[2] -= w * q;
+						block[3] -= w;
+					}
+				}
+			}
+
+			if (sw > 0) {
+				// lambda1 * (a - 1)^2 * sum w (p - mean)^2
+				final double variance = Math.max(0, swpp - swp * swp / sw);
+				diagonal[0] += lambda1 * variance;
+				rhs[0] += lambda1 * variance;
+
+				// lambda2 * sum w (a p + b - p)^2
+				diagonal[0] += lambda2 * swpp;
+				diagonal[1] += lambda2 * swp;
+				diagonal[2] += lambda2 * swp;
+				diagonal[3] += lambda2 * sw;
+				rhs[0] += lambda2 * swpp;
+				rhs[1] += lambda2 * swp;
+			}
+
+			if (row == fixed) {
+				rowBlocks.clear();
+				rowBlocks.put(row, new double[] {1, 0, 0, 1});
+				rhs[0] = 1;
+				rhs[1] = 0;
+			} else {
+				rowBlocks.remove(fixed);
+			}
+
+			final int[] c = new int[rowBlocks.size()];
+			final double[] b = new double[4 * rowBlocks.size()];
+			int k = 0;
+			for (final Map.Entry<Integer, double[]> e : rowBlocks.entrySet()) {
+				c[k] = e.getKey();
+				System.arraycopy(e.getValue(), 0, b, 4 * k, 4);
+				++k;
+			}
+			matrix.columns[row] = c;
+			matrix.blocks[row] = b;
+			matrix.rhs[2 * row] = rhs[0];
+			matrix.rhs[2 * row + 1] = rhs[1];
+			matrix.inverseDiagonal[row] = invert(rowBlocks.get(row));
+		});
+
+		return matrix;
+	}
+
+	/**
+	 * Inverse of a 2x2 block, the inverse of its diagonal if it is (close to) singular.
+	 */
+	private static double[] invert(final double[] m) {
+		final double det = m[0] * m[3] - m[1] * m[2];
+		if (Math.abs(det) > 1e-12 * Math.abs(m[0] * m[3]) && det != 0)
+			return new double[] {m[3] / det, -m[1] / det, -m[2] / det, m[0] / det};
+		else
+			return new double[] {m[0] != 0 ? 1 / m[0] : 1, 0, 0, m[3] != 0 ? 1 / m[3] : 1};
+	}
+
+	/**
+	 * Preconditioned conjugate gradients, {@code x} is the initial guess and the solution.
+	 *
+	 * @return the number of iterations
+	 */
+	private int conjugateGradients(final BlockMatrix matrix, final double[] x) {
+		final int n = x.length;
+		final double[] r = new double[n];
+		final double[] z = new double[n];
+		final double[] p = new double[n];
+		final double[] ap = new double[n];
+
+		matrix.multiply(x, ap);
+		for (int i = 0; i < n; ++i)
+			r[i] = matrix.rhs[i] - ap[i];
+
+		final double norm0 = Math.sqrt(dot(r, r));
+		if (norm0 == 0)
+			return 0;
+
+		matrix.precondition(r, z);
+		System.arraycopy(z, 0, p, 0, n);
+		double rz = dot(r, z);
+
+		int iteration = 0;
+		while (iteration < maxIterations) {
+			matrix.multiply(p, ap);
+			final double pap = dot(p, ap);
+			if (pap <= 0)
+				break;
+
+			final double alpha = rz / pap;
+			for (int i = 0; i < n; ++i) {
+				x[i] += alpha * p[i];
+				r[i] -= alpha * ap[i];
+			}
+			++iteration;
+
+			final double norm = Math.sqrt(dot(r, r));
+			LOG.debug("{}: relative residual {}", iteration, norm / norm0);
+			if (norm <= tolerance * norm0)
+				break;
+
+			matrix.precondition(r, z);
+			final double rzNew = dot(r, z);
+			final double beta = rzNew / rz;
+			rz = rzNew;
+			for (int i = 0; i < n; ++i)
+				p[i] = z[i] + beta * p[i];
+		}
+		return iteration;
+	}
+
+	private static double dot(final double[] a, final double[] b) {
+		return IntStream.range(0, a.length).parallel().mapToDouble(i -> a[i] * b[i]).sum();
+	}
+}
@@ -37,16 +37,16 @@ import java.util.stream.Collectors;
 import mpicbg.models.PointMatch;
 import mpicbg.spim.data.generic.AbstractSpimData;
 import mpicbg.spim.data.sequence.ViewId;
-import net.imglib2.Cursor;
 import net.imglib2.Dimensions;
 import net.imglib2.FinalRealInterval;
 import net.imglib2.Interval;
 import net.imglib2.Localizable;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RealInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.algorithm.blocks.BlockSupplier;
+import net.imglib2.algorithm.blocks.convert.Convert;
+import net.imglib2.algorithm.blocks.transform.Transform;
 import net.imglib2.blocks.BlockInterval;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
@@ -58,6 +58,7 @@ import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Cast;
 import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
@@ -91,26 +92,46 @@ class IntensityMatcher {
 
 	private final UnbleachFunction unbleach;
 
+	/**
+	 * If {@code > 0}, the samples of each coefficient region pair are accumulated in a
+	 * {@link JointIntensityHistogram} with that many bins per intensity instead of
+	 * keeping one match per voxel.
+	 */
+	private final int numHistogramBins;
+
 	/**
 	 * @param spimData
 	 * @param renderScale
 	 * 		at which scale to sample images. For example, {@code renderScale = 0.25} means using 4 x downsampled images.
 	 * @param coefficientsSize
 	 * @param unbleach
+	 * @param numHistogramBins
+	 * 		if {@code > 0}, match weighted bins of a joint intensity histogram instead of individual voxels (bounds memory)
 	 */
 	IntensityMatcher(
 			final AbstractSpimData<?> spimData,
 			final double renderScale,
 			final int[] coefficientsSize,
-			final UnbleachFunction unbleach
+			final UnbleachFunction unbleach,
+			final int numHistogramBins
 	) {
 		this.spimData = spimData;
 		this.numCoefficients = coefficientsSize;
 		this.unbleach = unbleach;
+		this.numHistogramBins = numHistogramBins;
 		this.renderScale = new AffineTransform3D();
 		this.renderScale.scale(renderScale);
 	}
 
+	IntensityMatcher(
+			final AbstractSpimData<?> spimData,
+			final double renderScale,
+			final int[] coefficientsSize,
+			final UnbleachFunction unbleach
+	) {
+		this(spimData, renderScale, coefficientsSize, unbleach, 0);
+	}
+
 	IntensityMatcher(
 			final AbstractSpimData<?> spimData,
 			final double renderScale,
@@ -150,7 +171,7 @@ class IntensityMatcher {
             final int minNumInliers,
             final double maxTrust
     ) {
-        final IntensityMatchingFilter filter = new RansacIntensityMatchingFilter(
+        final Supplier<IntensityMatchingFilter> filter = () -> new RansacIntensityMatchingFilter(
                 new FastAffineModel1D(),
                 iterations, maxEpsilon, minInlierRatio, minNumInliers, maxTrust);
         return match(view1, view1Bleachers, view2, view2Bleachers, minIntensity, maxIntensity, minNumCandidates, filter);
@@ -177,7 +198,7 @@ class IntensityMatcher {
             final double maxIntensity,
             final int minNumCandidates
     ) {
-        final IntensityMatchingFilter filter = new HistogramIntensityMatchingFilter(new FastAffineModel1D());
+        final Supplier<IntensityMatchingFilter> filter = () -> new HistogramIntensityMatchingFilter(new FastAffineModel1D());
         return match(view1, view1Bleachers, view2, view2Bleachers, minIntensity, maxIntensity, minNumCandidates, filter);
     }
 
@@ -190,7 +211,7 @@ class IntensityMatcher {
      * @param minIntensity threshold for intensities to consider for RANSAC, anything below that value will be discarded
      * @param maxIntensity threshold for intensities to consider for RANSAC, anything above that value will be discarded
      * @param minNumCandidates minimum number of (non-discarded) overlapping pixels required to consider two coefficient regions overlapping
-     * @param filter {@link RansacIntensityMatchingFilter} or {@link HistogramIntensityMatchingFilter}
+     * @param filter creates a {@link RansacIntensityMatchingFilter} or {@link HistogramIntensityMatchingFilter} (one per coefficient region pair, they are matched in parallel)
      * @return
      */
     public List<CoefficientMatch> match(
@@ -201,7 +222,7 @@ class IntensityMatcher {
             final double minIntensity,
             final double maxIntensity,
             final int minNumCandidates,
-            final IntensityMatchingFilter filter
+            final Supplier<IntensityMatchingFilter> filter
     ) {
         final TileInfo t1 = getTileInfo(view1);
         final TileInfo t2 = getTileInfo(view2);
@@ -232,27 +253,22 @@ class IntensityMatcher {
         LOG.debug("found {} CoefficientRegions of t2 in overlap.", r2s.size());
         LOG.debug("found {} CoefficientRegion pairs.", pairs.size());
 
-        final List<RandomAccess<UnsignedByteType>> view1BleacherMasks = view1Bleachers.stream()
-                .map(v -> scaleTileBounds(renderScale, getTileInfo(v)))
-                .map(RandomAccessible::randomAccess)
+        final List<AffineTransform3D> view1BleacherBounds = view1Bleachers.stream()
+                .map(v -> toUnitBounds(renderScale, getTileInfo(v)))
                 .collect(Collectors.toList());
-        final List<RandomAccess<UnsignedByteType>> view2BleacherMasks = view2Bleachers.stream()
-                .map(v -> scaleTileBounds(renderScale, getTileInfo(v)))
-                .map(RandomAccessible::randomAccess)
+        final List<AffineTransform3D> view2BleacherBounds = view2Bleachers.stream()
+                .map(v -> toUnitBounds(renderScale, getTileInfo(v)))
                 .collect(Collectors.toList());
 
-        // Next steps:
-        // [ ] blk optimizations? E.g., render and match single line from both coefficient masks?
-
         final int mipmapLevel1 = bestMipmapLevel(renderScale, t1);
         final int mipmapLevel2 = bestMatchingMipmapLevel(renderScale, t2, getPixelSize(mipmapToRenderCoordinates(t1, mipmapLevel1, renderScale)));
         LOG.debug("using mipmapLevel {} for t1, mipmapLevel {} for t2", mipmapLevel1, mipmapLevel2);
 
-        final RandomAccessible<? extends RealType<?>> scaledTile1 = Cast.unchecked(scaleTile(t1, mipmapLevel1, renderScale));
-        final RandomAccessible<? extends RealType<?>> scaledTile2 = Cast.unchecked(scaleTile(t2, mipmapLevel2, renderScale));
+        final BlockSupplier<FloatType> scaledTile1 = scaleTileBlocks(t1, mipmapLevel1, renderScale).threadSafe();
+        final BlockSupplier<FloatType> scaledTile2 = scaleTileBlocks(t2, mipmapLevel2, renderScale).threadSafe();
 
-        final List<CoefficientMatch> coefficientMatches = new ArrayList<>();
-        for (final Pair<CoefficientRegion, CoefficientRegion> pair : pairs) {
+        // the pairs are independent, the order of the result is preserved
+        return pairs.parallelStream().map(pair -> {
             final CoefficientRegion r1 = pair.getA();
             final CoefficientRegion r2 = pair.getB();
 
@@ -260,74 +276,187 @@ class IntensityMatcher {
             final FinalRealInterval scaledIntersection = renderScale.estimateBounds(intersection);
             final Interval renderInterval = Intervals.smallestContainingInterval(scaledIntersection);
             final int numElements = (int) Intervals.numElements(renderInterval);
-            final FlattenedMatches flatCandidates = new FlattenedMatches(1, numElements);
-            flatCandidates.setWeighted(false);
-//			final List<PointMatch> candidates = new ArrayList<>(numElements);
 
-            final RandomAccessible<UnsignedByteType> mask1 = scaleTileCoefficient(renderScale, t1, r1.index);
-            final RandomAccessible<UnsignedByteType> mask2 = scaleTileCoefficient(renderScale, t2, r2.index);
+            // render masks, bleach counts and intensities of the render interval (flattened, X fastest)
+            // a voxel is inside both coefficient regions if mask == 2
+            final byte[] mask = new byte[numElements];
+            final int numInside =
+                    addCell(toCoefficientGrid(renderScale, t1), coefficientPosition(t1, r1.index), renderInterval, mask) +
+                    addCell(toCoefficientGrid(renderScale, t2), coefficientPosition(t2, r2.index), renderInterval, mask);
+
+            final FlattenedMatches flatCandidates;
+            final int numVoxels;
+
+            if (numInside == 0) {
+                flatCandidates = new FlattenedMatches(1, 0);
+                numVoxels = 0;
+            } else {
+                final byte[] numBleaches1 = new byte[numElements];
+                for (final AffineTransform3D b : view1BleacherBounds)
+                    addCell(b, UNIT_CELL, renderInterval, numBleaches1);
+
+                final byte[] numBleaches2 = new byte[numElements];
+                for (final AffineTransform3D b : view2BleacherBounds)
+                    addCell(b, UNIT_CELL, renderInterval, numBleaches2);
+
+                final float[] tile1 = new float[numElements];
+                final float[] tile2 = new float[numElements];
+                scaledTile1.copy(renderInterval, tile1);
+                scaledTile2.copy(renderInterval, tile2);
+
+                final Samples samples = new Samples(mask, tile1, tile2, numBleaches1, numBleaches2, minIntensity, maxIntensity);
+
+                if (numHistogramBins > 0) {
+                    final double[] range = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+                    samples.forEach((p, q) -> {
+                        range[0] = Math.min(range[0], p);
+                        range[1] = Math.max(range[1], p);
+                        range[2] = Math.min(range[2], q);
+                        range[3] = Math.max(range[3], q);
+                    });
+                    final JointIntensityHistogram histogram = new JointIntensityHistogram(numHistogramBins, range[0], range[1], range[2], range[3]);
+                    samples.forEach(histogram::add);
+                    flatCandidates = histogram.toMatches();
+                    numVoxels = (int) histogram.numSamples();
+                } else {
+                    // there are at most min(#voxels in r1, #voxels in r2) <= numInside / 2 samples
+                    final FlattenedMatches raw = new FlattenedMatches(1, numInside / 2);
+                    raw.setWeighted(false);
+                    samples.forEach((p, q) -> raw.put(p, q, 1));
+                    raw.flip();
+                    flatCandidates = raw;
+                    numVoxels = raw.size();
+                }
+            }
+
+            final List<PointMatch> reducedMatches = new ArrayList<>();
+            if (numVoxels > minNumCandidates && flatCandidates.size() >= 2) {
+                final IntensityMatchingFilter pairFilter = filter.get();
+                pairFilter.filter(flatCandidates, reducedMatches);
+                if (reducedMatches.isEmpty()) {
+                    LOG.debug("({}, {}) not matched", r1.index, r2.index);
+                } else {
+                    LOG.debug("({}, {}) matched: {}", r1.index, r2.index, pairFilter.model());
+                }
+            }
+            return new CoefficientMatch(r1.index, r2.index, numVoxels, reducedMatches);
+        }).collect(Collectors.toList());
+    }
+
+    private static final int[] UNIT_CELL = {0, 0, 0};
 
-            final Cursor<UnsignedByteType> cMask1 = mask1.view().interval(renderInterval).flatIterable().cursor();
-            final Cursor<UnsignedByteType> cMask2 = mask2.view().interval(renderInterval).flatIterable().cursor();
-            final RandomAccess<? extends RealType<?>> raTile1 = scaledTile1.randomAccess();
-            final RandomAccess<? extends RealType<?>> raTile2 = scaledTile2.randomAccess();
+    private interface SampleConsumer {
+        void accept(double p, double q);
+    }
 
+    /**
+     * The rendered voxels of one coefficient region pair, visits all intensity pairs (p, q) that
+     * are inside both coefficient regions and within the intensity thresholds, after unbleaching.
+     */
+    private class Samples {
+
+        private final byte[] mask;
+        private final float[] tile1, tile2;
+        private final byte[] numBleaches1, numBleaches2;
+        private final double minIntensity, maxIntensity;
+
+        Samples(final byte[] mask, final float[] tile1, final float[] tile2, final byte[] numBleaches1, final byte[] numBleaches2, final double minIntensity, final double maxIntensity) {
+            this.mask = mask;
+            this.tile1 = tile1;
+            this.tile2 = tile2;
+            this.numBleaches1 = numBleaches1;
+            this.numBleaches2 = numBleaches2;
+            this.minIntensity = minIntensity;
+            this.maxIntensity = maxIntensity;
+        }
+
+        void forEach(final SampleConsumer consumer) {
             final boolean hasMinIntensity = Double.isFinite( minIntensity );
             final boolean hasMaxIntensity = Double.isFinite( maxIntensity );
 
-            while (cMask1.hasNext()) {
-                final boolean m1 = cMask1.next().get() != 0;
-                final boolean m2 = cMask2.next().get() != 0;
-                if (m1 && m2) {
-                    raTile1.setPosition(cMask1);
-                    double p = raTile1.get().getRealDouble();
-                    if ( ( hasMinIntensity && p < minIntensity ) || ( hasMaxIntensity && p > maxIntensity ) )
-                        continue;
-
-                    raTile2.setPosition(cMask1);
-                    double q = raTile2.get().getRealDouble();
-                    if ( ( hasMinIntensity && q < minIntensity ) || ( hasMaxIntensity && q > maxIntensity ) )
-                        continue;
-
-                    int numBleaches1 = 0;
-                    for (final RandomAccess<UnsignedByteType> b : view1BleacherMasks) {
-                        if (b.setPositionAndGet(cMask1).get() != 0)
-                            ++numBleaches1;
-                    }
-                    p = unbleach.unbleach(p, numBleaches1);
+            for (int i = 0; i < mask.length; ++i) {
+                if (mask[i] != 2)
+                    continue;
 
-                    int numBleaches2 = 0;
-                    for (final RandomAccess<UnsignedByteType> b : view2BleacherMasks) {
-                        if (b.setPositionAndGet(cMask1).get() != 0)
-                            ++numBleaches2;
-                    }
-                    q = unbleach.unbleach(q, numBleaches2);
+                final double p = tile1[i];
+                if ( ( hasMinIntensity && p < minIntensity ) || ( hasMaxIntensity && p > maxIntensity ) )
+                    continue;
 
-                    flatCandidates.put(p, q, 1);
-                }
+                final double q = tile2[i];
+                if ( ( hasMinIntensity && q < minIntensity ) || ( hasMaxIntensity && q > maxIntensity ) )
+                    continue;
+
+                consumer.accept(
+                        unbleach.unbleach(p, numBleaches1[i] & 0xff),
+                        unbleach.unbleach(q, numBleaches2[i] & 0xff));
             }
-            flatCandidates.flip();
+        }
+    }
 
-            final List<PointMatch> reducedMatches = new ArrayList<>();
-            if (flatCandidates.size() > minNumCandidates) {
-                filter.filter(flatCandidates, reducedMatches);
-                if (reducedMatches.isEmpty()) {
-                    LOG.debug("({}, {}) not matched", r1.index, r2.index);
-                } else {
-                    LOG.debug("({}, {}) matched: {}", r1.index, r2.index, filter.model());
+    private static int[] coefficientPosition(final TileInfo tile, final int coeff) {
+        final int[] coeffPos = new int[3];
+        IntervalIndexer.indexToPosition(coeff, tile.numCoeffs, coeffPos);
+        return coeffPos;
+    }
+
+    /**
+     * Transforms render coordinates into the coefficient grid of the {@code tile} (coefficient {@code c} covers [c, c+1)).
+     */
+    private static AffineTransform3D toCoefficientGrid(final AffineTransform3D renderScale, final TileInfo tile) {
+        final AffineTransform3D scaleToGrid = new AffineTransform3D();
+        scaleToGrid.set(tile.coeffBoundsToWorldTransform.inverse());
+        scaleToGrid.concatenate(renderScale.inverse());
+        return scaleToGrid;
+    }
+
+    /**
+     * Transforms render coordinates into the unit bounds of the {@code tile} (the tile covers [0, 1)).
+     */
+    private static AffineTransform3D toUnitBounds(final AffineTransform3D renderScale, final TileInfo tile) {
+        final AffineTransform3D scaleToUnit = new AffineTransform3D();
+        scaleToUnit.set(tile.unitBoundsToWorldTransform.inverse());
+        scaleToUnit.concatenate(renderScale.inverse());
+        return scaleToUnit;
+    }
+
+    /**
+     * Increments {@code counts} (flattened {@code interval}, X fastest) for every voxel that {@code toGrid} maps into
+     * the grid cell {@code cell}. Positions are computed from the start of each line, so there is no accumulating
+     * rounding error.
+     *
+     * @return number of voxels inside the cell
+     */
+    private static int addCell(final AffineTransform3D toGrid, final int[] cell, final Interval interval, final byte[] counts) {
+        final int sx = (int) interval.dimension(0);
+        final int sy = (int) interval.dimension(1);
+        final int sz = (int) interval.dimension(2);
+        final double dx0 = toGrid.get(0, 0);
+        final double dx1 = toGrid.get(1, 0);
+        final double dx2 = toGrid.get(2, 0);
+        final double[] pos = new double[3];
+        final double[] g = new double[3];
+
+        int numInside = 0;
+        int i = 0;
+        for (int z = 0; z < sz; ++z) {
+            for (int y = 0; y < sy; ++y) {
+                pos[0] = interval.min(0);
+                pos[1] = interval.min(1) + y;
+                pos[2] = interval.min(2) + z;
+                toGrid.apply(pos, g);
+                for (int x = 0; x < sx; ++x, ++i) {
+                    if ((int) Math.floor(g[0] + x * dx0) == cell[0] &&
+                            (int) Math.floor(g[1] + x * dx1) == cell[1] &&
+                            (int) Math.floor(g[2] + x * dx2) == cell[2]) {
+                        ++counts[i];
+                        ++numInside;
+                    }
                 }
             }
-            coefficientMatches.add(new CoefficientMatch(r1.index, r2.index, flatCandidates.size(), reducedMatches));
         }
-        return coefficientMatches;
+        return numInside;
     }
 
-    private static RandomAccessible<UnsignedByteType> scaleTileCoefficient(final AffineTransform3D renderScale, final TileInfo tile, final int coeff) {
-		final int[] coeffPos = new int[3];
-		IntervalIndexer.indexToPosition(coeff, tile.numCoeffs, coeffPos);
-		return scaleTileCoefficient(renderScale, tile, coeffPos);
-	}
-
 	private static RandomAccessible<UnsignedByteType> scaleTileCoefficient(final AffineTransform3D renderScale, final TileInfo tile, final int[] coeffPos) {
 		final AffineTransform3D scaleToGrid = new AffineTransform3D();
 		scaleToGrid.set(tile.coeffBoundsToWorldTransform.inverse());
@@ -348,26 +477,6 @@ class IntensityMatcher {
 		return new FunctionRandomAccessible<>(3, supplier, UnsignedByteType::new);
 	}
 
-	private static RandomAccessible<UnsignedByteType> scaleTileBounds(final AffineTransform3D renderScale, final TileInfo tile) {
-		final AffineTransform3D scaleToUnit = new AffineTransform3D();
-		scaleToUnit.set(tile.unitBoundsToWorldTransform.inverse());
-		scaleToUnit.concatenate(renderScale.inverse());
-		final Supplier<BiConsumer<Localizable, ? super UnsignedByteType>> supplier = () -> {
-			final RealPoint gridRealPos = new RealPoint(3);
-			return (pos, value) -> {
-				scaleToUnit.apply(pos, gridRealPos);
-				for (int d = 0; d < 3; ++d) {
-					if (0 != (int) Math.floor(gridRealPos.getDoublePosition(d))) {
-						value.set(0);
-						return;
-					}
-				}
-				value.set(1);
-			};
-		};
-		return new FunctionRandomAccessible<>(3, supplier, UnsignedByteType::new);
-	}
-
 	private static RandomAccessible<IntType> scaleTileCoefficients(final AffineTransform3D renderScale, final TileInfo tile) {
 		final AffineTransform3D scaleToGrid = new AffineTransform3D();
 		scaleToGrid.set(tile.coeffBoundsToWorldTransform.inverse());
@@ -423,6 +532,17 @@ class IntensityMatcher {
 				transform);
 	}
 
+	/**
+	 * Same as {@link #scaleTile}, but as blocks of {@code FloatType} for rendering whole intervals.
+	 */
+	private static <T extends NativeType<T>> BlockSupplier<FloatType> scaleTileBlocks(final TileInfo tile, final int mipmapLevel, final AffineTransform3D renderScale) {
+		final AffineTransform3D transform = mipmapToRenderCoordinates(tile, mipmapLevel, renderScale);
+		final RandomAccessible<T> extended = Cast.unchecked(tile.getImage(mipmapLevel).view().extend(border()));
+		return BlockSupplier.of(extended)
+				.andThen(Convert.convert(new FloatType()))
+				.andThen(Transform.affine(transform, Transform.Interpolation.NLINEAR));
+	}
+
 	/**
 	 * Find the mipmap level with {@link #getPixelSize pixel-size} closest to {@code targetPixelSize}.
 	 *
@@ -25,6 +25,7 @@ package net.preibisch.mvrecon.process.fusion.intensity;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -50,10 +51,22 @@ class IntensitySolver {
 	public static double lambda1 = 0.01;
 	public static double lambda2 = 0.01;
 
+	/**
+	 * If true, all coefficients are solved at once as a sparse linear least-squares
+	 * problem ({@link IntensityLinearSolver}) instead of iterative tile optimization.
+	 */
+	public static boolean useLinearSolver = false;
+	public static double linearSolverTolerance = 1e-8;
+
 	private final int[] numCoefficients;
 
 	private final Map<ViewId, IntensityTile> intensityTiles = new ConcurrentHashMap<>();
 
+	// all sub-tile matches, for the linear solver
+	private final List<IntensityLinearSolver.SubTileMatches> subTileMatches = Collections.synchronizedList(new ArrayList<>());
+
+	private Map<IntensityTile, Coefficients> linearSolution;
+
 	IntensitySolver(final int[] coefficientsSize) {
 		this.numCoefficients = coefficientsSize;
 	}
@@ -81,10 +94,14 @@ class IntensitySolver {
 			final Tile<?> st2 = p2IntensityTile.getSubTileAtIndex(coefficientMatch.coeff2());
 			if (disconnected) {
 				identityConnect(st1, st2, 1E-6);
+				subTileMatches.add(new IntensityLinearSolver.SubTileMatches(
+						p1IntensityTile, coefficientMatch.coeff1(), p2IntensityTile, coefficientMatch.coeff2(), identityMatches(1E-6)));
 			} else {
 				final Collection<PointMatch> matches = coefficientMatch.matches();
 				if (!matches.isEmpty()) {
 					st1.connect(st2, matches);
+					subTileMatches.add(new IntensityLinearSolver.SubTileMatches(
+							p1IntensityTile, coefficientMatch.coeff1(), p2IntensityTile, coefficientMatch.coeff2(), matches));
 				}
 			}
 		}
@@ -105,8 +122,26 @@ class IntensitySolver {
 		return intensityTiles;
 	}
 
+	/**
+	 * Returns the solved coefficients of all views, call after {@link #solveForGlobalCoefficients}.
+	 */
+	Map<ViewId, Coefficients> getCoefficients() {
+		final Map<ViewId, Coefficients> coefficients = new HashMap<>();
+		intensityTiles.forEach((k, v) -> coefficients.put(k, linearSolution != null ? linearSolution.get(v) : v.getCoefficients()));
+		return coefficients;
+	}
+
 	public void solveForGlobalCoefficients(final int iterations) {
 
+		if (useLinearSolver) {
+			final List<IntensityTile> tiles = new ArrayList<>(intensityTiles.values());
+			LOG.info("solveForGlobalCoefficients: solving linear system for {} tiles", tiles.size());
+			final IntensityLinearSolver linearSolver = new IntensityLinearSolver(lambda1, lambda2, Math.max(iterations, 1000), linearSolverTolerance);
+			linearSolution = linearSolver.solve(tiles, tiles.get(0), subTileMatches);
+			LOG.info("solveForGlobalCoefficients: exit, returning intensity coefficients for {} tiles", intensityTiles.size());
+			return;
+		}
+
 		final IntensityTile equilibrationTile = new IntensityTile(IdentityModel::new, new int[] {1, 1, 1}, 1);
 		connectTilesWithinPatches(intensityTiles, equilibrationTile);
 
@@ -195,10 +230,14 @@ class IntensitySolver {
 	//       so probably something else should be used here? Dataset min/max?
 	//       Tile min/max?
 	private static void identityConnect(final Tile<?> t1, final Tile<?> t2, final double weight) {
+		t1.connect(t2, identityMatches(weight));
+	}
+
+	static List<PointMatch> identityMatches(final double weight) {
 		final ArrayList<PointMatch> matches = new ArrayList<>();
 		matches.add(new PointMatch1D(new Point1D(0), new Point1D(0), weight));
 		matches.add(new PointMatch1D(new Point1D(1), new Point1D(1), weight));
-		t1.connect(t2, matches);
+		return matches;
 	}
 
 	private static void identityConnect(final Tile<?> t1, final Tile<?> t2) {
@@ -0,0 +1,109 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.intensity;
+
+import net.preibisch.mvrecon.process.fusion.intensity.mpicbg.FlattenedMatches;
+
+/**
+ * Joint histogram of the intensity pairs (p, q) of one coefficient region
+ * pair. Instead of keeping one match per overlapping voxel, p and q are
+ * quantised into {@code numBins x numBins} bins over the range of the samples.
+ * Every non-empty bin becomes one match at the mean p and q of its samples,
+ * weighted by the number of samples.
+ * <p>
+ * Used by {@link IntensityMatcher}.
+ */
+class JointIntensityHistogram {
+
+	private final int numBins;
+	private final double minP;
+	private final double minQ;
+	private final double scaleP;
+	private final double scaleQ;
+
+	private final long[] counts;
+	private final double[] sumP;
+	private final double[] sumQ;
+
+	private long numSamples = 0;
+
+	/**
+	 * @param numBins
+	 * 		number of bins for p and q
+	 * @param minP
+	 * 		smallest p that will be added
+	 * @param maxP
+	 * 		largest p that will be added
+	 * @param minQ
+	 * 		smallest q that will be added
+	 * @param maxQ
+	 * 		largest q that will be added
+	 */
+	JointIntensityHistogram(final int numBins, final double minP, final double maxP, final double minQ, final double maxQ) {
+		this.numBins = numBins;
+		this.minP = minP;
+		this.minQ = minQ;
+		this.scaleP = maxP > minP ? numBins / (maxP - minP) : 0;
+		this.scaleQ = maxQ > minQ ? numBins / (maxQ - minQ) : 0;
+		this.counts = new long[numBins * numBins];
+		this.sumP = new double[numBins * numBins];
+		this.sumQ = new double[numBins * numBins];
+	}
+
+	void add(final double p, final double q) {
+		final int bp = Math.min(numBins - 1, (int) ((p - minP) * scaleP));
+		final int bq = Math.min(numBins - 1, (int) ((q - minQ) * scaleQ));
+		final int i = bq * numBins + bp;
+		++counts[i];
+		sumP[i] += p;
+		sumQ[i] += q;
+		++numSamples;
+	}
+
+	/**
+	 * @return number of added samples (p, q)
+	 */
+	long numSamples() {
+		return numSamples;
+	}
+
+	/**
+	 * @return one weighted match per non-empty bin
+	 */
+	FlattenedMatches toMatches() {
+		int numNonEmpty = 0;
+		for (final long c : counts)
+			if (c > 0)
+				++numNonEmpty;
+
+		final FlattenedMatches matches = new FlattenedMatches(1, numNonEmpty);
+		matches.setWeighted(true);
+		for (int i = 0; i < counts.length; ++i) {
+			final long c = counts[i];
+			if (c > 0)
+				matches.put(sumP[i] / c, sumQ[i] / c, c);
+		}
+		matches.flip();
+		return matches;
+	}
+}
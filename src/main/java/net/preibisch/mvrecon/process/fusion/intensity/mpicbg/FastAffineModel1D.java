@@ -100,6 +100,8 @@ public class FastAffineModel1D extends AffineModel1D implements FastModel
 		// extract PointMatch data into flat arrays
 		final int numCandidates = candidates.size();
 		final SimpleErrorStatistic observer = new SimpleErrorStatistic( numCandidates );
+		final boolean weighted = candidates.weighted();
+		final double[] w = candidates.w();
 
 		int numInliers;
 		do
@@ -121,9 +123,12 @@ public class FastAffineModel1D extends AffineModel1D implements FastModel
 			{
 				final int k = samples[ i ];
 				final double distance = Math.abs( copy.apply( p[ k ] ) - q[ k ] );
-				observer.add( distance );
+				if ( weighted )
+					observer.add( distance, w[ k ] );
+				else
+					observer.add( distance );
 			}
-			final double t = observer.getMedian() * maxTrust;
+			final double t = ( weighted ? observer.getWeightedMedian() : observer.getMedian() ) * maxTrust;
 			int j = 0;
 			for ( int i = 0; i < numInliers; i++ )
 			{
@@ -137,7 +142,7 @@ public class FastAffineModel1D extends AffineModel1D implements FastModel
 		}
 		while ( numInliers > inliers.size() );
 
-		if ( numInliers < minNumInliers )
+		if ( ( weighted ? weight( candidates, inliers ) : numInliers ) < minNumInliers )
 			return false;
 
 		set( copy );
@@ -265,12 +270,18 @@ public class FastAffineModel1D extends AffineModel1D implements FastModel
 		final MatchIndices tempInliers = new MatchIndices( numCandidates );
 		inliers.setSize( 0 );
 
+		// weighted matches (e.g. histogram bins) are sampled proportional to their weight
+		final double[] cumulativeWeights = candidates.weighted() ? cumulativeWeights( candidates ) : null;
+
 		int i = 0;
 		A:
 		while ( i < iterations )
 		{
 			// choose model.MIN_SET_SIZE disjunctive matches randomly
-			samples.sample( rnd, numCandidates );
+			if ( cumulativeWeights != null )
+				samples.sampleWeighted( rnd, cumulativeWeights, numCandidates );
+			else
+				samples.sample( rnd, numCandidates );
 			try
 			{
 				m.fit( candidates, samples );
@@ -357,8 +368,54 @@ public class FastAffineModel1D extends AffineModel1D implements FastModel
 		final int numInliers = i;
 		inliers.setSize( numInliers );
 
-		final double ir = ( double ) numInliers / ( double ) numCandidates;
+		// for weighted matches, inliers are counted by their weight
+		final double inlierCount;
+		final double ir;
+		if ( candidates.weighted() )
+		{
+			inlierCount = weight( candidates, inliers );
+			ir = inlierCount / weight( candidates, null );
+		}
+		else
+		{
+			inlierCount = numInliers;
+			ir = ( double ) numInliers / ( double ) numCandidates;
+		}
 		setCost( Math.max( 0.0, Math.min( 1.0, 1.0 - ir ) ) );
-		return ( numInliers >= minNumInliers && ir > minInlierRatio );
+		return ( inlierCount >= minNumInliers && ir > minInlierRatio );
+	}
+
+	/**
+	 * @return the sum of the weights of the matches selected by {@code indices} (all matches if {@code indices} is null)
+	 */
+	private static double weight( final FlattenedMatches matches, final MatchIndices indices )
+	{
+		final double[] w = matches.w();
+		double sum = 0;
+		if ( indices == null )
+		{
+			for ( int i = 0; i < matches.size(); i++ )
+				sum += w[ i ];
+		}
+		else
+		{
+			final int[] samples = indices.indices();
+			for ( int i = 0; i < indices.size(); i++ )
+				sum += w[ samples[ i ] ];
+		}
+		return sum;
+	}
+
+	private static double[] cumulativeWeights( final FlattenedMatches matches )
+	{
+		final double[] w = matches.w();
+		final double[] cumulative = new double[ matches.size() ];
+		double sum = 0;
+		for ( int i = 0; i < cumulative.length; i++ )
+		{
+			sum += w[ i ];
+			cumulative[ i ] = sum;
+		}
+		return cumulative;
 	}
 }
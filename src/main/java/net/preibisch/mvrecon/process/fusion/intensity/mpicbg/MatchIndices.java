@@ -22,6 +22,7 @@
  */
 package net.preibisch.mvrecon.process.fusion.intensity.mpicbg;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Random;
@@ -80,6 +81,42 @@ public class MatchIndices
 		size = indices.length;
 	}
 
+	/**
+	 * Sample {@code capacity()} distinct indices, each with a probability proportional to its weight.
+	 *
+	 * @param rnd random number generator
+	 * @param cumulativeWeights {@code cumulativeWeights[ i ] = w[ 0 ] + ... + w[ i ]}, all weights must be positive
+	 * @param bound number of candidates
+	 */
+	public void sampleWeighted( final Random rnd, final double[] cumulativeWeights, final int bound )
+	{
+		if ( indices.length > bound )
+		{
+			throw new IllegalArgumentException( "not enough candidates" );
+		}
+		final double total = cumulativeWeights[ bound - 1 ];
+		int attempts = 0;
+		for ( int count = 0; count < indices.length; ++attempts )
+		{
+			final int value;
+			if ( attempts < 100 * indices.length )
+			{
+				final int i = Arrays.binarySearch( cumulativeWeights, 0, bound, rnd.nextDouble() * total );
+				value = Math.min( bound - 1, i >= 0 ? i + 1 : -i - 1 );
+			}
+			else
+			{
+				// a few candidates have almost all the weight, do not wait for the others to be drawn
+				value = rnd.nextInt( bound );
+			}
+			if ( !contains( indices, count, value ) )
+			{
+				indices[ count++ ] = value;
+			}
+		}
+		size = indices.length;
+	}
+
 	public < T > void addSelected( final List< T > elements, final Collection< T > selectedElements )
 	{
 		for ( int i = 0; i < size; i++ )
@@ -28,13 +28,40 @@ class SimpleErrorStatistic
 {
 	private final double[] values;
 
+	private final double[] weights;
+
 	private int size = 0;
 
 	private double mean = 0;
 
+	private double sumWeights = 0;
+
 	public SimpleErrorStatistic( final int capacity )
 	{
 		values = new double[ capacity ];
+		weights = new double[ capacity ];
+	}
+
+	/**
+	 * Median of the values added with {@link #add(double, double)}, every value counts as often as its weight.
+	 */
+	public double getWeightedMedian()
+	{
+		final Integer[] order = new Integer[ size ];
+		Arrays.setAll( order, i -> i );
+		Arrays.sort( order, ( a, b ) -> Double.compare( values[ a ], values[ b ] ) );
+
+		final double half = sumWeights / 2.0;
+		double cumulative = 0;
+		for ( int i = 0; i < size; ++i )
+		{
+			cumulative += weights[ order[ i ] ];
+			if ( cumulative > half )
+				return values[ order[ i ] ];
+			else if ( cumulative == half && i < size - 1 )
+				return ( values[ order[ i ] ] + values[ order[ i + 1 ] ] ) / 2.0;
+		}
+		return size > 0 ? values[ order[ size - 1 ] ] : Double.NaN;
 	}
 
 	public double getMedian()
@@ -56,6 +83,19 @@ class SimpleErrorStatistic
 		mean += delta / size;
 	}
 
+	/**
+	 * Adds a value with a weight (e.g. a histogram count), the mean is weighted accordingly.
+	 */
+	final public void add( final double new_value, final double weight )
+	{
+		int i = size++;
+		values[ i ] = new_value;
+		weights[ i ] = weight;
+
+		sumWeights += weight;
+		mean += ( new_value - mean ) * weight / sumWeights;
+	}
+
 	public int n()
 	{
 		return size;
@@ -70,5 +110,6 @@ class SimpleErrorStatistic
 	{
 		size = 0;
 		mean = 0;
+		sumWeights = 0;
 	}
 }
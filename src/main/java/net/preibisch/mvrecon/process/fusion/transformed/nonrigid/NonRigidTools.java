@@ -75,6 +75,7 @@ import net.preibisch.mvrecon.process.fusion.transformed.TransformVirtual;
 import net.preibisch.mvrecon.process.fusion.transformed.TransformWeight;
 import net.preibisch.mvrecon.process.fusion.transformed.FusedRandomAccessibleInterval.Fusion;
 import net.preibisch.mvrecon.process.fusion.transformed.nonrigid.grid.ModelGrid;
+import net.preibisch.mvrecon.process.fusion.transformed.nonrigid.grid.ModelGridStore;
 import net.preibisch.mvrecon.process.fusion.transformed.weightcombination.CombineWeightsRandomAccessibleInterval;
 import net.preibisch.mvrecon.process.fusion.transformed.weightcombination.CombineWeightsRandomAccessibleInterval.CombineType;
 import net.preibisch.mvrecon.process.fusion.transformed.weights.BlendingRealRandomAccessible;
@@ -586,6 +587,30 @@ public class NonRigidTools
 			final Interval boundingBox,
 			final boolean virtual,
 			final ExecutorService service )
+	{
+		return computeGrids( viewsToFuse, uniquePoints, controlPointDistance, alpha, boundingBox, virtual, null, service );
+	}
+
+	/**
+	 * @param viewsToFuse - the views
+	 * @param uniquePoints - the points per view
+	 * @param controlPointDistance - distance between control points
+	 * @param alpha - the MLS alpha
+	 * @param boundingBox - the bounding box
+	 * @param virtual - compute the grid on demand
+	 * @param store - if not null, (non-virtual) grids are loaded from there if their inputs are unchanged, otherwise computed and saved
+	 * @param service - the ExecutorService
+	 * @return the grids of all views that could be computed
+	 */
+	public static HashMap< ViewId, ModelGrid > computeGrids(
+			final Collection< ? extends ViewId > viewsToFuse,
+			final HashMap< ? extends ViewId, ? extends Collection< ? extends NonrigidIP > > uniquePoints,
+			final long[] controlPointDistance,
+			final double alpha,
+			final Interval boundingBox,
+			final boolean virtual,
+			final ModelGridStore store,
+			final ExecutorService service )
 	{
 		final ArrayList< Callable< Pair< ViewId, ModelGrid > > > tasks = new ArrayList<>();
 
@@ -604,11 +629,28 @@ public class NonRigidTools
 						return new ValuePair< ViewId, ModelGrid >( null, null );
 					}
 
+					final String key = ( store != null && !virtual ) ? ModelGridStore.key( ips, controlPointDistance, alpha, boundingBox, ModelGrid.defaultNumNeighbors ) : null;
+
+					if ( key != null )
+					{
+						final ModelGrid grid = store.load( viewId, key );
+
+						if ( grid != null )
+						{
+							IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Loaded non-rigid model (a=" + alpha + ") for " + Group.pvid( viewId ) + " from " + store.getBaseDir() );
+							return new ValuePair< ViewId, ModelGrid >( viewId, grid );
+						}
+					}
+
 					IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Interpolating non-rigid model (a=" + alpha + ") for " + Group.pvid( viewId ) + " using " + ips.size() + " points and stepsize " + Util.printCoordinates( controlPointDistance ) + " Interval: " + Util.printInterval( boundingBox ) );
 
 					try
 					{
 						final ModelGrid grid = new ModelGrid( controlPointDistance, boundingBox, ips, alpha, virtual );
+
+						if ( key != null )
+							store.save( viewId, key, grid );
+
 						return new ValuePair< ViewId, ModelGrid >( viewId, grid );
 					}
 					catch ( Exception e )
@@ -25,21 +25,25 @@ package net.preibisch.mvrecon.process.fusion.transformed.nonrigid.grid;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.stream.IntStream;
 
 import mpicbg.models.AffineModel3D;
 import mpicbg.models.IllDefinedDataPointsException;
-import mpicbg.models.MovingLeastSquaresTransform2;
 import mpicbg.models.NotEnoughDataPointsException;
-import mpicbg.models.Point;
-import mpicbg.models.PointMatch;
 import net.imglib2.Interval;
+import net.imglib2.KDTree;
 import net.imglib2.Localizable;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPoint;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
-import net.imglib2.img.list.ListImg;
-import net.imglib2.img.list.ListLocalizingCursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
+import net.imglib2.util.Fraction;
+import net.imglib2.util.Util;
 import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.mvrecon.fiji.plugin.fusion.FusionGUI;
 import net.preibisch.mvrecon.process.fusion.FusionTools;
@@ -51,9 +55,22 @@ public class ModelGrid implements RealRandomAccessible< NumericAffineModel3D >
 	final long[] dim, min, controlPointDistance;
 	final double alpha;
 
+	/**
+	 * how many of the closest points are used to fit the model at each control point (&lt;= 0 means all points)
+	 */
+	public static int defaultNumNeighbors = 256;
+
+	/**
+	 * avoids infinite weights if a point is exactly at a control point
+	 */
+	public static double minSquareDistance = 1e-8;
+
 	// TODO: the min of the grid is handled independently of the actual randomaccessibleinterval, this is bad
 	final RandomAccessibleInterval< NumericAffineModel3D > grid;
 
+	// the coefficients of the grid, 12 per control point (X fastest), null for a virtual grid
+	double[] coefficients = null;
+
 	public ModelGrid(
 			final long[] controlPointDistance,
 			final Interval boundingBox,
@@ -96,50 +113,219 @@ public class ModelGrid implements RealRandomAccessible< NumericAffineModel3D >
 		}
 		else
 		{
-			final MovingLeastSquaresTransform2 transform = new MovingLeastSquaresTransform2();
-			final ArrayList< PointMatch > matches = new ArrayList<>();
-	
-			for ( final NonrigidIP ip : ips )
-				matches.add( new PointMatch( new Point( ip.getTargetW().clone() ), new Point( ip.getL().clone() ) ) );
-	
-			final AffineModel3D model = new AffineModel3D();
-	
-			transform.setAlpha( alpha );
-			transform.setModel( model );
-			transform.setMatches( matches );
-	
-	
-			// iterate over all control points
-			this.grid = new ListImg< NumericAffineModel3D >( dim, new NumericAffineModel3D( new AffineModel3D() ) );
-	
-			final ListLocalizingCursor< NumericAffineModel3D > it = ( (ListImg< NumericAffineModel3D >)grid ).localizingCursor();
-			final double[] pos = new double[ n ];
-	
 			long time = System.currentTimeMillis();
-	
-			while ( it.hasNext() )
+
+			this.coefficients = computeCoefficients( dim, min, controlPointDistance, alpha, ips, defaultNumNeighbors );
+
+			final ArrayImg< NumericAffineModel3D, DoubleArray > img = new ArrayImg<>( new DoubleArray( coefficients ), dim, new Fraction( 12, 1 ) );
+			img.setLinkedType( new NumericAffineModel3D( img ) );
+			this.grid = img;
+
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": computed grid [" + (System.currentTimeMillis() - time ) + " ms]." );
+		}
+	}
+
+	/**
+	 * Instantiates a (non-virtual) grid from previously computed coefficients, e.g. loaded by {@link ModelGridStore}.
+	 *
+	 * @param controlPointDistance - distance between control points
+	 * @param min - world coordinates of the first control point
+	 * @param dim - number of control points in each dimension
+	 * @param alpha - the MLS alpha that was used
+	 * @param coefficients - 12 per control point as in AffineModel3D.toArray(), X fastest
+	 */
+	public ModelGrid(
+			final long[] controlPointDistance,
+			final long[] min,
+			final long[] dim,
+			final double alpha,
+			final double[] coefficients )
+	{
+		this.n = dim.length;
+		this.alpha = alpha;
+
+		if ( this.n != 3 )
+			throw new RuntimeException( "Currently only 3d is supported by " + this.getClass().getName() );
+
+		if ( coefficients.length != 12 * dim[ 0 ] * dim[ 1 ] * dim[ 2 ] )
+			throw new RuntimeException( "Number of coefficients (" + coefficients.length + ") does not match grid dimensions " + Util.printCoordinates( dim ) );
+
+		this.controlPointDistance = controlPointDistance;
+		this.min = min;
+		this.dim = dim;
+		this.coefficients = coefficients;
+
+		final ArrayImg< NumericAffineModel3D, DoubleArray > img = new ArrayImg<>( new DoubleArray( coefficients ), dim, new Fraction( 12, 1 ) );
+		img.setLinkedType( new NumericAffineModel3D( img ) );
+		this.grid = img;
+	}
+
+	/**
+	 * Computes the affine model of the moving least squares transform at every control point in parallel. Each fit only
+	 * uses the numNeighbors closest points (found using a KDTree), the weights of all other points are negligible
+	 * (1/d^(2*alpha)). If the neighborhood is ill-defined (e.g. coplanar points), all points are used for that control point.
+	 *
+	 * @param dim - number of control points in each dimension
+	 * @param min - world coordinates of the first control point
+	 * @param controlPointDistance - distance between control points
+	 * @param alpha - the MLS alpha
+	 * @param ips - the points (from target in world coordinates to local coordinates)
+	 * @param numNeighbors - how many points are used for each control point (&lt;= 0 means all, which is identical to MovingLeastSquaresTransform2)
+	 * @return the coefficients, 12 per control point as in AffineModel3D.toArray(), X fastest
+	 * @throws NotEnoughDataPointsException - if there are less than 4 points
+	 */
+	public static double[] computeCoefficients(
+			final long[] dim,
+			final long[] min,
+			final long[] controlPointDistance,
+			final double alpha,
+			final Collection< ? extends NonrigidIP > ips,
+			final int numNeighbors ) throws NotEnoughDataPointsException
+	{
+		final int n = dim.length;
+		final int numPoints = ips.size();
+
+		if ( numPoints < 4 )
+			throw new NotEnoughDataPointsException( numPoints + " data points are not enough to estimate a 3d affine model (4 required)." );
+
+		// p = target (world), q = local, dimension-major as in MovingLeastSquaresTransform2
+		final double[][] p = new double[ n ][ numPoints ];
+		final double[][] q = new double[ n ][ numPoints ];
+		final ArrayList< Integer > indices = new ArrayList<>( numPoints );
+		final ArrayList< RealPoint > positions = new ArrayList<>( numPoints );
+
+		int i = 0;
+
+		for ( final NonrigidIP ip : ips )
+		{
+			final double[] target = ip.getTargetW();
+			final double[] local = ip.getL();
+
+			for ( int d = 0; d < n; ++d )
 			{
-				it.fwd();
-	
-				//System.out.print( Util.printCoordinates( it ) + " >>> " );
-	
-				getWorldCoordinates( pos, it, min, controlPointDistance, n );
-	
-				//System.out.print( Util.printCoordinates( pos ) );
-	
-				transform.applyInPlace( pos ); // also modifies the model
-	
-				it.set( new NumericAffineModel3D( model.copy() ) );
-	
-				//System.out.println( " >>> " + Util.printCoordinates( pos ) + ": " + model );
+				p[ d ][ i ] = target[ d ];
+				q[ d ][ i ] = local[ d ];
 			}
-	
-			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": computed grid [" + (System.currentTimeMillis() - time ) + " ms]." );
+
+			indices.add( i++ );
+			positions.add( new RealPoint( target ) );
 		}
+
+		final int k = numNeighbors <= 0 ? numPoints : Math.min( numNeighbors, numPoints );
+		final KDTree< Integer > tree = k < numPoints ? new KDTree<>( indices, positions ) : null;
+
+		final int numRows = (int)( dim[ 1 ] * dim[ 2 ] );
+		final int rowLength = (int)dim[ 0 ];
+		final double[] coefficients = new double[ numRows * rowLength * 12 ];
+
+		IntStream.range( 0, numRows ).parallel().forEach( row ->
+		{
+			final KNearestNeighborSearchOnKDTree< Integer > search = tree == null ? null : new KNearestNeighborSearchOnKDTree<>( tree, k );
+			final AffineModel3D model = new AffineModel3D();
+			final double[][] pk = new double[ n ][ k ];
+			final double[][] qk = new double[ n ][ k ];
+			final double[] wk = new double[ k ];
+			final double[] wAll = new double[ numPoints ];
+			final double[] tmp = new double[ 12 ];
+			final RealPoint location = new RealPoint( n );
+
+			location.setPosition( ( row % dim[ 1 ] ) * controlPointDistance[ 1 ] + min[ 1 ], 1 );
+			location.setPosition( ( row / dim[ 1 ] ) * controlPointDistance[ 2 ] + min[ 2 ], 2 );
+
+			for ( int x = 0; x < rowLength; ++x )
+			{
+				location.setPosition( x * controlPointDistance[ 0 ] + min[ 0 ], 0 );
+
+				try
+				{
+					if ( search == null )
+					{
+						fit( model, location, p, q, wAll, alpha );
+					}
+					else
+					{
+						search.search( location );
+
+						for ( int j = 0; j < k; ++j )
+						{
+							final int index = search.getSampler( j ).get();
+
+							for ( int d = 0; d < n; ++d )
+							{
+								pk[ d ][ j ] = p[ d ][ index ];
+								qk[ d ][ j ] = q[ d ][ index ];
+							}
+						}
+
+						fit( model, location, pk, qk, wk, alpha );
+					}
+				}
+				catch ( NotEnoughDataPointsException | IllDefinedDataPointsException e )
+				{
+					try
+					{
+						fit( model, location, p, q, wAll, alpha );
+					}
+					catch ( NotEnoughDataPointsException | IllDefinedDataPointsException e2 )
+					{
+						throw new RuntimeException( "Could not fit MLS model at " + Util.printCoordinates( location ) + ": " + e2 );
+					}
+				}
+
+				model.toArray( tmp );
+				System.arraycopy( tmp, 0, coefficients, ( row * rowLength + x ) * 12, 12 );
+			}
+		});
+
+		return coefficients;
+	}
+
+	/**
+	 * Same weighting as MovingLeastSquaresTransform2.applyInPlace(), a point at the location gets (almost) all the weight.
+	 */
+	private static void fit(
+			final AffineModel3D model,
+			final RealLocalizable location,
+			final double[][] p,
+			final double[][] q,
+			final double[] w,
+			final double alpha ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		for ( int i = 0; i < w.length; ++i )
+		{
+			double s = 0;
+
+			for ( int d = 0; d < p.length; ++d )
+			{
+				final double dx = p[ d ][ i ] - location.getDoublePosition( d );
+				s += dx * dx;
+			}
+
+			w[ i ] = 1.0 / Math.pow( Math.max( s, minSquareDistance ), alpha );
+		}
+
+		model.fit( p, q, w );
 	}
 
 	public double getAlpha() { return alpha; }
 
+	/**
+	 * @return the affine models at the control points (zero-min, see {@link #getMin()} and {@link #getControlPointDistance()})
+	 */
+	public RandomAccessibleInterval< NumericAffineModel3D > getGrid() { return grid; }
+
+	/**
+	 * @return world coordinates of the first control point
+	 */
+	public long[] getMin() { return min; }
+
+	public long[] getControlPointDistance() { return controlPointDistance; }
+
+	/**
+	 * @return the coefficients of all control points, 12 per control point as in AffineModel3D.toArray() (X fastest), null for a virtual grid
+	 */
+	public double[] getCoefficients() { return coefficients; }
+
 	protected static final void getWorldCoordinates( final double[] pos, final Localizable l, final long[] min, final long[] controlPointDistance, final int n )
 	{
 		for ( int d = 0; d < n; ++d )
@@ -0,0 +1,251 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.transformed.nonrigid.grid;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.janelia.saalfeldlab.n5.universe.StorageFormat;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.process.fusion.transformed.nonrigid.NonrigidIP;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+import util.URITools;
+
+/**
+ * Persists computed (non-virtual) {@link ModelGrid}s in an N5 container next to the interestpoints.n5, so repeated
+ * fusions/exports of the same project do not need to fit the moving least squares models again.
+ *
+ * Each view has one group, holding the grid of the last computation and a key that identifies its inputs (all points
+ * used for the fit, alpha, control point distance, bounding box and the number of neighbors). If the key does not match,
+ * the grid is recomputed and replaces the stored one.
+ */
+public class ModelGridStore
+{
+	public static final String baseN5 = "nonrigidgrids.n5";
+	public static int defaultBlockSize = 300_000;
+
+	/**
+	 * if false, the fusion plugin always computes the grids
+	 */
+	public static boolean persistGrids = true;
+
+	final URI baseDir;
+
+	/**
+	 * @param baseDir - the directory of the XML
+	 */
+	public ModelGridStore( final URI baseDir )
+	{
+		this.baseDir = baseDir;
+	}
+
+	public URI getBaseDir() { return baseDir; }
+
+	public static String viewGroup( final ViewId viewId )
+	{
+		return "tpId_" + viewId.getTimePointId() + "_viewSetupId_" + viewId.getViewSetupId();
+	}
+
+	/**
+	 * @param viewId - the view
+	 * @param key - the key of the current inputs, see {@link #key(Collection, long[], double, Interval, int)}
+	 * @return the stored grid or null if there is none or it was computed from different inputs
+	 */
+	public ModelGrid load( final ViewId viewId, final String key )
+	{
+		final String group = viewGroup( viewId );
+		final String dataset = group + "/coefficients";
+
+		try
+		{
+			final N5Reader n5 = URITools.instantiateN5Reader( StorageFormat.N5, URITools.toURI( URITools.appendName( baseDir, baseN5 ) ) );
+
+			if ( !n5.exists( dataset ) || !key.equals( n5.getAttribute( group, "key", String.class ) ) )
+			{
+				n5.close();
+				return null;
+			}
+
+			final long[] min = n5.getAttribute( group, "min", long[].class );
+			final long[] dim = n5.getAttribute( group, "dim", long[].class );
+			final long[] controlPointDistance = n5.getAttribute( group, "controlPointDistance", long[].class );
+			final double alpha = n5.getAttribute( group, "alpha", double.class );
+
+			final RandomAccessibleInterval< DoubleType > data = N5Utils.open( n5, dataset );
+			final double[] coefficients = new double[ (int)Views.iterable( data ).size() ];
+			final Cursor< DoubleType > c = Views.flatIterable( data ).cursor();
+
+			for ( int i = 0; i < coefficients.length; ++i )
+				coefficients[ i ] = c.next().get();
+
+			n5.close();
+
+			return new ModelGrid( controlPointDistance, min, dim, alpha, coefficients );
+		}
+		catch ( Exception e )
+		{
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Could not load non-rigid grid of " + Group.pvid( viewId ) + ", recomputing: " + e );
+			return null;
+		}
+	}
+
+	/**
+	 * Replaces the stored grid of a view, failing to save is not fatal (it only needs to be recomputed next time).
+	 *
+	 * @param viewId - the view
+	 * @param key - the key of the inputs, see {@link #key(Collection, long[], double, Interval, int)}
+	 * @param grid - a non-virtual grid
+	 */
+	public void save( final ViewId viewId, final String key, final ModelGrid grid )
+	{
+		final double[] coefficients = grid.getCoefficients();
+
+		if ( coefficients == null )
+			return;
+
+		final String group = viewGroup( viewId );
+
+		try
+		{
+			final N5Writer n5Writer = URITools.instantiateN5Writer( StorageFormat.N5, URITools.toURI( URITools.appendName( baseDir, baseN5 ) ) );
+
+			if ( n5Writer.exists( group ) )
+				n5Writer.remove( group );
+
+			n5Writer.createGroup( group );
+
+			N5Utils.save(
+					ArrayImgs.doubles( coefficients, 12, coefficients.length / 12 ),
+					n5Writer,
+					group + "/coefficients",
+					new int[] { 12, defaultBlockSize },
+					new GzipCompression() );
+
+			n5Writer.setAttribute( group, "min", grid.getMin() );
+			n5Writer.setAttribute( group, "dim", grid.getGrid().dimensionsAsLongArray() );
+			n5Writer.setAttribute( group, "controlPointDistance", grid.getControlPointDistance() );
+			n5Writer.setAttribute( group, "alpha", grid.getAlpha() );
+
+			// written last, an incomplete group is never considered valid
+			n5Writer.setAttribute( group, "key", key );
+
+			n5Writer.close();
+		}
+		catch ( Exception e )
+		{
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Could not save non-rigid grid of " + Group.pvid( viewId ) + ": " + e );
+		}
+	}
+
+	/**
+	 * Computes a key that identifies all inputs of a {@link ModelGrid}. The points reflect the interest point labels,
+	 * registrations, downsampling and anisotropy, so any change there results in a new key. The order of the points
+	 * does not matter.
+	 *
+	 * @param ips - the points the grid is fitted to
+	 * @param controlPointDistance - distance between control points
+	 * @param alpha - the MLS alpha
+	 * @param boundingBox - the bounding box (defines the position of the control points)
+	 * @param numNeighbors - how many points are used for each control point
+	 * @return the key (hex SHA-1)
+	 */
+	public static String key(
+			final Collection< ? extends NonrigidIP > ips,
+			final long[] controlPointDistance,
+			final double alpha,
+			final Interval boundingBox,
+			final int numNeighbors )
+	{
+		final ArrayList< double[] > points = new ArrayList<>( ips.size() );
+
+		for ( final NonrigidIP ip : ips )
+		{
+			final double[] target = ip.getTargetW();
+			final double[] local = ip.getL();
+			final double[] p = new double[ target.length + local.length ];
+
+			System.arraycopy( target, 0, p, 0, target.length );
+			System.arraycopy( local, 0, p, target.length, local.length );
+
+			points.add( p );
+		}
+
+		points.sort( ( a, b ) ->
+		{
+			for ( int i = 0; i < a.length; ++i )
+			{
+				final int c = Double.compare( a[ i ], b[ i ] );
+
+				if ( c != 0 )
+					return c;
+			}
+
+			return 0;
+		});
+
+		try
+		{
+			final MessageDigest md = MessageDigest.getInstance( "SHA-1" );
+			final ByteBuffer buffer = ByteBuffer.allocate( 8 );
+
+			md.update( ( Arrays.toString( controlPointDistance ) + ";" + alpha + ";" + numNeighbors + ";" +
+					Arrays.toString( boundingBox.minAsLongArray() ) + ";" + Arrays.toString( boundingBox.maxAsLongArray() ) ).getBytes( "UTF-8" ) );
+
+			for ( final double[] p : points )
+				for ( final double v : p )
+				{
+					buffer.clear();
+					buffer.putDouble( v );
+					md.update( buffer.array() );
+				}
+
+			final StringBuilder key = new StringBuilder();
+
+			for ( final byte b : md.digest() )
+				key.append( String.format( "%02x", b ) );
+
+			return key.toString();
+		}
+		catch ( Exception e )
+		{
+			throw new RuntimeException( "Could not compute key for non-rigid grid: " + e, e );
+		}
+	}
+}
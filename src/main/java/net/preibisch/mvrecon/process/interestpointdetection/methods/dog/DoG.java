@@ -22,13 +22,20 @@
  */
 package net.preibisch.mvrecon.process.interestpointdetection.methods.dog;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.IJ;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Dimensions;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
@@ -46,6 +53,9 @@ import net.preibisch.mvrecon.process.interestpointdetection.InterestPointTools;
 
 public class DoG
 {
+	public static int maxConcurrentViews = 4;
+	public static double memoryFraction = 0.5;
+
 	final DoGParameters dog;
 
 	public DoG( final DoGParameters dog )
@@ -122,79 +132,157 @@ public class DoG
 		return ips;
 	}
 
+	/**
+	 * Detects interest points in all views of dog.toProcess. Views are processed by up to {@link #maxConcurrentViews}
+	 * threads that share one compute ExecutorService, so loading the next view(s) overlaps with computing on the
+	 * current one and small views are processed concurrently. A view only starts loading once its (estimated) memory
+	 * fits into {@link #memoryFraction} of the available memory together with all views that are in progress.
+	 *
+	 * @param interestPoints - the map to add the detections to
+	 * @param dog - the parameters
+	 */
 	public static void addInterestPoints( final HashMap< ViewId, List< InterestPoint > > interestPoints, final DoGParameters dog )
 	{
 		if ( dog.showProgress() )
 			IJ.showProgress( dog.showProgressMin );
 
-		int count = 1;
+		// with CUDA the GPU memory is planned per view, so we process one at a time
+		final int numViewThreads = dog.cuda == null ? Math.max( 1, Math.min( maxConcurrentViews, dog.toProcess.size() ) ) : 1;
+
+		final ExecutorService service = Threads.createFixedExecutorService( Threads.numThreads() );
+		final ExecutorService viewService = Executors.newFixedThreadPool( numViewThreads );
+
+		// permits are counted in kilobytes so large budgets fit into an int
+		final int maxPermits = (int)Math.max( 1, Math.min( Integer.MAX_VALUE, (long)( Runtime.getRuntime().maxMemory() * memoryFraction ) / 1024 ) );
+		final Semaphore budget = new Semaphore( maxPermits );
+
+		final AtomicInteger count = new AtomicInteger( 1 );
+		final ArrayList< Future< ? > > futures = new ArrayList<>();
 
 		// TODO: special iterator that takes into account missing views
 		for ( final ViewDescription vd : dog.toProcess )
 		{
-			// make sure not everything crashes if one file is missing
+			//
+			// open the corresponding image (if present at this timepoint)
+			//
+			if ( !vd.isPresent() )
+				continue;
+
+			// a single view larger than the budget must still be able to run
+			final int permits = (int)Math.min( maxPermits, Math.max( 1, ( estimateBytes( vd, dog ) + 1023 ) / 1024 ) );
+
+			futures.add( viewService.submit( () ->
+			{
+				try
+				{
+					budget.acquire( permits );
+				}
+				catch ( InterruptedException e )
+				{
+					return;
+				}
+
+				// make sure not everything crashes if one file is missing
+				try
+				{
+					// downsampling is not virtual!
+					@SuppressWarnings({"rawtypes" })
+					final Pair<RandomAccessibleInterval, AffineTransform3D> input =
+							DownsampleTools.openAndDownsample(
+									dog.imgloader,
+									vd,
+									new long[] { dog.downsampleXY, dog.downsampleXY, dog.downsampleZ },
+									false );
+
+					List< InterestPoint > ips = DoGImgLib2.computeDoG(
+								(RandomAccessible)Views.extendMirrorSingle( input.getA() ),
+								null, // mask
+								new FinalInterval( input.getA() ),
+								dog.sigma,
+								dog.threshold,
+								dog.localization,
+								dog.findMin,
+								dog.findMax,
+								dog.minIntensity,
+								dog.maxIntensity,
+								DoGImgLib2.blockSize,
+								service,
+								dog.cuda,
+								dog.deviceCUDA,
+								dog.accurateCUDA,
+								dog.percentGPUMem );
+
+					if ( dog.limitDetections )
+						ips = InterestPointTools.limitList( dog.maxDetections, dog.maxDetectionsTypeIndex, ips );
+
+					DownsampleTools.correctForDownsampling( ips, input.getB() );
+
+					synchronized ( interestPoints )
+					{
+						interestPoints.put( vd, ips );
+					}
+				}
+				catch ( Exception e )
+				{
+					IOFunctions.println( "An error occured (DOG): " + e );
+					IOFunctions.println( "Failed to segment angleId: "
+							+ vd.getViewSetup().getAngle().getId() + " channelId: "
+							+ vd.getViewSetup().getChannel().getId() + " illumId: "
+							+ vd.getViewSetup().getIllumination().getId()
+							+ ". Continuing with next one." );
+					e.printStackTrace();
+				}
+				finally
+				{
+					budget.release( permits );
+				}
+
+				if ( dog.showProgress() )
+					IJ.showProgress( dog.showProgressMin + 
+							( (double)(count.getAndIncrement()) / (double)dog.toProcess.size() ) / ( dog.showProgressMax - dog.showProgressMin ) );
+			}) );
+		}
+
+		for ( final Future< ? > future : futures )
+		{
 			try
 			{
-				//
-				// open the corresponding image (if present at this timepoint)
-				//
-				if ( !vd.isPresent() )
-					continue;
-
-				final ExecutorService service = Threads.createFixedExecutorService( Threads.numThreads() );
-
-				// downsampling is not virtual!
-				@SuppressWarnings({"rawtypes" })
-				final Pair<RandomAccessibleInterval, AffineTransform3D> input =
-						DownsampleTools.openAndDownsample(
-								dog.imgloader,
-								vd,
-								new long[] { dog.downsampleXY, dog.downsampleXY, dog.downsampleZ },
-								false );
-
-				List< InterestPoint > ips = DoGImgLib2.computeDoG(
-							(RandomAccessible)Views.extendMirrorSingle( input.getA() ),
-							null, // mask
-							new FinalInterval( input.getA() ),
-							dog.sigma,
-							dog.threshold,
-							dog.localization,
-							dog.findMin,
-							dog.findMax,
-							dog.minIntensity,
-							dog.maxIntensity,
-							DoGImgLib2.blockSize,
-							service,
-							dog.cuda,
-							dog.deviceCUDA,
-							dog.accurateCUDA,
-							dog.percentGPUMem );
-
-				service.shutdown();
-
-				if ( dog.limitDetections )
-					ips = InterestPointTools.limitList( dog.maxDetections, dog.maxDetectionsTypeIndex, ips );
-
-				DownsampleTools.correctForDownsampling( ips, input.getB() );
-
-				interestPoints.put( vd, ips );
-			} catch ( Exception e )
+				future.get();
+			}
+			catch ( InterruptedException | ExecutionException e )
 			{
 				IOFunctions.println( "An error occured (DOG): " + e );
-				IOFunctions.println( "Failed to segment angleId: "
-						+ vd.getViewSetup().getAngle().getId() + " channelId: "
-						+ vd.getViewSetup().getChannel().getId() + " illumId: "
-						+ vd.getViewSetup().getIllumination().getId()
-						+ ". Continuing with next one." );
 				e.printStackTrace();
 			}
-
-			if ( dog.showProgress() )
-				IJ.showProgress( dog.showProgressMin + 
-						( (double)(count++) / (double)dog.toProcess.size() ) / ( dog.showProgressMax - dog.showProgressMin ) );
 		}
 
+		viewService.shutdown();
+		service.shutdown();
+
 		if ( dog.showProgress() )
 			IJ.showProgress( dog.showProgressMax );
 	}
+
+	/**
+	 * @param vd - the view
+	 * @param dog - the parameters (for downsampling)
+	 * @return the approximate memory needed to process the (downsampled) view, 0 if the size is unknown
+	 */
+	protected static long estimateBytes( final ViewDescription vd, final DoGParameters dog )
+	{
+		if ( !vd.getViewSetup().hasSize() )
+			return 0;
+
+		final Dimensions size = vd.getViewSetup().getSize();
+
+		double numPixels = 1;
+
+		for ( int d = 0; d < size.numDimensions(); ++d )
+			numPixels *= size.dimension( d );
+
+		numPixels /= (double)Math.max( 1, dog.downsampleXY ) * Math.max( 1, dog.downsampleXY ) * Math.max( 1, dog.downsampleZ );
+
+		// the loaded input (at most 32 bit) and the intermediate image of the downsampling
+		return (long)( numPixels * 4 * 2 );
+	}
 }
@@ -41,14 +41,18 @@ import net.imglib2.Dimensions;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
+import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.algorithm.localextrema.RefinedPeak;
+import net.imglib2.algorithm.localextrema.SubpixelLocalization;
 import net.imglib2.algorithm.neighborhood.Neighborhood;
 import net.imglib2.algorithm.neighborhood.RectangleShape;
 import net.imglib2.converter.BiConverter;
 import net.imglib2.converter.Converters;
+import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
@@ -56,6 +60,7 @@ import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.iterator.LocalizingIntervalIterator;
 import net.imglib2.type.Type;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -68,6 +73,7 @@ import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.legacy.registration.bead.laplace.LaPlaceFunctions;
 import net.preibisch.legacy.segmentation.SimplePeak;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPointValue;
 import net.preibisch.mvrecon.process.cuda.Block;
 import net.preibisch.mvrecon.process.cuda.BlockGenerator;
 import net.preibisch.mvrecon.process.cuda.BlockGeneratorVariableSizePrecise;
@@ -81,12 +87,23 @@ import net.preibisch.mvrecon.process.fusion.ImagePortion;
 import net.preibisch.mvrecon.process.interestpointdetection.Localization;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.lazygauss.LazyGauss;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.lazygauss.LazyWeightedGauss;
+import util.Grid;
 import util.ImgLib2Tools;
 
 public class DoGImgLib2
 {
 	public static boolean silent = false;
 	public static int[] blockSize = new int[] {96, 96, 64};
+
+	/**
+	 * compute the DoG and detect peaks block by block without materializing the DoG image (not used with a mask, CUDA or Gaussian localization)
+	 */
+	public static boolean blockwise = true;
+
+	/**
+	 * how far (in pixels) around each block the DoG is available for the quadratic localization when computing block-wise
+	 */
+	public static int localizationMargin = 3;
 	public static enum SpecialPoint { INVALID, MIN, MAX };
 
 	public static void main ( String[] args )
@@ -219,6 +236,23 @@ public class DoGImgLib2
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): computing DoG with (sigma=" + initialSigma + ", " +
 				"threshold=" + minPeakValue + ", sigma1=" + Util.printCoordinates( sigma1 ) + ", sigma2=" + Util.printCoordinates( sigma2 ) + ")" );
 
+		if ( blockwise && mask == null && cuda == null && localization <= 1 )
+		{
+			final ArrayList< InterestPoint > finalPeaks =
+					computeDoGBlockwise( inputFloat, interval, sigma1, sigma2, K_MIN1_INV, minInitialPeakValue, minPeakValue, localization, findMin, findMax, blockSize, service );
+
+			if ( finalPeaks == null )
+				return new ArrayList<>();
+
+			// remove potential duplicates (happens because during localization it can move around)
+			final ArrayList< InterestPoint > filteredFinalPeaks = removeDuplicates( finalPeaks );
+
+			if ( !silent )
+				IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Found " + filteredFinalPeaks.size() + " final peaks." );
+
+			return filteredFinalPeaks;
+		}
+
 		final long[] minInterval = new long[ inputFloat.numDimensions() ];
 		interval.min( minInterval );
 
@@ -296,6 +330,16 @@ public class DoGImgLib2
 		}
 
 		// remove potential duplicates (happens because during localization it can move around)
+		final ArrayList< InterestPoint > filteredFinalPeaks = removeDuplicates( finalPeaks );
+
+		if ( !silent )
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Found " + filteredFinalPeaks.size() + " final peaks." );
+
+		return filteredFinalPeaks;
+	}
+
+	protected static ArrayList< InterestPoint > removeDuplicates( final ArrayList< InterestPoint > finalPeaks )
+	{
 		//final HashSet< >
 		final ArrayList< InterestPoint > filteredFinalPeaks = new ArrayList<>();
 
@@ -314,10 +358,257 @@ public class DoGImgLib2
 				filteredFinalPeaks.add( finalPeaks.get( i ) );
 		}
 
+		return filteredFinalPeaks;
+	}
+
+	/**
+	 * Computes the DoG block by block and only keeps the detections, the full Gauss and DoG images are never
+	 * materialized. Each block is padded by the Gauss kernel (read from the input), the 3x3x3 neighborhood and
+	 * {@link #localizationMargin} for the quadratic fit, so memory is proportional to numThreads x padded block size.
+	 *
+	 * Peaks are detected only in the core of each block, so every pixel is tested exactly once. The quadratic fit
+	 * sees the DoG up to {@link #localizationMargin} pixels around the core, peaks that would move further are
+	 * localized at the border of the padded block.
+	 *
+	 * @param inputFloat - the normalized input (needs to be defined outside of the interval)
+	 * @param interval - the interval to process
+	 * @param sigma1 - sigma of the first Gauss
+	 * @param sigma2 - sigma of the second Gauss
+	 * @param K_MIN1_INV - weight of the difference
+	 * @param minInitialPeakValue - minimal DoG value of an initial peak
+	 * @param minPeakValue - minimal DoG value after localization
+	 * @param localization - 0 = none, 1 = quadratic fit
+	 * @param findMin - keep minima
+	 * @param findMax - keep maxima
+	 * @param blockSize - the size of the (core) blocks
+	 * @param service - the ExecutorService, blocks are processed in parallel
+	 * @return the detections in global coordinates
+	 */
+	public static ArrayList< InterestPoint > computeDoGBlockwise(
+			final RandomAccessible< FloatType > inputFloat,
+			final Interval interval,
+			final double[] sigma1,
+			final double[] sigma2,
+			final float K_MIN1_INV,
+			final float minInitialPeakValue,
+			final float minPeakValue,
+			final int localization,
+			final boolean findMin,
+			final boolean findMax,
+			final int[] blockSize,
+			final ExecutorService service )
+	{
+		final int n = interval.numDimensions();
+		final int pad = localization == 0 ? 1 : 1 + localizationMargin;
+
+		// peaks need their full 3x3x3 neighborhood inside the image
+		final Interval peakInterval = Intervals.expand( interval, -1 );
+
+		final List< long[][] > grid = Grid.create( Intervals.dimensionsAsLongArray( interval ), blockSize );
+
 		if ( !silent )
-			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Found " + filteredFinalPeaks.size() + " final peaks." );
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Detecting peaks block-wise in " + grid.size() + " blocks of " + Util.printCoordinates( blockSize ) + " px." );
 
-		return filteredFinalPeaks;
+		final ArrayList< Callable< ArrayList< InterestPointValue > > > tasks = new ArrayList<>();
+
+		for ( final long[][] block : grid )
+		{
+			tasks.add( () ->
+			{
+				final ArrayList< InterestPointValue > myPeaks = new ArrayList<>();
+
+				final long[] coreMin = new long[ n ];
+				final long[] coreMax = new long[ n ];
+
+				for ( int d = 0; d < n; ++d )
+				{
+					coreMin[ d ] = interval.min( d ) + block[ 0 ][ d ];
+					coreMax[ d ] = coreMin[ d ] + block[ 1 ][ d ] - 1;
+				}
+
+				final FinalInterval core = Intervals.intersect( new FinalInterval( coreMin, coreMax ), peakInterval );
+
+				if ( Intervals.isEmpty( core ) )
+					return myPeaks;
+
+				// outside of the image the DoG is mirrored (as for the full image), so we never need more than the interval
+				final FinalInterval dogInterval = Intervals.intersect( Intervals.expand( core, pad ), interval );
+				final long[] dogMin = dogInterval.minAsLongArray();
+				final long[] dim = dogInterval.dimensionsAsLongArray();
+
+				final ArrayImg< FloatType, FloatArray > gauss1 = ArrayImgs.floats( dim );
+				final ArrayImg< FloatType, FloatArray > gauss2 = ArrayImgs.floats( dim );
+
+				try
+				{
+					Gauss3.gauss( sigma1, inputFloat, Views.translate( gauss1, dogMin ), 1 );
+					Gauss3.gauss( sigma2, inputFloat, Views.translate( gauss2, dogMin ), 1 );
+				}
+				catch ( final IncompatibleTypeException e )
+				{
+					throw new RuntimeException( e );
+				}
+
+				// the DoG is computed in place of the second Gauss
+				final float[] g1 = gauss1.update( null ).getCurrentStorageArray();
+				final float[] dog = gauss2.update( null ).getCurrentStorageArray();
+
+				for ( int i = 0; i < dog.length; ++i )
+					dog[ i ] = (float)( ( (double)dog[ i ] - g1[ i ] ) * K_MIN1_INV );
+
+				// strides and neighbor offsets into the flat array
+				final int[] stride = new int[ n ];
+				stride[ 0 ] = 1;
+
+				for ( int d = 1; d < n; ++d )
+					stride[ d ] = stride[ d - 1 ] * (int)dim[ d - 1 ];
+
+				final int[] neighbors = neighborOffsets( stride );
+
+				final ArrayList< SimplePeak > peaks = new ArrayList<>();
+				final LocalizingIntervalIterator it = new LocalizingIntervalIterator( core );
+				final int[] position = new int[ n ];
+
+				while ( it.hasNext() )
+				{
+					it.fwd();
+
+					int index = 0;
+
+					for ( int d = 0; d < n; ++d )
+					{
+						position[ d ] = it.getIntPosition( d );
+						index += ( position[ d ] - dogMin[ d ] ) * stride[ d ];
+					}
+
+					final float centerValue = dog[ index ];
+
+					// it can never be a desired peak as it is too low
+					if ( Math.abs( centerValue ) < minInitialPeakValue )
+						continue;
+
+					boolean isMin = true;
+					boolean isMax = true;
+
+					for ( int k = 0; ( isMax || isMin ) && k < neighbors.length; ++k )
+					{
+						final float value = dog[ index + neighbors[ k ] ];
+
+						isMin &= ( value >= centerValue );
+						isMax &= ( value <= centerValue );
+					}
+
+					// this mixup is intended, a minimum in the 2nd derivation is a maxima in image space and vice versa (see isSpecialPoint)
+					if ( isMin )
+						peaks.add( new SimplePeak( position, Math.abs( centerValue ), false, true ) );
+					else if ( isMax )
+						peaks.add( new SimplePeak( position, Math.abs( centerValue ), true, false ) );
+				}
+
+				if ( localization == 0 )
+				{
+					for ( final SimplePeak peak : peaks )
+						if ( ( peak.isMax && findMax ) || ( peak.isMin && findMin ) )
+						{
+							final double[] pos = new double[ n ];
+
+							for ( int d = 0; d < n; ++d )
+								pos[ d ] = peak.location[ d ];
+
+							myPeaks.add( new InterestPointValue( 0, pos, peak.intensity ) );
+						}
+				}
+				else
+				{
+					final ArrayList< Point > peakList = new ArrayList<>();
+
+					for ( final SimplePeak peak : peaks )
+						if ( ( peak.isMax && findMax ) || ( peak.isMin && findMin ) )
+							peakList.add( new Point( peak.location ) );
+
+					final SubpixelLocalization< Point, FloatType > spl = new SubpixelLocalization<>( n );
+					spl.setAllowMaximaTolerance( true );
+					spl.setMaxNumMoves( 10 );
+
+					final ArrayList< RefinedPeak< Point > > refinedPeaks =
+							SubpixelLocalization.refinePeaks(
+									peakList,
+									Views.extendMirrorDouble( Views.translate( gauss2, dogMin ) ),
+									dogInterval,
+									spl.getReturnInvalidPeaks(),
+									spl.getMaxNumMoves(),
+									spl.getAllowMaximaTolerance(),
+									spl.getMaximaTolerance(),
+									spl.getAllowedToMoveInDim() );
+
+					for ( final RefinedPeak< Point > r : refinedPeaks )
+					{
+						if ( Math.abs( r.getValue() ) > minPeakValue )
+						{
+							final double[] pos = new double[ n ];
+
+							for ( int d = 0; d < n; ++d )
+								pos[ d ] = r.getDoublePosition( d );
+
+							myPeaks.add( new InterestPointValue( 0, pos, r.getValue() ) );
+						}
+					}
+				}
+
+				return myPeaks;
+			});
+		}
+
+		// put together the list from the blocks in grid order, ids are assigned afterwards so they are deterministic
+		final ArrayList< InterestPoint > finalPeaks = new ArrayList<>();
+
+		try
+		{
+			int id = 0;
+
+			for ( final Future< ArrayList< InterestPointValue > > future : service.invokeAll( tasks ) )
+				for ( final InterestPointValue ip : future.get() )
+					finalPeaks.add( new InterestPointValue( id++, ip.getL(), ip.getIntensity() ) );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			IOFunctions.println( "Failed to compute DoG block-wise: " + e );
+			e.printStackTrace();
+			return null;
+		}
+
+		if ( !silent )
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Found " + finalPeaks.size() + " peaks (after refinement)." );
+
+		return finalPeaks;
+	}
+
+	/**
+	 * @param stride - the strides of a flat array
+	 * @return the offsets of all 3^n - 1 direct neighbors of a pixel in the flat array
+	 */
+	protected static int[] neighborOffsets( final int[] stride )
+	{
+		final int n = stride.length;
+		int numNeighbors = 1;
+
+		for ( int d = 0; d < n; ++d )
+			numNeighbors *= 3;
+
+		final int[] neighbors = new int[ numNeighbors - 1 ];
+
+		for ( int i = 0, j = 0; i < numNeighbors; ++i )
+		{
+			int offset = 0;
+
+			for ( int d = 0, k = i; d < n; ++d, k /= 3 )
+				offset += ( k % 3 - 1 ) * stride[ d ];
+
+			if ( offset != 0 )
+				neighbors[ j++ ] = offset;
+		}
+
+		return neighbors;
 	}
 
 	private static final boolean isApproxEqual( final double[] v1, final double[] v2, final double epsilon )
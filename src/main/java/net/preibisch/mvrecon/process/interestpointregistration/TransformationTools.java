@@ -691,6 +691,20 @@ public class TransformationTools
 	{
 		final HashMap< V, HashMap< String, Collection< InterestPoint > > > transformedInterestpoints = new HashMap<>();
 
+		// load all views concurrently first
+		final ArrayList< InterestPoints > lists = new ArrayList<>();
+
+		for ( final V viewId : viewIds )
+			labelMap.get( viewId ).keySet().forEach( label ->
+			{
+				final InterestPoints list = interestpoints.get( viewId ).getInterestPointList( label );
+
+				if ( list != null )
+					lists.add( list );
+			});
+
+		InterestPoints.loadConcurrently( lists, true, false );
+
 		for ( final V viewId : viewIds )
 			transformedInterestpoints.put( viewId, getInterestPoints( viewId, registrations, interestpoints, labelMap, transform ) );
 
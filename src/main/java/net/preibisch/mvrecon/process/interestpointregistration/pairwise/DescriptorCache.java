@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.interestpointregistration.pairwise;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Supplier;
+
+import net.imglib2.KDTree;
+import net.imglib2.RealLocalizable;
+
+/**
+ * Shares point descriptors (and their lookup KDTree) of one list of interest points across all pairs it is
+ * matched in, e.g. with AllToAll each view would otherwise rebuild its descriptors N-1 times.
+ *
+ * Entries are identified by the instance of the interest point collection (as handed to
+ * {@link MatcherPairwise#match(Collection, Collection, Object, Object, String, String)}, which is the same for all
+ * pairs of a (view, label) unless the points are duplicated) and the parameters the descriptors depend on. Each entry
+ * is computed only once, also if it is requested concurrently. The least recently used entries are evicted once the
+ * total number of cached descriptors exceeds a limit.
+ *
+ * @param <D> descriptor type
+ */
+public class DescriptorCache< D extends RealLocalizable >
+{
+	/**
+	 * Roughly ~1 KB per descriptor including the linked neighbors and the KDTree, so use a quarter of the heap by default
+	 */
+	public static long defaultMaxDescriptors()
+	{
+		return Math.max( 100000, Runtime.getRuntime().maxMemory() / 4 / 1024 );
+	}
+
+	public static class Descriptors< D extends RealLocalizable >
+	{
+		final ArrayList< D > descriptors;
+		KDTree< D > tree = null;
+
+		public Descriptors( final ArrayList< D > descriptors )
+		{
+			this.descriptors = descriptors;
+		}
+
+		public ArrayList< D > descriptors() { return descriptors; }
+
+		/**
+		 * @return the lookup tree, built on first request (only needed if these descriptors are the second list of a pair)
+		 */
+		public synchronized KDTree< D > tree()
+		{
+			if ( tree == null )
+				tree = new KDTree<>( descriptors, descriptors );
+
+			return tree;
+		}
+	}
+
+	protected static class Key
+	{
+		final Collection< ? > points;
+		final Object parameters;
+
+		public Key( final Collection< ? > points, final Object parameters )
+		{
+			this.points = points;
+			this.parameters = parameters;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * System.identityHashCode( points ) + parameters.hashCode();
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+
+			final Key k = (Key)o;
+
+			return k.points == points && k.parameters.equals( parameters );
+		}
+	}
+
+	final long maxDescriptors;
+	final LinkedHashMap< Key, FutureTask< Descriptors< D > > > cache = new LinkedHashMap<>( 16, 0.75f, true );
+
+	long numDescriptors = 0;
+
+	public DescriptorCache()
+	{
+		this( defaultMaxDescriptors() );
+	}
+
+	/**
+	 * @param maxDescriptors - the maximal number of descriptors kept (the most recent entry is always kept)
+	 */
+	public DescriptorCache( final long maxDescriptors )
+	{
+		this.maxDescriptors = maxDescriptors;
+	}
+
+	/**
+	 * @param points - the interest points the descriptors are computed from (identity is used as key)
+	 * @param parameters - everything else the descriptors depend on (equals() is used as key)
+	 * @param factory - computes the descriptors if they are not cached
+	 * @return the cached or newly computed descriptors
+	 */
+	public Descriptors< D > get( final Collection< ? > points, final Object parameters, final Supplier< ArrayList< D > > factory )
+	{
+		final Key key = new Key( points, parameters );
+		final FutureTask< Descriptors< D > > task;
+		final boolean compute;
+
+		synchronized ( cache )
+		{
+			final FutureTask< Descriptors< D > > existing = cache.get( key );
+
+			if ( existing == null )
+			{
+				task = new FutureTask<>( () -> new Descriptors<>( factory.get() ) );
+				cache.put( key, task );
+				compute = true;
+			}
+			else
+			{
+				task = existing;
+				compute = false;
+			}
+		}
+
+		// compute outside of the lock, other threads asking for the same key wait in get()
+		if ( compute )
+			task.run();
+
+		final Descriptors< D > descriptors;
+
+		try
+		{
+			descriptors = task.get();
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			synchronized ( cache )
+			{
+				cache.remove( key, task );
+			}
+
+			throw new RuntimeException( "Failed to compute descriptors: " + e, e );
+		}
+
+		if ( compute )
+			evict( task, descriptors.descriptors().size() );
+
+		return descriptors;
+	}
+
+	protected void evict( final FutureTask< Descriptors< D > > keep, final int added )
+	{
+		synchronized ( cache )
+		{
+			numDescriptors += added;
+
+			// eldest (least recently used) first, entries still being computed are not counted yet
+			final Iterator< Map.Entry< Key, FutureTask< Descriptors< D > > > > it = cache.entrySet().iterator();
+
+			while ( numDescriptors > maxDescriptors && it.hasNext() )
+			{
+				final FutureTask< Descriptors< D > > task = it.next().getValue();
+
+				if ( task == keep || !task.isDone() )
+					continue;
+
+				it.remove();
+
+				try
+				{
+					numDescriptors -= task.get().descriptors().size();
+				}
+				catch ( InterruptedException | ExecutionException e ) {}
+			}
+		}
+	}
+
+	public int size()
+	{
+		synchronized ( cache )
+		{
+			return cache.size();
+		}
+	}
+
+	public void clear()
+	{
+		synchronized ( cache )
+		{
+			cache.clear();
+			numDescriptors = 0;
+		}
+	}
+}
@@ -58,4 +58,10 @@ public interface MatcherPairwise< I extends InterestPoint >
 	 * @return if duplication is necessary
 	 */
 	public boolean requiresInterestPointDuplication();
+
+	/**
+	 * Releases anything that was cached to speed up matching several pairs (e.g. descriptors per view),
+	 * called once all pairs were matched.
+	 */
+	public default void clearCache() {}
 }
@@ -35,6 +35,9 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.util.Pair;
@@ -50,6 +53,77 @@ import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constell
 
 public class MatcherPairwiseTools
 {
+	/**
+	 * Lists smaller than this are processed single-threaded by {@link #processInParallel(List, Supplier, ElementProcessor)}
+	 */
+	public static int minElementsPerChunk = 1024;
+
+	@FunctionalInterface
+	public interface ElementProcessor< A, B, S >
+	{
+		/**
+		 * @param element - the element to process
+		 * @param state - the per-thread state (e.g. a KNN search, which is not thread-safe)
+		 * @param out - where to add the result(s)
+		 */
+		void process( A element, S state, List< B > out );
+	}
+
+	/**
+	 * Processes all elements of a list (e.g. the basis points when creating descriptors) in parallel within one pair,
+	 * so that cores are used also if there are only few pairs. The list is split into contiguous chunks that are
+	 * processed on the common ForkJoinPool (which is work-stealing and thus can be used from within the tasks of
+	 * {@link #computePairs(List, Map, MatcherPairwise, boolean, ExecutorService)}), each chunk creates its own state.
+	 * The results are concatenated in the order of the input, so the output is the same as if it were run single-threaded.
+	 *
+	 * @param input - the elements
+	 * @param stateFactory - creates the state for one chunk
+	 * @param processor - processes a single element
+	 * @param <A> input type
+	 * @param <B> output type
+	 * @param <S> state type
+	 * @return all results in the order of the input
+	 */
+	public static < A, B, S > ArrayList< B > processInParallel(
+			final List< A > input,
+			final Supplier< S > stateFactory,
+			final ElementProcessor< A, B, S > processor )
+	{
+		final int numChunks = (int)Math.max( 1, Math.min( Threads.numThreads() * 4L, input.size() / minElementsPerChunk ) );
+		final int chunkSize = ( input.size() + numChunks - 1 ) / numChunks;
+
+		if ( numChunks == 1 )
+		{
+			final S state = stateFactory.get();
+			final ArrayList< B > out = new ArrayList<>();
+
+			for ( final A element : input )
+				processor.process( element, state, out );
+
+			return out;
+		}
+
+		// an ordered parallel stream collects in encounter order
+		final List< ArrayList< B > > chunks = IntStream.range( 0, numChunks ).parallel().mapToObj( c ->
+		{
+			final S state = stateFactory.get();
+			final ArrayList< B > out = new ArrayList<>();
+			final int end = Math.min( input.size(), ( c + 1 ) * chunkSize );
+
+			for ( int i = c * chunkSize; i < end; ++i )
+				processor.process( input.get( i ), state, out );
+
+			return out;
+		}).collect( Collectors.toList() );
+
+		final ArrayList< B > out = new ArrayList<>( chunks.stream().mapToInt( List::size ).sum() );
+
+		for ( final ArrayList< B > chunk : chunks )
+			out.addAll( chunk );
+
+		return out;
+	}
+
 	public static < V > HashSet< V > allViews( final Group< ? extends V > a, final Group< ? extends V > b )
 	{
 		final HashSet< V > all = new HashSet<>();
@@ -314,6 +388,8 @@ public class MatcherPairwiseTools
 		if ( exec == null )
 			taskExecutor.shutdown();
 
+		matcher.clearCache();
+
 		return r;
 	}
 
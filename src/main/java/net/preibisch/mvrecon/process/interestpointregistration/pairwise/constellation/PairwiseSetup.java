@@ -26,7 +26,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -274,21 +276,66 @@ public abstract class PairwiseSetup< V extends Comparable< V > >
 			final OverlapDetection< V > ovlp )
 	{
 		final ArrayList< Pair< V, V > > removed = new ArrayList<>();
+		final ArrayList< Pair< V, V > > remaining = new ArrayList<>();
+
+		// if supported, get all overlapping pairs at once (e.g. using a spatial index) instead of testing each pair
+		final HashMap< V, HashSet< V > > overlapping = overlappingViews( pairs, ovlp );
 
 		for ( int i = pairs.size() - 1; i >= 0; --i )
 		{
 			final Pair< V, V > pair = pairs.get( i );
 
-			if ( !ovlp.overlaps( pair.getA(), pair.getB() ) )
-			{
-				pairs.remove( i );
+			final boolean overlaps;
+
+			if ( overlapping == null )
+				overlaps = ovlp.overlaps( pair.getA(), pair.getB() );
+			else
+				overlaps =
+					overlapping.containsKey( pair.getA() ) && overlapping.get( pair.getA() ).contains( pair.getB() ) ||
+					overlapping.containsKey( pair.getB() ) && overlapping.get( pair.getB() ).contains( pair.getA() );
+
+			if ( overlaps )
+				remaining.add( pair );
+			else
 				removed.add( pair );
-			}
+		}
+
+		// removing from the list one by one is quadratic for many pairs
+		if ( removed.size() > 0 )
+		{
+			Collections.reverse( remaining );
+			pairs.clear();
+			pairs.addAll( remaining );
 		}
 
 		return removed;
 	}
 
+	protected static < V > HashMap< V, HashSet< V > > overlappingViews(
+			final List< Pair< V, V > > pairs,
+			final OverlapDetection< V > ovlp )
+	{
+		final LinkedHashSet< V > views = new LinkedHashSet<>();
+
+		for ( final Pair< V, V > pair : pairs )
+		{
+			views.add( pair.getA() );
+			views.add( pair.getB() );
+		}
+
+		final List< Pair< V, V > > overlappingPairs = ovlp.overlappingPairs( new ArrayList<>( views ) );
+
+		if ( overlappingPairs == null )
+			return null;
+
+		final HashMap< V, HashSet< V > > overlapping = new HashMap<>();
+
+		for ( final Pair< V, V > pair : overlappingPairs )
+			overlapping.computeIfAbsent( pair.getA(), k -> new HashSet<>() ).add( pair.getB() );
+
+		return overlapping;
+	}
+
 	/*
 	 * Reorder the pairs so that the "smaller" view comes first
 	 */
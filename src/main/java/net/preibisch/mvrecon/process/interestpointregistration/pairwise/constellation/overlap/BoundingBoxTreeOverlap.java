@@ -0,0 +1,233 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.overlap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mpicbg.spim.data.generic.AbstractSpimData;
+import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.RealInterval;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.fiji.spimdata.boundingbox.BoundingBox;
+
+/**
+ * Same overlap criterion as {@link SimpleBoundingBoxOverlap}, but the world bounding box of each view is computed only
+ * once, and all overlapping pairs of a list of views are found using a bounding volume hierarchy instead of testing
+ * all n*(n-1)/2 pairs.
+ *
+ * @param <V> view id type
+ */
+public class BoundingBoxTreeOverlap< V extends ViewId > implements OverlapDetection< V >
+{
+	public static int maxViewsPerLeaf = 8;
+
+	final Map< ViewId, ViewRegistration > vrs;
+	final Map< Integer, ? extends BasicViewSetup > vss;
+	final SimpleBoundingBoxOverlap< V > simple;
+
+	final ConcurrentHashMap< ViewId, BoundingBox > boundingBoxes = new ConcurrentHashMap<>();
+
+	public BoundingBoxTreeOverlap( final AbstractSpimData< ? extends AbstractSequenceDescription< ? extends BasicViewSetup, ?, ? > > spimData )
+	{
+		this( spimData.getSequenceDescription().getViewSetups(), spimData.getViewRegistrations().getViewRegistrations() );
+	}
+
+	public BoundingBoxTreeOverlap( final Map< Integer, ? extends BasicViewSetup > viewSetups, final Map< ViewId, ViewRegistration > vrs )
+	{
+		this.vss = viewSetups;
+		this.vrs = vrs;
+		this.simple = new SimpleBoundingBoxOverlap<>( viewSetups, vrs );
+	}
+
+	@Override
+	public boolean overlaps( final V view1, final V view2 )
+	{
+		final BoundingBox bb1 = getBoundingBox( view1 );
+		final BoundingBox bb2 = getBoundingBox( view2 );
+
+		if ( bb1 == null )
+			throw new RuntimeException( "view1 has no image size" );
+
+		if ( bb2 == null )
+			throw new RuntimeException( "view2 has no image size" );
+
+		return SimpleBoundingBoxOverlap.overlaps( bb1, bb2 );
+	}
+
+	@Override
+	public RealInterval getOverlapInterval( final V view1, final V view2 )
+	{
+		return simple.getOverlapInterval( view1, view2 );
+	}
+
+	@Override
+	public List< Pair< V, V > > overlappingPairs( final List< ? extends V > views )
+	{
+		final int n = views.size();
+		final BoundingBox[] bbs = new BoundingBox[ n ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			bbs[ i ] = getBoundingBox( views.get( i ) );
+
+			if ( bbs[ i ] == null )
+				throw new RuntimeException( "view " + views.get( i ) + " has no image size" );
+		}
+
+		final ArrayList< Pair< V, V > > pairs = new ArrayList<>();
+
+		if ( n < 2 )
+			return pairs;
+
+		final Integer[] order = new Integer[ n ];
+
+		for ( int i = 0; i < n; ++i )
+			order[ i ] = i;
+
+		final Node root = build( order, 0, n, bbs );
+		final ArrayList< Integer > hits = new ArrayList<>();
+
+		// same order as testing all pairs (a < b)
+		for ( int a = 0; a < n - 1; ++a )
+		{
+			hits.clear();
+			root.query( bbs[ a ], bbs, hits );
+			Collections.sort( hits );
+
+			for ( final int b : hits )
+				if ( b > a )
+					pairs.add( new ValuePair<>( views.get( a ), views.get( b ) ) );
+		}
+
+		return pairs;
+	}
+
+	/**
+	 * @param view - the view
+	 * @return the (cached) bounding box in world coordinates, or null if the view has no size
+	 */
+	public BoundingBox getBoundingBox( final ViewId view )
+	{
+		final BoundingBox cached = boundingBoxes.get( view );
+
+		if ( cached != null )
+			return cached;
+
+		final BoundingBox bb = SimpleBoundingBoxOverlap.getBoundingBox( vss.get( view.getViewSetupId() ), vrs.get( view ) );
+
+		// ConcurrentHashMap does not allow null values, views without size are simply not cached
+		if ( bb != null )
+			boundingBoxes.putIfAbsent( view, bb );
+
+		return bb;
+	}
+
+	/**
+	 * Removes all cached bounding boxes, e.g. if registrations changed.
+	 */
+	public void clearCache() { boundingBoxes.clear(); }
+
+	protected static Node build( final Integer[] order, final int from, final int to, final BoundingBox[] bbs )
+	{
+		final int n = bbs[ 0 ].numDimensions();
+		final int[] min = bbs[ order[ from ] ].getMin().clone();
+		final int[] max = bbs[ order[ from ] ].getMax().clone();
+
+		for ( int i = from + 1; i < to; ++i )
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], bbs[ order[ i ] ].getMin()[ d ] );
+				max[ d ] = Math.max( max[ d ], bbs[ order[ i ] ].getMax()[ d ] );
+			}
+
+		if ( to - from <= maxViewsPerLeaf )
+		{
+			final int[] items = new int[ to - from ];
+
+			for ( int i = from; i < to; ++i )
+				items[ i - from ] = order[ i ];
+
+			return new Node( min, max, null, null, items );
+		}
+
+		// split at the median of the box centers along the longest axis
+		int axis = 0;
+
+		for ( int d = 1; d < n; ++d )
+			if ( (long)max[ d ] - min[ d ] > (long)max[ axis ] - min[ axis ] )
+				axis = d;
+
+		final int splitAxis = axis;
+
+		Arrays.sort( order, from, to, Comparator.comparingLong( i -> (long)bbs[ i ].getMin()[ splitAxis ] + bbs[ i ].getMax()[ splitAxis ] ) );
+
+		final int mid = ( from + to ) / 2;
+
+		return new Node( min, max, build( order, from, mid, bbs ), build( order, mid, to, bbs ), null );
+	}
+
+	protected static class Node
+	{
+		final int[] min, max;
+		final Node left, right;
+		final int[] items;
+
+		public Node( final int[] min, final int[] max, final Node left, final Node right, final int[] items )
+		{
+			this.min = min;
+			this.max = max;
+			this.left = left;
+			this.right = right;
+			this.items = items;
+		}
+
+		public void query( final BoundingBox bb, final BoundingBox[] bbs, final List< Integer > hits )
+		{
+			for ( int d = 0; d < min.length; ++d )
+				if ( bb.getMax()[ d ] < min[ d ] || bb.getMin()[ d ] > max[ d ] )
+					return;
+
+			if ( items != null )
+			{
+				for ( final int i : items )
+					if ( SimpleBoundingBoxOverlap.overlaps( bb, bbs[ i ] ) )
+						hits.add( i );
+			}
+			else
+			{
+				left.query( bb, bbs, hits );
+				right.query( bb, bbs, hits );
+			}
+		}
+	}
+}
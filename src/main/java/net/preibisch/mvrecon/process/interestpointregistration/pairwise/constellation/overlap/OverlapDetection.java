@@ -22,10 +22,22 @@
  */
 package net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.overlap;
 
+import java.util.List;
+
 import net.imglib2.RealInterval;
+import net.imglib2.util.Pair;
 
 public interface OverlapDetection< V >
 {
 	public boolean overlaps( final V view1, final V view2 );
 	public RealInterval getOverlapInterval( final V view1, final V view2 );
+
+	/**
+	 * Implementations that can find all overlapping pairs of a list of views faster than testing every pair
+	 * (e.g. using a spatial index) return them here.
+	 *
+	 * @param views - the views
+	 * @return all overlapping pairs (viewA before viewB in the list), or null if not supported and all pairs need to be tested using overlaps()
+	 */
+	public default List< Pair< V, V > > overlappingPairs( final List< ? extends V > views ) { return null; }
 }
@@ -24,7 +24,9 @@ package net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Supplier;
 
 import net.imglib2.KDTree;
 import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
@@ -33,6 +35,9 @@ import net.imglib2.util.Util;
 import net.imglib2.util.ValuePair;
 import net.preibisch.legacy.mpicbg.PointMatchGeneric;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.DescriptorCache;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.DescriptorCache.Descriptors;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.MatcherPairwiseTools;
 import net.preibisch.mvrecon.process.pointcloud.pointdescriptor.TranslationInvariantLocalCoordinateSystemPointDescriptor;
 import net.preibisch.mvrecon.process.pointcloud.pointdescriptor.exception.NoSuitablePointsException;
 import net.preibisch.mvrecon.process.pointcloud.pointdescriptor.matcher.SubsetMatcher;
@@ -45,60 +50,86 @@ public class FRGLDMMatcher< I extends InterestPoint >
 			final int redundancy,
 			final double ratioOfDistance )
 	{
-		final KDTree< I > tree1 = new KDTree<>( nodeListA, nodeListA );
-		final KDTree< I > tree2 = new KDTree<>( nodeListB, nodeListB );
+		return extractCorrespondenceCandidates( nodeListA, nodeListB, redundancy, ratioOfDistance, null );
+	}
 
-		final ArrayList< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > descriptors1 =
-			createLocalCoordinateSystemPointDescriptors( tree1, nodeListA, redundancy );
-		
-		final ArrayList< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > descriptors2 =
-			createLocalCoordinateSystemPointDescriptors( tree2, nodeListB, redundancy );
-		
-		// create lookup tree for descriptors2
-		final KDTree< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > lookUpTree2 = new KDTree<>( descriptors2, descriptors2 );
-		final KNearestNeighborSearchOnKDTree< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > nnsearch = new KNearestNeighborSearchOnKDTree<>( lookUpTree2, 2 );
+	/**
+	 * @param nodeListA - points of view A
+	 * @param nodeListB - points of view B
+	 * @param redundancy - the redundancy
+	 * @param ratioOfDistance - ratio of distance between first and second best match
+	 * @param cache - if not null, the descriptors (and lookup tree) of each collection are taken from/added to the cache (the identity of the collection is the key)
+	 * @return the correspondence candidates
+	 */
+	public ArrayList< PointMatchGeneric< I > > extractCorrespondenceCandidates( 
+			final Collection< I > nodeListA,
+			final Collection< I > nodeListB,
+			final int redundancy,
+			final double ratioOfDistance,
+			final DescriptorCache< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > cache )
+	{
+		final Descriptors< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > descriptors1 = descriptors( nodeListA, redundancy, cache );
+		final Descriptors< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > descriptors2 = descriptors( nodeListB, redundancy, cache );
 
 		// store the candidates for corresponding beads
 		final ArrayList< PointMatchGeneric< I > > correspondences = new ArrayList<>();
 		
 		/* compute matching */
-		computeMatching( descriptors1, nnsearch, correspondences, ratioOfDistance );
+		computeMatching( descriptors1.descriptors(), descriptors2.tree(), correspondences, ratioOfDistance );
 		
 		return correspondences;
 	}
+
+	public static < I extends InterestPoint > Descriptors< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > descriptors(
+			final Collection< I > nodeList,
+			final int redundancy,
+			final DescriptorCache< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > cache )
+	{
+		final Supplier< ArrayList< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > > factory = () ->
+		{
+			final ArrayList< I > list = new ArrayList<>( nodeList );
+			final KDTree< I > tree = new KDTree<>( list, list );
+
+			return createLocalCoordinateSystemPointDescriptors( tree, list, redundancy );
+		};
+
+		if ( cache == null )
+			return new Descriptors<>( factory.get() );
+		else
+			return cache.get( nodeList, "FRGLDM, redundancy=" + redundancy, factory );
+	}
 	
 	protected void computeMatching(
 			final ArrayList< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > descriptors1,
-			final KNearestNeighborSearchOnKDTree< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > nnsearch2,
+			final KDTree< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > lookUpTree2,
 			final ArrayList< PointMatchGeneric< I > > correspondences,
 			final double ratioOfDistance )
 	{
-		final HashSet< Pair< I, I > > pairs = new HashSet<>();
+		// the KNN search is not thread-safe, so each chunk of descriptors1 gets its own
+		final ArrayList< Pair< I, I > > matches = MatcherPairwiseTools.processInParallel(
+				descriptors1,
+				() -> new KNearestNeighborSearchOnKDTree< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > >( lookUpTree2, 2 ),
+				( descriptorA, nnsearch2, out ) ->
+				{
+					nnsearch2.search( descriptorA );
 
-		int count = 0;
-		
-		for ( final TranslationInvariantLocalCoordinateSystemPointDescriptor< I > descriptorA : descriptors1 )
-		{
-			nnsearch2.search( descriptorA );
+					double best = descriptorA.descriptorDistance( nnsearch2.getSampler( 0 ).get() );
+					double secondBest = descriptorA.descriptorDistance( nnsearch2.getSampler( 1 ).get() );
 
-			double best = descriptorA.descriptorDistance( nnsearch2.getSampler( 0 ).get() );
-			double secondBest = descriptorA.descriptorDistance( nnsearch2.getSampler( 1 ).get() );
+					if ( best * ratioOfDistance <= secondBest )
+					{
+						final I detectionA = descriptorA.getBasisPoint();
+						final I detectionB = nnsearch2.getSampler( 0 ).get().getBasisPoint();
 
-			if ( best * ratioOfDistance <= secondBest )
-			{
-				final I detectionA = descriptorA.getBasisPoint();
-				final I detectionB = nnsearch2.getSampler( 0 ).get().getBasisPoint();
+						out.add( new ValuePair<>( detectionA, detectionB ) );
+					}
+				});
 
-				// twice the same pair could potentially show up due to redundancy
-				pairs.add( new ValuePair<>( detectionA, detectionB ) );
-				++count;
-			}
-		}
+		// twice the same pair could potentially show up due to redundancy, keep the order of descriptors1 so the result is deterministic
+		final LinkedHashSet< Pair< I, I > > pairs = new LinkedHashSet<>( matches );
 
 		for ( final Pair< I, I > pair : pairs )
 			correspondences.add( new PointMatchGeneric< I >( pair.getA(), pair.getB(), 1 ) );
-		
-		//System.out.println( count +  " <> " + correspondences.size() );
 	}
 
 	public static < I extends InterestPoint > ArrayList< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > createLocalCoordinateSystemPointDescriptors( 
@@ -108,31 +139,32 @@ public class FRGLDMMatcher< I extends InterestPoint >
 	{
 		final int[][] neighborIndicies = SubsetMatcher.computePD( 3 + redundancy, 3, 1 );
 
-		final KNearestNeighborSearchOnKDTree< I > nnsearch = new KNearestNeighborSearchOnKDTree<>( tree, 3 + redundancy + 1 );
-		final ArrayList< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > descriptors = new ArrayList<> ( );
-		
-		for ( final I p : basisPoints )
-		{
-			nnsearch.search( p );
-
-			for ( final int[] neighbors : neighborIndicies )
-			{
-				final I point1 = nnsearch.getSampler( neighbors[ 0 ] ).get();
-				final I point2 = nnsearch.getSampler( neighbors[ 1 ] ).get();
-				final I point3 = nnsearch.getSampler( neighbors[ 2 ] ).get();
+		final List< I > basisPointList = basisPoints instanceof List ? (List< I >)basisPoints : new ArrayList<>( basisPoints );
 
-				try
+		// the KNN search is not thread-safe, so each chunk of basis points gets its own
+		return MatcherPairwiseTools.processInParallel(
+				basisPointList,
+				() -> new KNearestNeighborSearchOnKDTree< I >( tree, 3 + redundancy + 1 ),
+				( p, nnsearch, descriptors ) ->
 				{
-					descriptors.add( new TranslationInvariantLocalCoordinateSystemPointDescriptor< I >( p, point1, point2, point3 ) );
-				}
-				catch ( NoSuitablePointsException e )
-				{
-					e.printStackTrace();
-				}
-			}
-		}
-
-		return descriptors;
+					nnsearch.search( p );
+
+					for ( final int[] neighbors : neighborIndicies )
+					{
+						final I point1 = nnsearch.getSampler( neighbors[ 0 ] ).get();
+						final I point2 = nnsearch.getSampler( neighbors[ 1 ] ).get();
+						final I point3 = nnsearch.getSampler( neighbors[ 2 ] ).get();
+
+						try
+						{
+							descriptors.add( new TranslationInvariantLocalCoordinateSystemPointDescriptor< I >( p, point1, point2, point3 ) );
+						}
+						catch ( NoSuitablePointsException e )
+						{
+							e.printStackTrace();
+						}
+					}
+				});
 	}
 
 	public static void main( String[] args )
@@ -28,16 +28,21 @@ import java.util.Collection;
 import net.preibisch.legacy.mpicbg.PointMatchGeneric;
 import net.preibisch.mvrecon.fiji.ImgLib2Temp.Pair;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.DescriptorCache;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.MatcherPairwise;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.PairwiseResult;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods.ransac.RANSAC;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods.ransac.RANSACParameters;
+import net.preibisch.mvrecon.process.pointcloud.pointdescriptor.TranslationInvariantLocalCoordinateSystemPointDescriptor;
 
 public class FRGLDMPairwise< I extends InterestPoint > implements MatcherPairwise< I >
 {
 	final RANSACParameters rp;
 	final FRGLDMParameters fp;
 
+	// descriptors of each (view, label) are shared across all pairs it is part of
+	final DescriptorCache< TranslationInvariantLocalCoordinateSystemPointDescriptor< I > > cache = new DescriptorCache<>();
+
 	public FRGLDMPairwise(
 			final RANSACParameters rp,
 			final FRGLDMParameters fp )
@@ -72,10 +77,11 @@ public class FRGLDMPairwise< I extends InterestPoint > implements MatcherPairwis
 		}
 
 		final ArrayList< PointMatchGeneric< I > > candidates = hasher.extractCorrespondenceCandidates(
-				listA,
-				listB,
+				listAIn,
+				listBIn,
 				fp.getRedundancy(),
-				fp.getRatioOfDistance() );
+				fp.getRatioOfDistance(),
+				cache );
 
 		result.setCandidates( candidates );
 
@@ -105,4 +111,7 @@ public class FRGLDMPairwise< I extends InterestPoint > implements MatcherPairwis
 	 */
 	@Override
 	public boolean requiresInterestPointDuplication() { return false; }
+
+	@Override
+	public void clearCache() { cache.clear(); }
 }
@@ -24,7 +24,9 @@ package net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Supplier;
 
 import net.imglib2.KDTree;
 import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
@@ -32,6 +34,9 @@ import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import net.preibisch.legacy.mpicbg.PointMatchGeneric;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.DescriptorCache;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.DescriptorCache.Descriptors;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.MatcherPairwiseTools;
 import net.preibisch.mvrecon.process.pointcloud.pointdescriptor.LocalCoordinateSystemPointDescriptor;
 import net.preibisch.mvrecon.process.pointcloud.pointdescriptor.exception.NoSuitablePointsException;
 import net.preibisch.mvrecon.process.pointcloud.pointdescriptor.matcher.SubsetMatcher;
@@ -51,62 +56,86 @@ public class GeometricHasher< I extends InterestPoint >
 			final int redundancy,
 			final double ratioOfDistance )
 	{
-		final KDTree< I > tree1 = new KDTree<>( nodeListA, nodeListA );
-		final KDTree< I > tree2 = new KDTree<>( nodeListB, nodeListB );
+		return extractCorrespondenceCandidates( nodeListA, nodeListB, differenceThreshold, redundancy, ratioOfDistance, null );
+	}
 
-		final ArrayList< LocalCoordinateSystemPointDescriptor< I > > descriptors1 =
-			createLocalCoordinateSystemPointDescriptors( tree1, nodeListA, redundancy, false );
-		
-		final ArrayList< LocalCoordinateSystemPointDescriptor< I > > descriptors2 =
-			createLocalCoordinateSystemPointDescriptors( tree2, nodeListB, redundancy, false );
-		
-		// create lookup tree for descriptors2
-		final KDTree< LocalCoordinateSystemPointDescriptor< I > > lookUpTree2 = new KDTree<>( descriptors2, descriptors2 );
-		final KNearestNeighborSearchOnKDTree< LocalCoordinateSystemPointDescriptor< I > > nnsearch = new KNearestNeighborSearchOnKDTree<>( lookUpTree2, 2 );
+	/**
+	 * @param nodeListA - points of view A
+	 * @param nodeListB - points of view B
+	 * @param differenceThreshold - maximal descriptor difference
+	 * @param redundancy - the redundancy
+	 * @param ratioOfDistance - ratio of distance between first and second best match
+	 * @param cache - if not null, the descriptors (and lookup tree) of each collection are taken from/added to the cache (the identity of the collection is the key)
+	 * @return the correspondence candidates
+	 */
+	public ArrayList< PointMatchGeneric< I > > extractCorrespondenceCandidates(
+			final Collection< I > nodeListA,
+			final Collection< I > nodeListB,
+			final double differenceThreshold,
+			final int redundancy,
+			final double ratioOfDistance,
+			final DescriptorCache< LocalCoordinateSystemPointDescriptor< I > > cache )
+	{
+		final Descriptors< LocalCoordinateSystemPointDescriptor< I > > descriptors1 = descriptors( nodeListA, redundancy, cache );
+		final Descriptors< LocalCoordinateSystemPointDescriptor< I > > descriptors2 = descriptors( nodeListB, redundancy, cache );
 
 		// store the candidates for corresponding beads
 		final ArrayList< PointMatchGeneric< I > > correspondences = new ArrayList<>();
 		
 		/* compute matching */
-		computeMatching( descriptors1, nnsearch, correspondences, differenceThreshold, ratioOfDistance );
+		computeMatching( descriptors1.descriptors(), descriptors2.tree(), correspondences, differenceThreshold, ratioOfDistance );
 		
 		return correspondences;
 	}
+
+	public static < I extends InterestPoint > Descriptors< LocalCoordinateSystemPointDescriptor< I > > descriptors(
+			final Collection< I > nodeList,
+			final int redundancy,
+			final DescriptorCache< LocalCoordinateSystemPointDescriptor< I > > cache )
+	{
+		final Supplier< ArrayList< LocalCoordinateSystemPointDescriptor< I > > > factory = () ->
+		{
+			final ArrayList< I > list = new ArrayList<>( nodeList );
+			final KDTree< I > tree = new KDTree<>( list, list );
+
+			return createLocalCoordinateSystemPointDescriptors( tree, list, redundancy, false );
+		};
+
+		if ( cache == null )
+			return new Descriptors<>( factory.get() );
+		else
+			return cache.get( nodeList, "GeometricHashing, redundancy=" + redundancy + ", normalize=false", factory );
+	}
 	
 	protected void computeMatching( 
 			final ArrayList< LocalCoordinateSystemPointDescriptor< I > > descriptors1,
-			final KNearestNeighborSearchOnKDTree< LocalCoordinateSystemPointDescriptor< I > > nnsearch2,
+			final KDTree< LocalCoordinateSystemPointDescriptor< I > > lookUpTree2,
 			final ArrayList< PointMatchGeneric< I > > correspondences,
 			final double differenceThreshold, 
 			final double ratioOfDistance )
 	{
-		final HashSet< Pair< I, I > > pairs = new HashSet<>();
-
-		//System.out.println( "BeadA" + "\t" + "BeadB1" + "\t" + "BeadB2" + "\t" + "Diff1" + "\t" + "Diff2" );
-
-		for ( final LocalCoordinateSystemPointDescriptor< I > descriptorA : descriptors1 )
-		{
-			nnsearch2.search( descriptorA );
-
-			double best = descriptorA.descriptorDistance( nnsearch2.getSampler( 0 ).get() );
-			double secondBest = descriptorA.descriptorDistance( nnsearch2.getSampler( 1 ).get() );
-
-			if ( best < differenceThreshold && best * ratioOfDistance <= secondBest )
-			{
-				final I detectionA = descriptorA.getBasisPoint();
-				final I detectionB = nnsearch2.getSampler( 0 ).get().getBasisPoint();
+		// the KNN search is not thread-safe, so each chunk of descriptors1 gets its own
+		final ArrayList< Pair< I, I > > matches = MatcherPairwiseTools.processInParallel(
+				descriptors1,
+				() -> new KNearestNeighborSearchOnKDTree< LocalCoordinateSystemPointDescriptor< I > >( lookUpTree2, 2 ),
+				( descriptorA, nnsearch2, out ) ->
+				{
+					nnsearch2.search( descriptorA );
 
-				//System.out.println( beadA.getID() + "\t" + matches[ 0 ].getBasisPoint().getID() + "\t" + matches[ 1 ].getBasisPoint().getID() + "\t" + best + "\t" + secondBest );
+					double best = descriptorA.descriptorDistance( nnsearch2.getSampler( 0 ).get() );
+					double secondBest = descriptorA.descriptorDistance( nnsearch2.getSampler( 1 ).get() );
 
-				//detectionA.addPointDescriptorCorrespondence( detectionB, 1 );
-				//detectionB.addPointDescriptorCorrespondence( detectionA, 1 );
+					if ( best < differenceThreshold && best * ratioOfDistance <= secondBest )
+					{
+						final I detectionA = descriptorA.getBasisPoint();
+						final I detectionB = nnsearch2.getSampler( 0 ).get().getBasisPoint();
 
-				// twice the same pair could potentially show up due to redundancy
-				pairs.add( new ValuePair<>( detectionA, detectionB ) );
+						out.add( new ValuePair<>( detectionA, detectionB ) );
+					}
+				});
 
-				//correspondences.add( new PointMatchGeneric< I >( detectionA, detectionB, 1 ) );
-			}
-		}
+		// twice the same pair could potentially show up due to redundancy, keep the order of descriptors1 so the result is deterministic
+		final LinkedHashSet< Pair< I, I > > pairs = new LinkedHashSet<>( matches );
 
 		for ( final Pair< I, I > pair : pairs )
 			correspondences.add( new PointMatchGeneric< I >( pair.getA(), pair.getB(), 1 ) );
@@ -120,36 +149,37 @@ public class GeometricHasher< I extends InterestPoint >
 	{
 		final int numNeighbors = 3;
 
-		final KNearestNeighborSearchOnKDTree< I > nnsearch = new KNearestNeighborSearchOnKDTree<>( tree, numNeighbors + redundancy + 1 );
-		final ArrayList< LocalCoordinateSystemPointDescriptor< I > > descriptors = new ArrayList<> ( );
-
 		final int[][] neighborIndicies = SubsetMatcher.computePD( numNeighbors + redundancy, numNeighbors, 1 );
 
-		for ( final I p : basisPoints )
-		{
-			nnsearch.search( p );
-
-			for ( final int[] neighbors : neighborIndicies )
-			{
-				final ArrayList< I > neighborPoints = new ArrayList<>();
+		final List< I > basisPointList = basisPoints instanceof List ? (List< I >)basisPoints : new ArrayList<>( basisPoints );
 
-				// the first hit is always the point itself
-				for ( int n = 0; n < numNeighbors; ++n )
-					neighborPoints.add( nnsearch.getSampler( neighbors[ n ] ).get() );
-	
-				try
-				{
-					descriptors.add( new LocalCoordinateSystemPointDescriptor< I >( p, neighborPoints, normalize ) );
-				}
-				catch ( NoSuitablePointsException e )
+		// the KNN search is not thread-safe, so each chunk of basis points gets its own
+		return MatcherPairwiseTools.processInParallel(
+				basisPointList,
+				() -> new KNearestNeighborSearchOnKDTree< I >( tree, numNeighbors + redundancy + 1 ),
+				( p, nnsearch, descriptors ) ->
 				{
-					// exceptions are thrown here when two identical points exist and no local coordinate system can be built
-					// TOOD: why do identical points exist?
-					//e.printStackTrace();
-				}
-			}
-		}
-
-		return descriptors;
+					nnsearch.search( p );
+
+					for ( final int[] neighbors : neighborIndicies )
+					{
+						final ArrayList< I > neighborPoints = new ArrayList<>();
+
+						// the first hit is always the point itself
+						for ( int n = 0; n < numNeighbors; ++n )
+							neighborPoints.add( nnsearch.getSampler( neighbors[ n ] ).get() );
+
+						try
+						{
+							descriptors.add( new LocalCoordinateSystemPointDescriptor< I >( p, neighborPoints, normalize ) );
+						}
+						catch ( NoSuitablePointsException e )
+						{
+							// exceptions are thrown here when two identical points exist and no local coordinate system can be built
+							// TOOD: why do identical points exist?
+							//e.printStackTrace();
+						}
+					}
+				});
 	}
 }
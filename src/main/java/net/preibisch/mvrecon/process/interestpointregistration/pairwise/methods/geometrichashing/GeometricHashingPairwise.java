@@ -28,16 +28,21 @@ import java.util.Collection;
 import net.preibisch.legacy.mpicbg.PointMatchGeneric;
 import net.preibisch.mvrecon.fiji.ImgLib2Temp.Pair;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.DescriptorCache;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.MatcherPairwise;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.PairwiseResult;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods.ransac.RANSAC;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.methods.ransac.RANSACParameters;
+import net.preibisch.mvrecon.process.pointcloud.pointdescriptor.LocalCoordinateSystemPointDescriptor;
 
 public class GeometricHashingPairwise< I extends InterestPoint > implements MatcherPairwise< I >
 {
 	final RANSACParameters rp;
 	final GeometricHashingParameters gp;
 
+	// descriptors of each (view, label) are shared across all pairs it is part of
+	final DescriptorCache< LocalCoordinateSystemPointDescriptor< I > > cache = new DescriptorCache<>();
+
 	public GeometricHashingPairwise(
 			final RANSACParameters rp,
 			final GeometricHashingParameters gp )
@@ -72,11 +77,12 @@ public class GeometricHashingPairwise< I extends InterestPoint > implements Matc
 		}
 
 		final ArrayList< PointMatchGeneric< I > > candidates = hasher.extractCorrespondenceCandidates(
-				listA,
-				listB,
+				listAIn,
+				listBIn,
 				gp.getDifferenceThreshold(),
 				gp.getRedundancy(),
-				gp.getRatioOfDistance() );
+				gp.getRatioOfDistance(),
+				cache );
 
 		result.setCandidates( candidates );
 
@@ -106,4 +112,7 @@ public class GeometricHashingPairwise< I extends InterestPoint > implements Matc
 	 */
 	@Override
 	public boolean requiresInterestPointDuplication() { return false; }
+
+	@Override
+	public void clearCache() { cache.clear(); }
 }
@@ -30,6 +30,7 @@ import net.imglib2.KDTree;
 import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
 import net.preibisch.legacy.mpicbg.PointMatchGeneric;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.MatcherPairwiseTools;
 import net.preibisch.mvrecon.process.pointcloud.pointdescriptor.AbstractPointDescriptor;
 import net.preibisch.mvrecon.process.pointcloud.pointdescriptor.SimplePointDescriptor;
 import net.preibisch.mvrecon.process.pointcloud.pointdescriptor.exception.NoSuitablePointsException;
@@ -74,55 +75,55 @@ public class RGLDMMatcher< I extends InterestPoint >
 			final boolean limitSearchRadius,
 			final double searchRadius )
 	{
-		final ArrayList< PointMatchGeneric< I > > correspondenceCandidates = new ArrayList<>();
-
 		// TODO: smaller list on the outside
-		for ( final D descriptorA : descriptorsA )
-		{
-			double bestDifference = Double.MAX_VALUE;
-			double secondBestDifference = Double.MAX_VALUE;
-
-			D bestMatch = null;
-			D secondBestMatch = null;
-
-			for ( final D descriptorB : descriptorsB )
-			{
-				if ( limitSearchRadius && Point.distance( descriptorA.getBasisPoint(), descriptorB.getBasisPoint() ) > searchRadius )
-						continue;
+		// descriptorDistance() stores the best match set in descriptorA, so every descriptorA must only be processed by one thread (which is the case)
+		return MatcherPairwiseTools.processInParallel(
+				descriptorsA,
+				() -> null,
+				( descriptorA, state, correspondenceCandidates ) ->
+				{
+					double bestDifference = Double.MAX_VALUE;
+					double secondBestDifference = Double.MAX_VALUE;
 
-				final double difference = descriptorA.descriptorDistance( descriptorB );
+					D bestMatch = null;
+					D secondBestMatch = null;
 
-				if ( difference < secondBestDifference )
-				{
-					secondBestDifference = difference;
-					secondBestMatch = descriptorB;
-					
-					if ( secondBestDifference < bestDifference )
+					for ( final D descriptorB : descriptorsB )
 					{
-						double tmpDiff = secondBestDifference;
-						D tmpMatch = secondBestMatch;
-						
-						secondBestDifference = bestDifference;
-						secondBestMatch = bestMatch;
-						
-						bestDifference = tmpDiff;
-						bestMatch = tmpMatch;
+						if ( limitSearchRadius && Point.distance( descriptorA.getBasisPoint(), descriptorB.getBasisPoint() ) > searchRadius )
+								continue;
+
+						final double difference = descriptorA.descriptorDistance( descriptorB );
+
+						if ( difference < secondBestDifference )
+						{
+							secondBestDifference = difference;
+							secondBestMatch = descriptorB;
+							
+							if ( secondBestDifference < bestDifference )
+							{
+								double tmpDiff = secondBestDifference;
+								D tmpMatch = secondBestMatch;
+								
+								secondBestDifference = bestDifference;
+								secondBestMatch = bestMatch;
+								
+								bestDifference = tmpDiff;
+								bestMatch = tmpMatch;
+							}
+						}
 					}
-				}
-			}
 
-			if ( bestDifference < differenceThreshold && bestDifference * nTimesBetter < secondBestDifference && secondBestDifference != Double.MAX_VALUE ) // there must be a second one (make sure 2nd best is set)
-			{	
-				// add correspondence for the two basis points of the descriptor
-				I detectionA = descriptorA.getBasisPoint();
-				I detectionB = bestMatch.getBasisPoint();
-				
-				// for RANSAC
-				correspondenceCandidates.add( new PointMatchGeneric< I >( detectionA, detectionB ) );
-			}
-		}
-
-		return correspondenceCandidates;
+					if ( bestDifference < differenceThreshold && bestDifference * nTimesBetter < secondBestDifference && secondBestDifference != Double.MAX_VALUE ) // there must be a second one (make sure 2nd best is set)
+					{	
+						// add correspondence for the two basis points of the descriptor
+						I detectionA = descriptorA.getBasisPoint();
+						I detectionB = bestMatch.getBasisPoint();
+						
+						// for RANSAC
+						correspondenceCandidates.add( new PointMatchGeneric< I >( detectionA, detectionB ) );
+					}
+				});
 	}
 
 	protected static < I extends InterestPoint > ArrayList< SimplePointDescriptor< I > > createSimplePointDescriptors(
@@ -132,29 +133,28 @@ public class RGLDMMatcher< I extends InterestPoint >
 			final Matcher matcher,
 			final SimilarityMeasure similarityMeasure )
 	{
-		final KNearestNeighborSearchOnKDTree< I > nnsearch = new KNearestNeighborSearchOnKDTree<>( tree, numNeighbors + 1 );
-		final ArrayList< SimplePointDescriptor< I > > descriptors = new ArrayList<> ( );
-
-		for ( final I p : basisPoints )
-		{
-			final ArrayList< I > neighbors = new ArrayList<>();
-			nnsearch.search( p );
-
-			// the first hit is always the point itself
-			for ( int n = 1; n < numNeighbors + 1; ++n )
-				neighbors.add( nnsearch.getSampler( n ).get() );
+		// the KNN search is not thread-safe, so each chunk of basis points gets its own
+		return MatcherPairwiseTools.processInParallel(
+				basisPoints,
+				() -> new KNearestNeighborSearchOnKDTree< I >( tree, numNeighbors + 1 ),
+				( p, nnsearch, descriptors ) ->
+				{
+					final ArrayList< I > neighbors = new ArrayList<>();
+					nnsearch.search( p );
 
-			try
-			{
-				descriptors.add( new SimplePointDescriptor< I >( p, neighbors, similarityMeasure, matcher ) );
-			}
-			catch ( NoSuitablePointsException e )
-			{
-				e.printStackTrace();
-			}
-		}
+					// the first hit is always the point itself
+					for ( int n = 1; n < numNeighbors + 1; ++n )
+						neighbors.add( nnsearch.getSampler( n ).get() );
 
-		return descriptors;
+					try
+					{
+						descriptors.add( new SimplePointDescriptor< I >( p, neighbors, similarityMeasure, matcher ) );
+					}
+					catch ( NoSuitablePointsException e )
+					{
+						e.printStackTrace();
+					}
+				});
 	}
 
 }
@@ -25,7 +25,9 @@ package net.preibisch.mvrecon.process.pointcloud.icp;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 
 import mpicbg.models.IllDefinedDataPointsException;
 import mpicbg.models.Model;
@@ -317,121 +319,72 @@ public class ICP < P extends RealLocalizable >
 	public List< LinkedInterestPoint< P > > getWrappedReferencePoints() { return reference; }
 	
 	/**
-	 * Detects ambigous (and duplicate) {@link PointMatch}es, i.e. if a {@link Point} corresponds with more than one other {@link Point}
+	 * Detects ambigous (and duplicate) {@link PointMatch}es, i.e. if a {@link Point} corresponds with more than one other {@link Point}.
+	 * All matches of a point that has different partners are removed, of several identical matches only the first one is kept.
+	 * Runs in linear time (points are compared by identity).
+	 *
 	 * @param matches - the {@link List} of {@link PointMatch}es
 	 * @param <P> - something extening point
 	 * @return - the {@link ArrayList} containing the removed ambigous or duplicate {@link PointMatch}es 
 	 */
 	public static < P extends Point & RealLocalizable > ArrayList<PointMatch> removeAmbigousMatches( final List<PointMatchGeneric< P > > matches )
 	{
-		final ArrayList<Integer> inconsistentCorrespondences = new ArrayList<Integer>();
-		final ArrayList<PointMatch> ambigousMatches = new ArrayList<PointMatch>();
-		
-		for ( int i = 0; i < matches.size(); i++ )
-		{
-			final Point pointTarget = matches.get( i ).getP1();
-			final Point pointReference = matches.get( i ).getP2();
+		// the first partner of every point, and all points that have more than one distinct partner
+		final IdentityHashMap< Point, Point > partnerTarget = new IdentityHashMap<>();
+		final IdentityHashMap< Point, Point > partnerReference = new IdentityHashMap<>();
+		final Set< Point > ambigous = Collections.newSetFromMap( new IdentityHashMap<>() );
 
-			final ArrayList<Integer> inconsistent = getOccurences( pointTarget, pointReference, matches );
-			
-			if ( inconsistent.size() > 0 )
-				for ( int index : inconsistent )
-					if ( !inconsistentCorrespondences.contains( index ) )
-						inconsistentCorrespondences.add( index );
-		}
-	
-		if ( inconsistentCorrespondences.size() > 0 )
+		for ( final PointMatch pm : matches )
 		{
-			Collections.sort( inconsistentCorrespondences );
+			final Point pointTarget = pm.getP1();
+			final Point pointReference = pm.getP2();
 
-			for ( int i = inconsistentCorrespondences.size() - 1; i >= 0; i-- )
-			{
-				// save the ambigous match
-				final PointMatch pm = matches.get( (int)inconsistentCorrespondences.get(i) );
-				ambigousMatches.add( pm );
+			final Point t = partnerTarget.putIfAbsent( pointTarget, pointReference );
+			if ( t != null && t != pointReference )
+				ambigous.add( pointTarget );
 
-				// the cast to (int) is essential as otherwise he is looking to remove the Integer object that does not exist in the list 
-				matches.remove( (int)inconsistentCorrespondences.get(i) );
-			}
+			final Point r = partnerReference.putIfAbsent( pointReference, pointTarget );
+			if ( r != null && r != pointTarget )
+				ambigous.add( pointReference );
 		}
 
-		return ambigousMatches;
-	}
-	
-	/**
-	 * Computes if one {@link Point} pair occurs more than once in a {@link List} of {@link PointMatch}es 
-	 * 
-	 * @param pointTarget - one {@link Point}
-	 * @param pointReference - the other {@link Point}
-	 * @param list - the {@link List} of {@link PointMatch}es (target, reference)
-	 * @param <P> - something extening point
-	 * @return - an {@link ArrayList} of indices which should be removed due to duplicate or ambigous occurence
-	 */
-	protected static < P extends Point & RealLocalizable > ArrayList<Integer> getOccurences( final Point pointTarget, final Point pointReference, List< PointMatchGeneric< P > > list )
-	{
-		final ArrayList<Integer> occurences = new ArrayList<Integer>();
-		
-		boolean differentOccurence = false;
-				
-		/* Test if pointReference has matches with different points than pointTarget */
-		for ( final PointMatch pm : list )
-		{			
-			if ( pm.getP2() == pointReference )
-			{
-				// it is NOT twice the correct occurence
-				if ( pm.getP1() != pointTarget )
-				{
-					differentOccurence = true;
-					break;
-				}
-			}
+		final boolean[] inconsistent = new boolean[ matches.size() ];
+		final Set< Point > seenReference = Collections.newSetFromMap( new IdentityHashMap<>() );
+		int numInconsistent = 0;
 
-			if ( pm.getP1() == pointTarget )
-			{
-				// it is NOT twice the correct occurence
-				if ( pm.getP2() != pointReference )
-				{
-					differentOccurence = true;
-					break;
-				}				
-			}
-		}
-		
-		if ( differentOccurence )
+		for ( int i = 0; i < matches.size(); i++ )
 		{
-			/* remove all occurences/matches with pointReference as it is ambigous */
-			for ( int i = 0; i < list.size(); i++ )
+			final Point pointTarget = matches.get( i ).getP1();
+			final Point pointReference = matches.get( i ).getP2();
+
+			// ambigous, or a duplicate of an earlier match
+			if ( ambigous.contains( pointTarget ) || ambigous.contains( pointReference ) || !seenReference.add( pointReference ) )
 			{
-				final PointMatch pm = list.get( i );
-				
-				if ( pm.getP2() == pointReference )
-					occurences.add( i );				
-				
-				if ( pm.getP1() == pointTarget )
-					occurences.add( i );
+				inconsistent[ i ] = true;
+				++numInconsistent;
 			}
 		}
-		else
+
+		final ArrayList<PointMatch> ambigousMatches = new ArrayList<PointMatch>( numInconsistent );
+
+		if ( numInconsistent > 0 )
 		{
-			/* remove double occurences */
-			boolean sameOccurence = false;
+			final ArrayList< PointMatchGeneric< P > > consistent = new ArrayList<>( matches.size() - numInconsistent );
 
-			for ( int i = 0; i < list.size(); i++ )
-			{
-				final PointMatch pm = list.get( i );
-				
-				/* remove all but the first occurence/match */
-				if ( pm.getP2() == pointReference )
-				{
-					if ( sameOccurence )
-						occurences.add( i );
-					else
-						sameOccurence = true;
-				}
-			}			
+			for ( int i = 0; i < matches.size(); i++ )
+				if ( !inconsistent[ i ] )
+					consistent.add( matches.get( i ) );
+
+			// save the ambigous matches (in the same order as they used to be removed)
+			for ( int i = matches.size() - 1; i >= 0; i-- )
+				if ( inconsistent[ i ] )
+					ambigousMatches.add( matches.get( i ) );
+
+			matches.clear();
+			matches.addAll( consistent );
 		}
-		
-		return occurences;
+
+		return ambigousMatches;
 	}
 
 	static public double meanDistance( final Collection< ? extends PointMatch > matches )
@@ -24,18 +24,29 @@ package net.preibisch.mvrecon.process.pointcloud.icp;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.IntStream;
 
 import mpicbg.models.Point;
 import net.imglib2.KDTree;
 import net.imglib2.RealLocalizable;
 import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
 import net.preibisch.legacy.mpicbg.PointMatchGeneric;
+import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.LinkedInterestPoint;
 
+/**
+ * Assigns every (transformed) target point its nearest reference point if it is closer than the distance threshold.
+ *
+ * The reference points do not move during ICP, so the KDTree over the reference is only built once and reused
+ * as long as the same reference list is passed. The nearest neighbor queries of the target points run in parallel.
+ */
 public class SimplePointMatchIdentification < P extends RealLocalizable > implements PointMatchIdentification< P >
 {
 	double distanceThresold;
 
+	List< LinkedInterestPoint< P > > referenceTreePoints = null;
+	KDTree< LinkedInterestPoint< P > > referenceTree = null;
+
 	public SimplePointMatchIdentification( final double distanceThreshold )
 	{
 		this.distanceThresold = distanceThreshold;
@@ -54,19 +65,49 @@ public class SimplePointMatchIdentification < P extends RealLocalizable > implem
 	{
 		final ArrayList< PointMatchGeneric< LinkedInterestPoint< P > > > pointMatches = new ArrayList<>();
 
-		final KDTree< LinkedInterestPoint< P > > kdTreeTarget = new KDTree<>( target, target );
-		final NearestNeighborSearchOnKDTree< LinkedInterestPoint< P > > nnSearchTarget = new NearestNeighborSearchOnKDTree<>( kdTreeTarget );
+		if ( target.size() == 0 || reference.size() == 0 )
+			return pointMatches;
+
+		final KDTree< LinkedInterestPoint< P > > kdTreeReference = getReferenceTree( reference );
+
+		@SuppressWarnings("unchecked")
+		final PointMatchGeneric< LinkedInterestPoint< P > >[] matches = new PointMatchGeneric[ target.size() ];
 
-		for ( final LinkedInterestPoint< P > point : reference )
+		final int numTasks = Math.min( target.size(), Threads.numThreads() * 4 );
+
+		IntStream.range( 0, numTasks ).parallel().forEach( task ->
 		{
-			nnSearchTarget.search( point );
-			final LinkedInterestPoint< P > correspondingPoint = nnSearchTarget.getSampler().get();
+			// the search is not thread-safe, the tree is
+			final NearestNeighborSearchOnKDTree< LinkedInterestPoint< P > > nnSearchReference = new NearestNeighborSearchOnKDTree<>( kdTreeReference );
 
-			// world coordinates of point
-			if ( Point.distance( correspondingPoint, point ) <= distanceThresold )
-				pointMatches.add( new PointMatchGeneric< LinkedInterestPoint< P > >( correspondingPoint, point ) );
-		}
+			for ( int i = task; i < matches.length; i += numTasks )
+			{
+				final LinkedInterestPoint< P > point = target.get( i );
+
+				nnSearchReference.search( point );
+				final LinkedInterestPoint< P > correspondingPoint = nnSearchReference.getSampler().get();
+
+				// world coordinates of point
+				if ( Point.distance( point, correspondingPoint ) <= distanceThresold )
+					matches[ i ] = new PointMatchGeneric< LinkedInterestPoint< P > >( point, correspondingPoint );
+			}
+		});
+
+		for ( final PointMatchGeneric< LinkedInterestPoint< P > > pm : matches )
+			if ( pm != null )
+				pointMatches.add( pm );
 
 		return pointMatches;
 	}
+
+	protected synchronized KDTree< LinkedInterestPoint< P > > getReferenceTree( final List< LinkedInterestPoint< P > > reference )
+	{
+		if ( referenceTree == null || referenceTreePoints != reference || referenceTree.size() != reference.size() )
+		{
+			referenceTree = new KDTree<>( reference, reference );
+			referenceTreePoints = reference;
+		}
+
+		return referenceTree;
+	}
 }
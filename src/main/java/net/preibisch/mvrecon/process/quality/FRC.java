@@ -151,6 +151,20 @@ import org.apache.commons.math3.util.FastMath;
 			}
 		}
 
+		return calculateFrcCurve(new float[][] { numerator, absFFT1, absFFT2 }, size, maxWidth, maxHeight);
+	}
+
+	/**
+	 * Calculate the Fourier Ring Correlation curve from the (centred) products of two Fourier transforms.
+	 * 
+	 * @param images - numerator (Re(F1 * conj(F2))), |F1|^2 and |F2|^2, each size*size with the origin at (size/2, size/2)
+	 * @param size - the size of the Fourier transforms
+	 * @param maxWidth - the width of the input images
+	 * @param maxHeight - the height of the input images
+	 * @return An array of triplets representing [][radius,correlation,N], see {@link #calculateFrcCurve(ImageProcessor, ImageProcessor)}
+	 */
+	public double[][] calculateFrcCurve(final float[][] images, final int size, final int maxWidth, final int maxHeight)
+	{
 		int radius = 1;
 		final double centre = size / 2;
 	    final double max = (Math.max(maxWidth, maxHeight)/2) - 1;
@@ -163,8 +177,6 @@ import org.apache.commons.math3.util.FastMath;
 		frcCurve[0][1] = 1;
 		frcCurve[0][2] = 1; // Avoid divide by zero errors. Not sure if this is OK
 
-		float[][] images = new float[][] { numerator, absFFT1, absFFT2 };
-
 		while (radius < max)
 		{
 			//final double progress = (1.0 * radius) / max;
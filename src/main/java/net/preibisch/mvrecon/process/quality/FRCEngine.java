@@ -0,0 +1,563 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2025 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.quality;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import net.imglib2.FinalInterval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.blocks.BlockSupplier;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.Threads;
+import net.preibisch.mvrecon.process.fusion.FusionTools;
+
+/**
+ * Computes the (relative) fourier ring correlation for many locations at once, giving the same result as
+ * {@link FRCRealRandomAccessible#computeFRC(net.imglib2.RandomAccessible, Point, int)} and
+ * {@link FRCRealRandomAccessible#computeRelativeFRC(net.imglib2.RandomAccessible, Point, int, int)}.
+ *
+ * Locations are grouped by z-plane and into XY slabs of {@link #slabSize}, the planes needed by all locations of one slab
+ * are read only once (block-wise) and the slabs are processed in parallel. Both images of a pair are transformed with a single
+ * complex FFT (one as the real, one as the imaginary part). The FFT tables are computed once, the buffers once per thread.
+ *
+ * If {@link #streamZ} is set, the locations are instead grouped into columns of the same XY position that are walked in z.
+ * The spectrum of every slice is computed only once per column and kept in a rolling cache while it is still needed, so
+ * slices shared by locations along z (e.g. z+1 and z'-1, or z+relativeFRCDist and z'-relativeFRCDist) are not transformed again.
+ */
+public class FRCEngine
+{
+	public static int slabSize = 512;
+	public static boolean streamZ = true;
+
+	final int length, half, width, size;
+	final float[] taper;
+
+	// FFT tables of the power-of-two size
+	final int[] bitReversal;
+	final double[] cos, sin;
+
+	final ThreadLocal< Workspace > workspaces;
+
+	/**
+	 * @param length - the size of the square around each location that is used
+	 */
+	public FRCEngine( final int length )
+	{
+		this.length = length;
+		this.half = length / 2;
+
+		// FRC pads to an even size ...
+		this.width = length % 2 == 0 ? length : length + 1;
+
+		// ... and then to a power of 2 (see FRC.getSquareTaperedImage)
+		int newSize = 0;
+		for ( int i = 4; i < 15; i++ )
+		{
+			newSize = (int) Math.pow( 2.0, i );
+			if ( width <= newSize )
+				break;
+		}
+
+		if ( width > newSize )
+			throw new IllegalArgumentException( "FRC length " + length + " is too large, maximum is " + newSize );
+
+		this.size = newSize;
+		this.taper = windowFunction( width );
+
+		final int bits = Integer.numberOfTrailingZeros( size );
+		this.bitReversal = new int[ size ];
+		for ( int i = 0; i < size; ++i )
+			bitReversal[ i ] = Integer.reverse( i ) >>> ( 32 - bits );
+
+		this.cos = new double[ size / 2 ];
+		this.sin = new double[ size / 2 ];
+		for ( int i = 0; i < size / 2; ++i )
+		{
+			cos[ i ] = Math.cos( -2 * Math.PI * i / size );
+			sin[ i ] = Math.sin( -2 * Math.PI * i / size );
+		}
+
+		this.workspaces = ThreadLocal.withInitial( Workspace::new );
+	}
+
+	/**
+	 * @param input - the image
+	 * @param locations - where to compute the FRC
+	 * @param relative - compute the relative FRC (FRC of neighboring planes minus FRC of planes relativeFRCDist away)
+	 * @param relativeFRCDist - the distance for the relative FRC
+	 * @param service - the service to use, or null to create one
+	 * @return the quality for each location
+	 */
+	public double[] compute(
+			final RandomAccessibleInterval< FloatType > input,
+			final List< Point > locations,
+			final boolean relative,
+			final int relativeFRCDist,
+			final ExecutorService service )
+	{
+		final BlockSupplier< FloatType > blocks = BlockSupplier.of( Views.extendMirrorSingle( input ) ).threadSafe();
+		final int[] planeOffsets = relative ? new int[] { -1, 1, -relativeFRCDist, relativeFRCDist } : new int[] { -1, 1 };
+
+		// group the locations by z-plane and XY slab, or by XY column
+		final Map< List< Long >, List< Integer > > groups = new LinkedHashMap<>();
+
+		for ( int i = 0; i < locations.size(); ++i )
+		{
+			final Point l = locations.get( i );
+			final List< Long > key;
+
+			if ( streamZ )
+				key = Arrays.asList( l.getLongPosition( 0 ), l.getLongPosition( 1 ) );
+			else
+				key = Arrays.asList(
+						l.getLongPosition( 2 ),
+						Math.floorDiv( l.getLongPosition( 0 ), slabSize ),
+						Math.floorDiv( l.getLongPosition( 1 ), slabSize ) );
+
+			groups.computeIfAbsent( key, k -> new ArrayList<>() ).add( i );
+		}
+
+		final double[] quality = new double[ locations.size() ];
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+		final AtomicInteger progress = new AtomicInteger( 0 );
+
+		for ( final List< Integer > group : groups.values() )
+		{
+			tasks.add( () ->
+			{
+				if ( streamZ )
+					computeColumn( blocks, locations, group, planeOffsets, relative, quality );
+				else
+					computeSlab( blocks, locations, group, planeOffsets, relative, quality );
+
+				IJ.showProgress( (double)progress.addAndGet( group.size() ) / locations.size() );
+				return null;
+			});
+		}
+
+		if ( service == null )
+			FusionTools.execTasks( tasks, Threads.numThreads(), "frc" );
+		else
+			FusionTools.execTasks( tasks, service, "frc" );
+
+		return quality;
+	}
+
+	protected void computeSlab(
+			final BlockSupplier< FloatType > blocks,
+			final List< Point > locations,
+			final List< Integer > indices,
+			final int[] planeOffsets,
+			final boolean relative,
+			final double[] quality )
+	{
+		final Workspace ws = workspaces.get();
+
+		// the XY area that is needed by all locations of this slab
+		long minX = Long.MAX_VALUE, minY = Long.MAX_VALUE, maxX = Long.MIN_VALUE, maxY = Long.MIN_VALUE;
+
+		for ( final int i : indices )
+		{
+			final Point l = locations.get( i );
+			minX = Math.min( minX, l.getLongPosition( 0 ) - half );
+			minY = Math.min( minY, l.getLongPosition( 1 ) - half );
+			maxX = Math.max( maxX, l.getLongPosition( 0 ) + half - 1 );
+			maxY = Math.max( maxY, l.getLongPosition( 1 ) + half - 1 );
+		}
+
+		final long z = locations.get( indices.get( 0 ) ).getLongPosition( 2 );
+		final int slabWidth = (int)( maxX - minX + 1 );
+		final int slabHeight = (int)( maxY - minY + 1 );
+
+		// read every plane once
+		final float[][] planes = new float[ planeOffsets.length ][ slabWidth * slabHeight ];
+
+		for ( int p = 0; p < planeOffsets.length; ++p )
+			blocks.copy(
+					new FinalInterval( new long[] { minX, minY, z + planeOffsets[ p ] }, new long[] { maxX, maxY, z + planeOffsets[ p ] } ),
+					planes[ p ] );
+
+		for ( final int i : indices )
+		{
+			final Point l = locations.get( i );
+			final int offsetX = (int)( l.getLongPosition( 0 ) - half - minX );
+			final int offsetY = (int)( l.getLongPosition( 1 ) - half - minY );
+
+			transform( ws, planes[ 0 ], planes[ 1 ], slabWidth, offsetX, offsetY, ws.spectrum1, ws.spectrum2 );
+			final double[][] frcCurve = frcCurve( ws, ws.spectrum1, ws.spectrum2 );
+
+			if ( relative )
+			{
+				transform( ws, planes[ 2 ], planes[ 3 ], slabWidth, offsetX, offsetY, ws.spectrum1, ws.spectrum2 );
+				quality[ i ] = relativeQuality( ws, frcCurve, frcCurve( ws, ws.spectrum1, ws.spectrum2 ) );
+			}
+			else
+			{
+				quality[ i ] = FRCRealRandomAccessible.integral( frcCurve );
+			}
+		}
+	}
+
+	/**
+	 * Computes all locations of one XY column in z order, every slice is transformed only once.
+	 */
+	protected void computeColumn(
+			final BlockSupplier< FloatType > blocks,
+			final List< Point > locations,
+			final List< Integer > indices,
+			final int[] planeOffsets,
+			final boolean relative,
+			final double[] quality )
+	{
+		final Workspace ws = workspaces.get();
+
+		final ArrayList< Integer > sorted = new ArrayList<>( indices );
+		sorted.sort( ( a, b ) -> Long.compare( locations.get( a ).getLongPosition( 2 ), locations.get( b ).getLongPosition( 2 ) ) );
+
+		final long x = locations.get( sorted.get( 0 ) ).getLongPosition( 0 );
+		final long y = locations.get( sorted.get( 0 ) ).getLongPosition( 1 );
+
+		int minOffset = 0;
+		for ( final int o : planeOffsets )
+			minOffset = Math.min( minOffset, o );
+
+		// all slices needed by this column, and the ones not transformed yet
+		final TreeSet< Long > pending = new TreeSet<>();
+		for ( final int i : sorted )
+			for ( final int o : planeOffsets )
+				pending.add( locations.get( i ).getLongPosition( 2 ) + o );
+
+		final TreeMap< Long, Spectrum > cache = new TreeMap<>();
+
+		for ( int k = 0; k < sorted.size(); ++k )
+		{
+			final int i = sorted.get( k );
+			final long z = locations.get( i ).getLongPosition( 2 );
+
+			// transform the missing slices two at a time, an odd one is paired with the next slice needed later
+			for ( final int o : planeOffsets )
+			{
+				final Long slice = z + o;
+
+				if ( !pending.remove( slice ) )
+					continue;
+
+				final Long other = pending.pollFirst();
+
+				final Spectrum s1 = ws.spectrum();
+				final Spectrum s2 = other == null ? ws.spectrum2 : ws.spectrum();
+
+				read( blocks, x, y, slice, ws.patch1 );
+
+				if ( other != null )
+					read( blocks, x, y, other, ws.patch2 );
+				else
+					Arrays.fill( ws.patch2, 0 );
+
+				transform( ws, ws.patch1, ws.patch2, 2 * half, 0, 0, s1, s2 );
+
+				cache.put( slice, s1 );
+
+				if ( other != null )
+					cache.put( other, s2 );
+			}
+
+			final double[][] frcCurve = frcCurve( ws, cache.get( z + planeOffsets[ 0 ] ), cache.get( z + planeOffsets[ 1 ] ) );
+
+			if ( relative )
+				quality[ i ] = relativeQuality( ws, frcCurve, frcCurve( ws, cache.get( z + planeOffsets[ 2 ] ), cache.get( z + planeOffsets[ 3 ] ) ) );
+			else
+				quality[ i ] = FRCRealRandomAccessible.integral( frcCurve );
+
+			// slices below what the next location needs are not used anymore
+			final long keep = k + 1 < sorted.size() ? locations.get( sorted.get( k + 1 ) ).getLongPosition( 2 ) + minOffset : Long.MAX_VALUE;
+			final SortedMap< Long, Spectrum > evict = cache.headMap( keep );
+
+			ws.free.addAll( evict.values() );
+			evict.clear();
+		}
+
+		ws.free.addAll( cache.values() );
+	}
+
+	protected void read( final BlockSupplier< FloatType > blocks, final long x, final long y, final long z, final float[] patch )
+	{
+		blocks.copy(
+				new FinalInterval( new long[] { x - half, y - half, z }, new long[] { x + half - 1, y + half - 1, z } ),
+				patch );
+	}
+
+	/**
+	 * FRCRealRandomAccessible.computeRelativeFRC given both curves
+	 */
+	protected static double relativeQuality( final Workspace ws, final double[][] frcCurve, final double[][] frcCurveDist )
+	{
+		try
+		{
+			final double[][] frcCurveDistSmoothed = ws.frc.getSmoothedCurve( frcCurveDist );
+
+			for ( int j = 0; j < frcCurve.length; ++j )
+			{
+				if ( !Double.isFinite( frcCurveDistSmoothed[ j ][ 1 ] ) || !Double.isFinite( frcCurve[ j ][ 1 ] ) )
+					return 0;
+
+				frcCurve[ j ][ 1 ] = frcCurve[ j ][ 1 ] - frcCurveDistSmoothed[ j ][ 1 ];
+			}
+
+			return FRCRealRandomAccessible.integral( frcCurve );
+		}
+		catch ( Exception e )
+		{
+			// is thrown if everything is zero
+			return 0;
+		}
+	}
+
+	/**
+	 * Computes the spectra of two squares (at the same position) of two planes using one complex FFT.
+	 */
+	protected void transform(
+			final Workspace ws,
+			final float[] plane1,
+			final float[] plane2,
+			final int planeWidth,
+			final int offsetX,
+			final int offsetY,
+			final Spectrum spectrum1,
+			final Spectrum spectrum2 )
+	{
+		final double[] re = ws.re;
+		final double[] im = ws.im;
+
+		Arrays.fill( re, 0 );
+		Arrays.fill( im, 0 );
+
+		// Tukey window as in FRC.getSquareTaperedImage (the border pixels are zero)
+		for ( int y = 1; y < width - 1 && y < 2 * half; ++y )
+		{
+			final double taperY = taper[ y ];
+			final int o = ( offsetY + y ) * planeWidth + offsetX;
+
+			for ( int x = 1, i = y * size + 1; x < width - 1 && x < 2 * half; ++x, ++i )
+			{
+				final double t = taper[ x ] * taperY;
+				re[ i ] = plane1[ o + x ] * t;
+				im[ i ] = plane2[ o + x ] * t;
+			}
+		}
+
+		fft2d( re, im, ws.colRe, ws.colIm );
+
+		// separate the two transforms, F1(k) = (Z(k) + conj(Z(-k)))/2, F2(k) = (Z(k) - conj(Z(-k)))/2i
+		for ( int y = 0; y < size; ++y )
+		{
+			final int ny = ( size - y ) % size;
+
+			for ( int x = 0; x < size; ++x )
+			{
+				final int k = y * size + x;
+				final int nk = ny * size + ( size - x ) % size;
+
+				spectrum1.re[ k ] = (float)( ( re[ k ] + re[ nk ] ) / 2 );
+				spectrum1.im[ k ] = (float)( ( im[ k ] - im[ nk ] ) / 2 );
+				spectrum2.re[ k ] = (float)( ( im[ k ] + im[ nk ] ) / 2 );
+				spectrum2.im[ k ] = (float)( ( re[ nk ] - re[ k ] ) / 2 );
+			}
+		}
+	}
+
+	/**
+	 * Computes the FRC curve of two spectra.
+	 */
+	protected double[][] frcCurve( final Workspace ws, final Spectrum spectrum1, final Spectrum spectrum2 )
+	{
+		final float[] numerator = ws.numerator;
+		final float[] abs1 = ws.abs1;
+		final float[] abs2 = ws.abs2;
+		final int c = size / 2;
+
+		// center the products
+		for ( int y = 0; y < size; ++y )
+		{
+			final int sy = ( ( y + c ) % size ) * size;
+
+			for ( int x = 0; x < size; ++x )
+			{
+				final int k = y * size + x;
+				final double a1 = spectrum1.re[ k ], b1 = spectrum1.im[ k ];
+				final double a2 = spectrum2.re[ k ], b2 = spectrum2.im[ k ];
+
+				final int s = sy + ( x + c ) % size;
+
+				numerator[ s ] = (float)( a1 * a2 + b1 * b2 );
+				abs1[ s ] = (float)( a1 * a1 + b1 * b1 );
+				abs2[ s ] = (float)( a2 * a2 + b2 * b2 );
+			}
+		}
+
+		return ws.frc.calculateFrcCurve( ws.images, size, length, length );
+	}
+
+	protected void fft2d( final double[] re, final double[] im, final double[] colRe, final double[] colIm )
+	{
+		for ( int y = 0; y < size; ++y )
+			fft( re, im, y * size, 1 );
+
+		for ( int x = 0; x < size; ++x )
+		{
+			for ( int y = 0, i = x; y < size; ++y, i += size )
+			{
+				colRe[ y ] = re[ i ];
+				colIm[ y ] = im[ i ];
+			}
+
+			fft( colRe, colIm, 0, 1 );
+
+			for ( int y = 0, i = x; y < size; ++y, i += size )
+			{
+				re[ i ] = colRe[ y ];
+				im[ i ] = colIm[ y ];
+			}
+		}
+	}
+
+	/**
+	 * In-place iterative radix-2 FFT of size elements starting at offset with the given stride.
+	 */
+	protected void fft( final double[] re, final double[] im, final int offset, final int stride )
+	{
+		for ( int i = 0; i < size; ++i )
+		{
+			final int j = bitReversal[ i ];
+
+			if ( j > i )
+			{
+				final int a = offset + i * stride, b = offset + j * stride;
+				double t = re[ a ]; re[ a ] = re[ b ]; re[ b ] = t;
+				t = im[ a ]; im[ a ] = im[ b ]; im[ b ] = t;
+			}
+		}
+
+		for ( int len = 2; len <= size; len <<= 1 )
+		{
+			final int halfLen = len / 2;
+			final int step = size / len;
+
+			for ( int i = 0; i < size; i += len )
+			{
+				for ( int j = 0; j < halfLen; ++j )
+				{
+					final double wr = cos[ j * step ];
+					final double wi = sin[ j * step ];
+
+					final int a = offset + ( i + j ) * stride;
+					final int b = offset + ( i + j + halfLen ) * stride;
+
+					final double tr = re[ b ] * wr - im[ b ] * wi;
+					final double ti = re[ b ] * wi + im[ b ] * wr;
+
+					re[ b ] = re[ a ] - tr;
+					im[ b ] = im[ a ] - ti;
+					re[ a ] += tr;
+					im[ a ] += ti;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The same window function as FRC.getWindowFunction
+	 */
+	protected static float[] windowFunction( final int size )
+	{
+		final int boundary = size / 8;
+		final int upperBoundary = size - boundary;
+		final float[] taper = new float[ size ];
+
+		for ( int i = 0; i < size; i++ )
+		{
+			if ( ( i < boundary ) || ( i > size - upperBoundary ) )
+				taper[ i ] = (float) Math.pow( Math.sin( 12.566370614359172D * i / size ), 2.0D );
+			else
+				taper[ i ] = 1;
+		}
+
+		return taper;
+	}
+
+	/**
+	 * The (not centered) Fourier transform of one square
+	 */
+	protected class Spectrum
+	{
+		final float[] re = new float[ size * size ];
+		final float[] im = new float[ size * size ];
+	}
+
+	/**
+	 * Buffers of one thread
+	 */
+	protected class Workspace
+	{
+		final float[] patch1 = new float[ 4 * half * half ];
+		final float[] patch2 = new float[ 4 * half * half ];
+
+		final Spectrum spectrum1 = new Spectrum();
+		final Spectrum spectrum2 = new Spectrum();
+
+		// evicted spectra of the z-streaming cache that can be reused
+		final ArrayDeque< Spectrum > free = new ArrayDeque<>();
+
+		final double[] re = new double[ size * size ];
+		final double[] im = new double[ size * size ];
+		final double[] colRe = new double[ size ];
+		final double[] colIm = new double[ size ];
+
+		final float[] numerator = new float[ size * size ];
+		final float[] abs1 = new float[ size * size ];
+		final float[] abs2 = new float[ size * size ];
+		final float[][] images = new float[][] { numerator, abs1, abs2 };
+
+		final FRC frc = new FRC();
+
+		Spectrum spectrum()
+		{
+			final Spectrum s = free.poll();
+			return s == null ? new Spectrum() : s;
+		}
+	}
+}
@@ -73,6 +73,9 @@ public class FRCRealRandomAccessible< T extends RealType< T > > implements RealR
 
 	public static int relativeFRCDist = 5;
 
+	// compute all locations with the FRCEngine (same result, much faster)
+	public static boolean useFRCEngine = true;
+
 	public FRCRealRandomAccessible(
 			final RandomAccessibleInterval< T > input,
 			final List< Point > locations,
@@ -85,14 +88,26 @@ public class FRCRealRandomAccessible< T extends RealType< T > > implements RealR
 		this.interval = new FinalInterval( input );
 		this.qualityList = new PointSampleList<>( input.numDimensions() );
 
-		final RandomAccessible< FloatType > floatInput = Views.extendMirrorSingle( getFloatRAI( input ) );
-		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
-		final AtomicInteger progress = new AtomicInteger( 0 );
-
 		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Computing FRC for " + locations.size()  + " locations, length=" + length + ", relative=" + relative );
 
 		IJ.showProgress( 0.01 );
 
+		if ( useFRCEngine )
+		{
+			final double[] quality = new FRCEngine( length ).compute( getFloatRAI( input ), locations, relative, relativeFRCDist, service );
+
+			for ( int i = 0; i < locations.size(); ++i )
+				qualityList.add( locations.get( i ), new FloatType( (float)quality[ i ] ) );
+
+			IJ.showProgress( 1.0 );
+
+			return;
+		}
+
+		final RandomAccessible< FloatType > floatInput = Views.extendMirrorSingle( getFloatRAI( input ) );
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		final AtomicInteger progress = new AtomicInteger( 0 );
+
 		for ( final Point l : locations )
 		{
 			tasks.add( new Callable< Void >()
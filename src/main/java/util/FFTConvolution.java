@@ -557,6 +557,36 @@ public class FFTConvolution< R extends RealType< R > >
 		return FFT.realToComplex( imgInput, fftFactory, service );
 	}
 
+	/**
+	 * Computes the FFT of the image into an existing buffer, so it can be reused for many convolutions of the same size.
+	 *
+	 * @param imgConvolutionInterval - the padded interval of the image as computed by {@link #setupFFTs(Interval, Interval, long[], long[])}
+	 * @param img - the (extended) image
+	 * @param fftImg - the buffer, must have the dimensions of the complex FFT of imgConvolutionInterval
+	 * @param service - the ExecutorService
+	 * @param <R> - the type of the image
+	 */
+	public static < R extends RealType< R > > void computeImgFFT(
+			final Interval imgConvolutionInterval,
+			final RandomAccessible< R > img,
+			final RandomAccessibleInterval< ComplexFloatType > fftImg,
+			final ExecutorService service )
+	{
+		FFT.realToComplex( Views.interval( img, imgConvolutionInterval ), fftImg, service );
+	}
+
+	/**
+	 * @param imgConvolutionInterval - the padded interval of the image as computed by {@link #setupFFTs(Interval, Interval, long[], long[])}
+	 * @return the dimensions of its complex FFT
+	 */
+	public static long[] fftDimensions( final Interval imgConvolutionInterval )
+	{
+		final long[] fftDimensions = imgConvolutionInterval.dimensionsAsLongArray();
+		fftDimensions[ 0 ] = fftDimensions[ 0 ] / 2 + 1;
+
+		return fftDimensions;
+	}
+
 	public static < R extends RealType< R > > Img< ComplexFloatType > computeKernelFFT(
 			final Interval kernelConvolutionInterval,
 			final long[] min,